@@ -31,6 +31,7 @@ import java.util.Hashtable;
 public final class KahluaTableImpl implements KahluaTable {
     private final Hashtable delegate = new Hashtable();
 	private KahluaTable metatable;
+	private int metaFlags;
 
     public void setMetatable(KahluaTable metatable) {
         this.metatable = metatable;
@@ -41,6 +42,7 @@ public final class KahluaTableImpl implements KahluaTable {
     }
 
     public void rawset(Object key, Object value) {
+        metaFlags = 0;
         if (value == null) {
             delegate.remove(key);
             return;
@@ -104,9 +106,18 @@ public final class KahluaTableImpl implements KahluaTable {
 	}
 
 	public void wipe() {
+		metaFlags = 0;
 		delegate.clear();
 	}
 
+	public int getMetaFlags() {
+		return metaFlags;
+	}
+
+	public void setMetaFlags(int flags) {
+		metaFlags = flags;
+	}
+
 	public String toString() {
         return "table 0x" + System.identityHashCode(this);
     }
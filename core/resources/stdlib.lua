@@ -8,76 +8,8 @@ function assert(c, ...)
 	error(...)
 end
 
-local function ipairs_iterator(t, index)
-	local nextIndex = index + 1
-	local nextValue = t[nextIndex]
-	if nextValue ~= nil then
-		return nextIndex, nextValue
-	end
-end
-
-function ipairs(t)
-	return ipairs_iterator, t, 0
-end
 pairs = table.pairs
 
-do
-	local function partition_nocomp(tbl, left, right, pivot)
-		local pval = tbl[pivot]
-		tbl[pivot], tbl[right] = tbl[right], pval
-		local store = left
-		for v = left, right - 1, 1 do
-			local vval = tbl[v]
-			if vval < pval then
-				tbl[v], tbl[store] = tbl[store], vval
-				store = store + 1
-			end
-		end
-		tbl[store], tbl[right] = tbl[right], tbl[store]
-		return store
-	end
-	local function quicksort_nocomp(tbl, left, right)
-		if right > left then
-			local pivot = left
-			local newpivot = partition_nocomp(tbl,left,right,pivot)
-			quicksort_nocomp(tbl,left,newpivot-1)
-			return quicksort_nocomp(tbl,newpivot+1,right)
-		end
-		return tbl
-	end
-
-	local function partition_comp(tbl, left, right, pivot, comp)
-		local pval = tbl[pivot]
-		tbl[pivot], tbl[right] = tbl[right], pval
-		local store = left
-		for v = left, right - 1, 1 do
-			local vval = tbl[v]
-			if comp(vval, pval) then
-				tbl[v], tbl[store] = tbl[store], vval
-				store = store + 1
-			end
-		end
-		tbl[store], tbl[right] = tbl[right], tbl[store]
-		return store
-	end
-	local function quicksort_comp(tbl, left, right, comp)
-		if right > left then
-			local pivot = left
-			local newpivot = partition_comp(tbl,left,right,pivot, comp)
-			quicksort_comp(tbl,left,newpivot-1, comp)
-			return quicksort_comp(tbl,newpivot+1,right, comp)
-		end
-		return tbl
-	end
-
-	function table.sort(tbl, comp) -- quicksort
-	    if comp then
-		    return quicksort_comp(tbl,1, #tbl, comp)
-	    end
-    	return quicksort_nocomp(tbl, 1, #tbl)
-	end
-end
-
 function string.len(s)
 	return #s
 end
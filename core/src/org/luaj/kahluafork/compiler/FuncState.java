@@ -24,7 +24,7 @@ package org.luaj.kahluafork.compiler;
 import se.krka.kahlua.vm.KahluaException;
 import se.krka.kahlua.vm.Prototype;
 
-import java.util.Hashtable;
+import java.util.HashMap;
 
 
 /**
@@ -45,7 +45,7 @@ public class FuncState {
 	
 	Prototype f;  /* current function header */
 //	LTable h;  /* table to find (and reuse) elements in `k' */
-	Hashtable htable;  /* table to find (and reuse) elements in `k' */
+	HashMap htable;  /* table to find (and reuse) elements in `k' */
 	FuncState prev;  /* enclosing function */
 	LexState ls;  /* lexical state */
 	BlockCnt bl;  /* chain of current blocks */
@@ -85,7 +85,7 @@ public class FuncState {
         this.bl = null;
         f.maxStacksize = 2;  /* registers 0/1 are always valid */
         //fs.h = new LTable();
-        this.htable = new Hashtable();
+        this.htable = new HashMap();
 
 	}
 	
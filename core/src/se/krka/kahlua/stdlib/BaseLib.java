@@ -23,7 +23,9 @@ package se.krka.kahlua.stdlib;
 
 import se.krka.kahlua.vm.JavaFunction;
 import se.krka.kahlua.vm.KahluaException;
+import se.krka.kahlua.vm.InstructionBudgetException;
 import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaTableIterator;
 import se.krka.kahlua.vm.KahluaUtil;
 import se.krka.kahlua.vm.LuaCallFrame;
 import se.krka.kahlua.vm.LuaClosure;
@@ -53,8 +55,13 @@ public final class BaseLib implements JavaFunction {
 	private static final int COLLECTGARBAGE = 15;
 	private static final int DEBUGSTACKTRACE = 16;
 	private static final int BYTECODELOADER = 17;
+	private static final int NEXT = 18;
+	private static final int IPAIRS = 19;
 
-	private static final int NUM_FUNCTIONS = 18;
+	private static final int NUM_FUNCTIONS = 20;
+
+	/** The function returned by ipairs, not registered */
+	private static final int IPAIRS_NEXT = NUM_FUNCTIONS;
 
 	private static final String[] names;
 	private static final Object DOUBLE_ONE = Double.valueOf(1.0);
@@ -81,6 +88,8 @@ public final class BaseLib implements JavaFunction {
 		names[COLLECTGARBAGE] = "collectgarbage";
 		names[DEBUGSTACKTRACE] = "debugstacktrace";
 		names[BYTECODELOADER] = "bytecodeloader";
+		names[NEXT] = "next";
+		names[IPAIRS] = "ipairs";
 
 		functions = new BaseLib[NUM_FUNCTIONS];
 		for (int i = 0; i < NUM_FUNCTIONS; i++) {
@@ -101,8 +110,17 @@ public final class BaseLib implements JavaFunction {
 		}
 	}
 
+	private static final BaseLib IPAIRS_ITERATOR = new BaseLib(IPAIRS_NEXT);
+
+	/**
+	 * The generator pairs returns for tables that can be walked by position.
+	 */
+	public static JavaFunction nextFunction() {
+		return functions[NEXT];
+	}
+
 	public String toString() {
-		return names[index];
+		return index < NUM_FUNCTIONS ? names[index] : "ipairs_iterator";
 	}
 
 
@@ -126,6 +144,9 @@ public final class BaseLib implements JavaFunction {
 		case COLLECTGARBAGE: return collectgarbage(callFrame, nArguments);
 		case DEBUGSTACKTRACE: return debugstacktrace(callFrame, nArguments);
 		case BYTECODELOADER: return bytecodeloader(callFrame, nArguments);
+		case NEXT: return next(callFrame, nArguments);
+		case IPAIRS: return ipairs(callFrame, nArguments);
+		case IPAIRS_NEXT: return ipairsNext(callFrame, nArguments);
 		default:
 			// Should never happen
 			// throw new Error("Illegal function object");
@@ -156,6 +177,135 @@ public final class BaseLib implements JavaFunction {
 		return callFrame.push(coroutine.getCurrentStackTrace(level, count, haltAt));
 	}
 
+	private static int next(LuaCallFrame callFrame, int nArguments) {
+		KahluaUtil.luaAssert(nArguments >= 1, "Not enough arguments");
+		Object o = callFrame.get(0);
+		KahluaUtil.luaAssert(o instanceof KahluaTable, "Expected a table");
+		KahluaTable t = (KahluaTable) o;
+		Object key = nArguments >= 2 ? callFrame.get(1) : null;
+
+		int pos = nextPosition(t, key);
+		if (pos == KahluaTable.NO_CURSOR) {
+			return nextByIterator(callFrame, t, key);
+		}
+		if (pos < 0) {
+			return callFrame.pushNil();
+		}
+		return callFrame.push(t.entryKey(pos), t.entryValue(pos));
+	}
+
+	/**
+	 * The position of the entry after key, -1 at the end.
+	 */
+	private static int nextPosition(KahluaTable t, Object key) {
+		if (key == null) {
+			return t.nextEntry(0);
+		}
+		int pos = t.entryOf(key);
+		if (pos == KahluaTable.NO_CURSOR) {
+			return pos;
+		}
+		if (pos < 0) {
+			KahluaUtil.fail("invalid key to 'next'");
+		}
+		return t.nextEntry(pos + 1);
+	}
+
+	/**
+	 * A table without positions goes on from its cursor, if it has none
+	 * it is walked from the start for each call.
+	 */
+	private static int nextByIterator(LuaCallFrame callFrame, KahluaTable t, Object key) {
+		KahluaTableIterator it = t.iteratorAfter(key);
+		if (it == null) {
+			it = t.iterator();
+			if (key != null) {
+				while (true) {
+					if (!it.advance()) {
+						KahluaUtil.fail("invalid key to 'next'");
+					}
+					if (key.equals(it.getKey())) {
+						break;
+					}
+				}
+			}
+		}
+		if (it.advance()) {
+			return callFrame.push(it.getKey(), it.getValue());
+		}
+		return callFrame.pushNil();
+	}
+
+	private static int ipairs(LuaCallFrame callFrame, int nArguments) {
+		KahluaUtil.luaAssert(nArguments >= 1, "Not enough arguments");
+		Object t = callFrame.get(0);
+		callFrame.push(IPAIRS_ITERATOR, t);
+		callFrame.push(KahluaUtil.toDouble(0));
+		return 3;
+	}
+
+	private static int ipairsNext(LuaCallFrame callFrame, int nArguments) {
+		Object t = callFrame.get(0);
+		Double index = KahluaUtil.toDouble(KahluaUtil.getNumberArg(callFrame, 2, "ipairs") + 1);
+		Object value = callFrame.getThread().tableGet(t, index);
+		if (value == null) {
+			return 0;
+		}
+		return callFrame.push(index, value);
+	}
+
+	/**
+	 * One step of a generic for loop (OP_TFORLOOP) whose generator is next
+	 * or the ipairs iterator over a table, done without calling it.
+	 * R(A+3), ..., R(A+2+C) get the results, false when the loop must call
+	 * the generator itself.
+	 */
+	public static boolean forloopStep(LuaCallFrame callFrame, int a, int c) {
+		Object f = callFrame.get(a);
+		if (f != functions[NEXT] && f != IPAIRS_ITERATOR) {
+			return false;
+		}
+		Object s = callFrame.get(a + 1);
+		if (!(s instanceof KahluaTable)) {
+			return false;
+		}
+		KahluaTable t = (KahluaTable) s;
+		Object control = callFrame.get(a + 2);
+		Object key = null;
+		Object value = null;
+
+		if (f == IPAIRS_ITERATOR) {
+			if (!(control instanceof Double)) {
+				return false;
+			}
+			double i = (Double) control + 1;
+			value = t.getMetatable() == null && i == (int) i
+					? t.rawget((int) i)
+					: callFrame.getThread().tableGet(t, KahluaUtil.toDouble(i));
+			if (value != null) {
+				key = KahluaUtil.toDouble(i);
+			}
+		} else {
+			int pos = nextPosition(t, control);
+			if (pos == KahluaTable.NO_CURSOR) {
+				return false;
+			}
+			if (pos >= 0) {
+				key = t.entryKey(pos);
+				value = t.entryValue(pos);
+			}
+		}
+
+		callFrame.set(a + 3, key);
+		if (c > 1) {
+			callFrame.set(a + 4, key == null ? null : value);
+			for (int i = 2; i < c; ++i) {
+				callFrame.set(a + 3 + i, null);
+			}
+		}
+		return true;
+	}
+
 	private int rawget(LuaCallFrame callFrame, int nArguments) {
         KahluaUtil.luaAssert(nArguments >= 2, "Not enough arguments");
         KahluaTable t = (KahluaTable) callFrame.get(0);
@@ -284,9 +434,7 @@ public final class BaseLib implements JavaFunction {
         }
 
         callFrame.setTop(nReturnValues);
-        for (int b = 0; b < nReturnValues; b++) {
-        	callFrame.set(b, t.rawget(KahluaUtil.toDouble((i + b))));
-        }
+        t.getRange(i, callFrame.coroutine.objectStack, callFrame.localBase, nReturnValues);
         return nReturnValues;
 	}
 
@@ -303,7 +451,16 @@ public final class BaseLib implements JavaFunction {
 	}
 
 	public static int pcall(LuaCallFrame callFrame, int nArguments) {
-		return callFrame.getThread().pcall(nArguments - 1);
+		int nReturnValues = callFrame.getThread().pcall(nArguments - 1);
+
+		// A script can not catch the end of its instruction budget
+		if (nReturnValues == 4 && callFrame.get(0) == Boolean.FALSE) {
+			InstructionBudgetException e = InstructionBudgetException.find(callFrame.get(3));
+			if (e != null) {
+				throw e;
+			}
+		}
+		return nReturnValues;
 	}
 
 	private static int print(LuaCallFrame callFrame, int nArguments) {
@@ -373,6 +530,10 @@ public final class BaseLib implements JavaFunction {
 		}
 
         thread.setmetatable(o, newMeta);
+
+		if (o instanceof KahluaTable) {
+			KahluaUtil.setWeakMode((KahluaTable) o, newMeta);
+		}
 	}
 
 	private static int type(LuaCallFrame callFrame, int nArguments) {
@@ -138,9 +138,11 @@ public class CoroutineLib implements JavaFunction {
 			nextCallFrame.setTop(0);
 		}
 
-		// Copy arguments
-		for (int i = 1; i < nArguments; i++) {
-			nextCallFrame.push(callFrame.get(i));
+		// Copy arguments, unless it was stopped by the instruction budget
+		if (!t.wasPreempted()) {
+			for (int i = 1; i < nArguments; i++) {
+				nextCallFrame.push(callFrame.get(i));
+			}
 		}
 		
 		// Is this the first time the coroutine is resumed?
@@ -169,6 +171,7 @@ public class CoroutineLib implements JavaFunction {
 		LuaClosure c = getFunction(callFrame, "create");
 
 		Coroutine coroutine = new Coroutine(callFrame.getPlatform(), callFrame.getEnvironment());
+		coroutine.inheritLimits(callFrame.coroutine);
 		coroutine.pushNewCallFrame(c, null, 0, 0, -1, true, true);
 		callFrame.push(coroutine);
 		return 1;
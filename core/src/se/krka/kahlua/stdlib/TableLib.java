@@ -24,6 +24,8 @@ package se.krka.kahlua.stdlib;
 
 import se.krka.kahlua.vm.*;
 
+import java.util.Arrays;
+
 public final class TableLib implements JavaFunction {
 
 	private static final int CONCAT = 0;
@@ -33,7 +35,13 @@ public final class TableLib implements JavaFunction {
     private static final int PAIRS = 4;
 	private static final int ISEMPTY = 5;
 	private static final int WIPE = 6;
-	private static final int NUM_FUNCTIONS = 7;
+	private static final int NEW = 7;
+	private static final int RELEASE = 8;
+	private static final int SORT = 9;
+	private static final int NUM_FUNCTIONS = 10;
+
+	/** Elements read at once by concat */
+	private static final int CHUNK = 256;
 
 	private static final String[] names;
 	private static final TableLib[] functions;
@@ -47,6 +55,9 @@ public final class TableLib implements JavaFunction {
 		names[PAIRS] = "pairs";
         names[ISEMPTY] = "isempty";
         names[WIPE] = "wipe";
+		names[NEW] = "new";
+		names[RELEASE] = "release";
+		names[SORT] = "sort";
 		functions = new TableLib[NUM_FUNCTIONS];
 		for (int i = 0; i < NUM_FUNCTIONS; i++) {
 			functions[i] = new TableLib(i);
@@ -91,11 +102,152 @@ public final class TableLib implements JavaFunction {
 				return isempty(callFrame, nArguments);
 			case WIPE:
 				return wipe(callFrame, nArguments);
+			case NEW:
+				return newtable(callFrame, nArguments);
+			case RELEASE:
+				return release(callFrame, nArguments);
+			case SORT:
+				return sort(callFrame, nArguments);
 			default:
 				return 0;
 		}
 	}
 
+	/**
+	 * table.new(narray, nhash) creates an empty table sized for
+	 * narray keys 1..narray and nhash other keys.
+	 */
+	private static int newtable(LuaCallFrame callFrame, int nArguments) {
+		int narray = sizeArg(KahluaUtil.getOptionalNumberArg(callFrame, 1));
+		int nhash = sizeArg(KahluaUtil.getOptionalNumberArg(callFrame, 2));
+		return callFrame.push(callFrame.getPlatform().newTable(narray, nhash));
+	}
+
+	private static int sizeArg(Double d) {
+		if (d == null || !(d.doubleValue() > 0)) {
+			return 0;
+		}
+		return (int) Math.min(d.doubleValue(), 1 << 26);
+	}
+
+	/**
+	 * table.sort(t [, comp]) sorts t[1..#t] in place, equal elements keep
+	 * their order. Numbers and strings are compared directly, anything
+	 * else and a comp function go through a merge sort that calls
+	 * comp (or __lt) once per comparison.
+	 */
+	private static int sort(LuaCallFrame callFrame, int nArguments) {
+		KahluaTable t = getTable(callFrame, nArguments);
+		Object comp = KahluaUtil.getOptionalArg(callFrame, 2);
+		int n = t.len();
+		Object[] a = new Object[n];
+		t.getRange(1, a, 0, n);
+
+		if (comp == null && allOf(a, Double.class)) {
+			double[] d = new double[n];
+			for (int i = 0; i < n; i++) {
+				d[i] = ((Double) a[i]).doubleValue();
+			}
+			Arrays.sort(d);
+			for (int i = 0; i < n; i++) {
+				a[i] = KahluaUtil.toDouble(d[i]);
+			}
+		} else if (comp == null && allOf(a, String.class)) {
+			Arrays.sort(a);
+		} else {
+			new Sorter(callFrame.getThread(), comp).sort(a);
+		}
+
+		t.setRange(1, a, 0, n);
+		return callFrame.push(t);
+	}
+
+	private static boolean allOf(Object[] a, Class<?> c) {
+		for (Object o : a) {
+			if (o == null || o.getClass() != c) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A stable merge sort that only asks "is b less than a", so a lua
+	 * comparator is called once per comparison.
+	 */
+	private static final class Sorter {
+		private static final int INSERTION = 12;
+
+		private final KahluaThread thread;
+		private final Object comp;
+		private Object[] tmp;
+
+		Sorter(KahluaThread thread, Object comp) {
+			this.thread = thread;
+			this.comp = comp;
+		}
+
+		void sort(Object[] a) {
+			tmp = new Object[a.length];
+			sort(a, 0, a.length);
+		}
+
+		private void sort(Object[] a, int from, int to) {
+			if (to - from <= INSERTION) {
+				for (int i = from + 1; i < to; i++) {
+					Object x = a[i];
+					int j = i;
+					while (j > from && lessThan(x, a[j - 1])) {
+						a[j] = a[j - 1];
+						j--;
+					}
+					a[j] = x;
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			sort(a, from, mid);
+			sort(a, mid, to);
+			if (!lessThan(a[mid], a[mid - 1])) {
+				return;
+			}
+
+			System.arraycopy(a, from, tmp, from, mid - from);
+			int i = from;
+			int j = mid;
+			int k = from;
+			while (i < mid && j < to) {
+				a[k++] = lessThan(a[j], tmp[i]) ? a[j++] : tmp[i++];
+			}
+			while (i < mid) {
+				a[k++] = tmp[i++];
+			}
+		}
+
+		private boolean lessThan(Object x, Object y) {
+			if (comp != null) {
+				return KahluaUtil.boolEval(thread.call(comp, x, y, null));
+			}
+			if (x instanceof Double && y instanceof Double) {
+				return ((Double) x).doubleValue() < ((Double) y).doubleValue();
+			}
+			if (x instanceof String && y instanceof String) {
+				return ((String) x).compareTo((String) y) < 0;
+			}
+			Object metafun = thread.getCompMetaOp(x, y, "__lt");
+			if (metafun == null) {
+				KahluaUtil.fail("__lt not defined for operand");
+			}
+			return KahluaUtil.boolEval(thread.call(metafun, x, y, null));
+		}
+	}
+
+	private static int release(LuaCallFrame callFrame, int nArguments) {
+		KahluaTable table = getTable(callFrame, nArguments);
+		table.release();
+		return 0;
+	}
+
 	private int wipe(LuaCallFrame callFrame, int nArguments) {
 		KahluaTable table = getTable(callFrame, nArguments);
 		table.wipe();
@@ -112,7 +264,12 @@ public final class TableLib implements JavaFunction {
         Object o = callFrame.get(0);
         KahluaUtil.luaAssert(o instanceof KahluaTable, "Expected a table");
         KahluaTable t = (KahluaTable) o;
-        return callFrame.push(t.iterator());
+        if (t.nextEntry(0) == KahluaTable.NO_CURSOR) {
+            return callFrame.push(t.iterator());
+        }
+        callFrame.push(BaseLib.nextFunction(), t);
+        callFrame.pushNil();
+        return 3;
     }
 
     private int newarray(LuaCallFrame callFrame, int arguments) {
@@ -154,15 +311,17 @@ public final class TableLib implements JavaFunction {
 			last = table.len();
 		}
 
-		StringBuffer buffer = new StringBuffer();
-		for (int i = first; i <= last; i++) {
-			if (i > first) {
-				buffer.append(separator);
+		StringBuilder buffer = new StringBuilder();
+		Object[] chunk = new Object[Math.max(0, Math.min(last - first + 1, CHUNK))];
+		for (int i = first; i <= last; i += chunk.length) {
+			int n = Math.min(chunk.length, last - i + 1);
+			table.getRange(i, chunk, 0, n);
+			for (int j = 0; j < n; j++) {
+				if (i + j > first) {
+					buffer.append(separator);
+				}
+				buffer.append(KahluaUtil.rawTostring(chunk[j]));
 			}
-
-			Double key = KahluaUtil.toDouble(i);
-			Object value = table.rawget(key);
-			buffer.append(KahluaUtil.rawTostring(value));
 		}
 
 		return callFrame.push(buffer.toString());
@@ -183,6 +342,10 @@ public final class TableLib implements JavaFunction {
 	}
 
 	public static void insert(KahluaThread state, KahluaTable table, int position, Object element) {
+		if (table.getMetatable() == null) {
+			rawinsert(table, position, element);
+			return;
+		}
 		int len = table.len();
 		for (int i = len; i >= position; i--) {
 			state.tableSet(table, KahluaUtil.toDouble(i+1), state.tableGet(table, KahluaUtil.toDouble(i)));
@@ -193,13 +356,8 @@ public final class TableLib implements JavaFunction {
 	public static void rawinsert(KahluaTable table, int position, Object element) {
 		int len = table.len();
 		if (position <= len) {
-			Double dest = KahluaUtil.toDouble(len + 1);
-			for (int i = len; i >= position; i--) {
-				Double src = KahluaUtil.toDouble(i);
-				table.rawset(dest, table.rawget(src));
-				dest = src;
-			}
-			table.rawset(dest, element);
+			table.move(position, position + 1, len - position + 1);
+			table.rawset(position, element);
 		} else {
 			table.rawset(KahluaUtil.toDouble(position), element);
 		}
@@ -225,6 +383,9 @@ public final class TableLib implements JavaFunction {
 	}
 	
 	public static Object remove (KahluaThread thread, KahluaTable table, int position) {
+		if (table.getMetatable() == null) {
+			return rawremove(table, position);
+		}
 		Object ret = thread.tableGet(table, KahluaUtil.toDouble(position));
 		int len = table.len();
 		for (int i = position; i < len; i++) {
@@ -234,6 +395,16 @@ public final class TableLib implements JavaFunction {
 		return ret;
 	}
 	
+	public static Object rawremove(KahluaTable table, int position) {
+		Object ret = table.rawget(position);
+		int len = table.len();
+		if (position < len) {
+			table.move(position + 1, position, len - position);
+		}
+		table.rawset(len, null);
+		return ret;
+	}
+
 	private static int remove (LuaCallFrame callFrame, int nArguments) {
 		KahluaTable t = getTable(callFrame, nArguments);
 		int pos = t.len();
@@ -0,0 +1,199 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The registry of metatables for java classes (`__classmetatables`),
+ * getmetatable of a String or a java object finds its metatable here.
+ *
+ * Every found metatable is remembered in a map of this registry, so the
+ * hot path is one identity hash of the Class instead of a lua table lookup.
+ * The cache belongs to the registry and dies with its environment, nothing
+ * reachable from lua hangs off a Class. Any rawset or wipe drops the whole
+ * cache, the registry only changes when a library or a class is exposed.
+ */
+public class ClassMetatables implements KahluaTable {
+
+  private static final Object NONE = new Object();
+
+  private final KahluaTable delegate;
+  private final Map<Class<?>, Object> cache = new ConcurrentHashMap<>();
+  private final AtomicInteger version = new AtomicInteger();
+
+
+  public ClassMetatables(KahluaTable delegate) {
+    this.delegate = delegate;
+  }
+
+
+  /**
+   * The metatable of objects of this class, a class which has no raw entry
+   * still goes through the __index of the registry (auto exposing).
+   */
+  public KahluaTable lookup(KahluaThread thread, Class<?> c) {
+    Object mt = cache.get(c);
+    if (mt == null) {
+      mt = find(c);
+    }
+    if (mt != NONE) {
+      return (KahluaTable) mt;
+    }
+    return (KahluaTable) thread.tableGet(this, c);
+  }
+
+
+  private Object find(Class<?> c) {
+    int v = version.get();
+    Object mt = delegate.rawget(c);
+    if (!(mt instanceof KahluaTable)) {
+      mt = NONE;
+    }
+    cache.put(c, mt);
+    // A rawset while reading, the entry may be stale
+    if (version.get() != v) {
+      cache.remove(c);
+    }
+    return mt;
+  }
+
+
+  private void invalidate() {
+    version.incrementAndGet();
+    cache.clear();
+  }
+
+
+  @Override
+  public void setMetatable(KahluaTable metatable) {
+    delegate.setMetatable(metatable);
+  }
+
+
+  @Override
+  public KahluaTable getMetatable() {
+    return delegate.getMetatable();
+  }
+
+
+  @Override
+  public void rawset(Object key, Object value) {
+    delegate.rawset(key, value);
+    invalidate();
+  }
+
+
+  @Override
+  public Object rawget(Object key) {
+    return delegate.rawget(key);
+  }
+
+
+  @Override
+  public void rawset(int key, Object value) {
+    delegate.rawset(key, value);
+  }
+
+
+  @Override
+  public Object rawget(int key) {
+    return delegate.rawget(key);
+  }
+
+
+  @Override
+  public int len() {
+    return delegate.len();
+  }
+
+
+  @Override
+  public KahluaTableIterator iterator() {
+    return delegate.iterator();
+  }
+
+
+  @Override
+  public boolean isEmpty() {
+    return delegate.isEmpty();
+  }
+
+
+  @Override
+  public void wipe() {
+    delegate.wipe();
+    invalidate();
+  }
+
+
+  @Override
+  public int getMetaFlags() {
+    return delegate.getMetaFlags();
+  }
+
+
+  @Override
+  public void setMetaFlags(int flags) {
+    delegate.setMetaFlags(flags);
+  }
+
+
+  @Override
+  public int nextEntry(int pos) {
+    return delegate.nextEntry(pos);
+  }
+
+
+  @Override
+  public Object entryKey(int pos) {
+    return delegate.entryKey(pos);
+  }
+
+
+  @Override
+  public Object entryValue(int pos) {
+    return delegate.entryValue(pos);
+  }
+
+
+  @Override
+  public int entryOf(Object key) {
+    return delegate.entryOf(key);
+  }
+
+
+  @Override
+  public KahluaTableIterator iteratorAfter(Object key) {
+    return delegate.iteratorAfter(key);
+  }
+
+
+  @Override
+  public String toString() {
+    return delegate.toString();
+  }
+}
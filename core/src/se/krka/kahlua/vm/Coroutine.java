@@ -21,25 +21,33 @@ THE SOFTWARE.
 */
 package se.krka.kahlua.vm;
 
-import java.util.Vector;
-
 public class Coroutine {
 	private final Platform platform;
 
 	private KahluaThread thread;
 	private Coroutine parent;
 
+	// Suspended by the instruction budget in the middle of a lua function
+	boolean preempted;
+
 	public KahluaTable environment;
 
 	public String stackTrace = "";
 
-	private final Vector liveUpvalues = new Vector();
+	// Open upvalues sorted by stack index, the highest index is last
+	private UpValue[] liveUpvalues = new UpValue[INITIAL_UPVALUE_SIZE];
+	private int liveUpvalueCount;
 
-	private static final int MAX_STACK_SIZE = 1000;
-	private static final int INITIAL_STACK_SIZE = 10;
+	// Same as LUAI_MAXSTACK and LUAI_MAXCALLS of the reference implementation
+	private static volatile int defaultMaxStackSize = 1000000;
+	private static volatile int defaultMaxCallFrameStackSize = 20000;
 
-	private static final int MAX_CALL_FRAME_STACK_SIZE = 100;
+	private static final int INITIAL_STACK_SIZE = 10;
 	private static final int INITIAL_CALL_FRAME_STACK_SIZE = 10;
+	private static final int INITIAL_UPVALUE_SIZE = 4;
+
+	private int maxStackSize = defaultMaxStackSize;
+	private int maxCallFrameStackSize = defaultMaxCallFrameStackSize;
 	
 	public Object[] objectStack;
 	private int top;
@@ -63,6 +71,40 @@ public class Coroutine {
 		this(platform, environment, null);
 	}
 
+	/**
+	 * Limits of the coroutines created after this call, on any thread,
+	 * exceeding a limit raises a "Stack overflow" error. The two limits
+	 * are not set together, a coroutine created during the call may get
+	 * one old and one new limit: call it before creating the states.
+	 *
+	 * @param maxStackSize number of stack slots
+	 * @param maxCallFrames depth of calls
+	 */
+	public static void setDefaultLimits(int maxStackSize, int maxCallFrames) {
+		defaultMaxStackSize = maxStackSize;
+		defaultMaxCallFrameStackSize = maxCallFrames;
+	}
+
+	public void setLimits(int maxStackSize, int maxCallFrames) {
+		this.maxStackSize = maxStackSize;
+		this.maxCallFrameStackSize = maxCallFrames;
+	}
+
+	/**
+	 * A coroutine created from lua uses the limits of its creator
+	 */
+	public void inheritLimits(Coroutine creator) {
+		setLimits(creator.maxStackSize, creator.maxCallFrameStackSize);
+	}
+
+	public int getMaxStackSize() {
+		return maxStackSize;
+	}
+
+	public int getMaxCallFrameStackSize() {
+		return maxCallFrameStackSize;
+	}
+
 	public final LuaCallFrame pushNewCallFrame(LuaClosure closure,
 											   JavaFunction javaFunction,
 											   int localBase,
@@ -84,15 +126,12 @@ public class Coroutine {
 	}
 	
 	private final void ensureCallFrameStackSize(int index) {
-		if (index > MAX_CALL_FRAME_STACK_SIZE) {
+		if (index > maxCallFrameStackSize) {
 			throw new RuntimeException("Stack overflow");			
 		}
 		int oldSize = callFrameStack.length;
-		int newSize = oldSize;
-		while (newSize <= index) {
-			newSize = 2 * newSize;
-		}
-		if (newSize > oldSize) {
+		if (index >= oldSize) {
+			int newSize = grow(oldSize, index, maxCallFrameStackSize);
 			LuaCallFrame[] newStack = new LuaCallFrame[newSize];
 			System.arraycopy(callFrameStack, 0, newStack, 0, oldSize);
 			callFrameStack = newStack;
@@ -119,19 +158,31 @@ public class Coroutine {
 	}
 
 	private final void ensureStacksize(int index) {
-		if (index > MAX_STACK_SIZE) {
+		if (index > maxStackSize) {
 			throw new RuntimeException("Stack overflow");			
 		}
 		int oldSize = objectStack.length;
+		if (index >= oldSize) {
+			int newSize = grow(oldSize, index, maxStackSize);
+			Object[] newStack = new Object[newSize];
+			System.arraycopy(objectStack, 0, newStack, 0, oldSize);
+			objectStack = newStack;
+		}
+	}
+
+	/**
+	 * Double the size until index fits, but never beyond the limit,
+	 * a deep recursion does not allocate twice the memory it needs.
+	 */
+	private static int grow(int oldSize, int index, int max) {
 		int newSize = oldSize;
 		while (newSize <= index) {
 			newSize = 2 * newSize;
 		}
-		if (newSize > oldSize) {
-			Object[] newStack = new Object[newSize];
-			System.arraycopy(objectStack, 0, newStack, 0, oldSize);
-			objectStack = newStack;
+		if (newSize > max + 1) {
+			newSize = max + 1;
 		}
+		return newSize;
 	}
 
 	public final void setTop(int newTop) {
@@ -160,35 +211,54 @@ public class Coroutine {
 	 */
 
 	public final void closeUpvalues(int closeIndex) {
-		// close all open upvalues
-		
-		int loopIndex = liveUpvalues.size();
-		while (--loopIndex >= 0) {
-			UpValue uv = (UpValue) liveUpvalues.elementAt(loopIndex);
+		// close all open upvalues, they are all at the end of the list
+		int n = liveUpvalueCount;
+		while (n > 0) {
+			UpValue uv = liveUpvalues[n - 1];
 			if (uv.getIndex() < closeIndex) {
-				return;
+				break;
 			}
-            uv.close();
-			liveUpvalues.removeElementAt(loopIndex);
+			uv.close();
+			liveUpvalues[--n] = null;
 		}
+		liveUpvalueCount = n;
 	}
 	
 	public final UpValue findUpvalue(int scanIndex) {
-		// TODO: use binary search instead?
-		int loopIndex = liveUpvalues.size();
-		while (--loopIndex >= 0) {
-			UpValue uv = (UpValue) liveUpvalues.elementAt(loopIndex);
-            int index = uv.getIndex();
-			if (index == scanIndex) {
-				return uv;
-			}
-			if (index < scanIndex) {
-				break;
+		int n = liveUpvalueCount;
+		int low = 0;
+
+		// A new upvalue is usually above all the open ones
+		if (n > 0 && liveUpvalues[n - 1].getIndex() >= scanIndex) {
+			int high = n - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				UpValue uv = liveUpvalues[mid];
+				int index = uv.getIndex();
+				if (index == scanIndex) {
+					return uv;
+				}
+				if (index < scanIndex) {
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
 			}
+		} else {
+			low = n;
 		}
+
 		UpValue uv = new UpValue(this, scanIndex);
-		
-		liveUpvalues.insertElementAt(uv, loopIndex + 1);
+		if (n == liveUpvalues.length) {
+			UpValue[] newList = new UpValue[2 * n];
+			System.arraycopy(liveUpvalues, 0, newList, 0, n);
+			liveUpvalues = newList;
+		}
+		if (low < n) {
+			System.arraycopy(liveUpvalues, low, liveUpvalues, low + 1, n - low);
+		}
+		liveUpvalues[low] = uv;
+		liveUpvalueCount = n + 1;
 		return uv;				
 	}
 
@@ -407,6 +477,26 @@ public class Coroutine {
         thread.currentCoroutine = parent;
     }
 
+	/**
+	 * True if the coroutine was suspended by the instruction budget and not
+	 * by coroutine.yield, the arguments of resume are dropped then because
+	 * no call is waiting for them. Reading it clears the flag.
+	 */
+	public boolean wasPreempted() {
+		boolean p = preempted;
+		preempted = false;
+		return p;
+	}
+
+	/**
+	 * Suspend this running coroutine from inside and wait until it is resumed,
+	 * used by the instruction budget. Only a coroutine with its own java
+	 * thread can do that anywhere, this one returns false.
+	 */
+	public boolean preempt() {
+		return false;
+	}
+
 	public void resume(Coroutine parent) {
 		this.parent = parent;
 		this.thread = parent.thread;
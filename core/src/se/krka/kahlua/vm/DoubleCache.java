@@ -0,0 +1,141 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Shared boxes for the integral numbers in a range, table indices and
+ * loop counters are almost always small integers. Every number boxed by
+ * the interpreter, the compiled code and the tables goes through
+ * {@link KahluaUtil#toDouble(double)} which uses this cache.
+ *
+ * The boxes are created on first use, -0.0 and NaN are never cached.
+ * Counting hits and misses is off by default, it costs an atomic add
+ * on every boxing.
+ */
+public final class DoubleCache {
+
+  public static final int DEFAULT_LOW = -1024;
+  public static final int DEFAULT_HIGH = 65535;
+
+  private static volatile Range range = new Range(DEFAULT_LOW, DEFAULT_HIGH);
+  private static volatile boolean counting;
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+
+
+  private DoubleCache() {}
+
+
+  public static Double valueOf(double d) {
+    Range r = range;
+    int i = (int) d;
+    int index = i - r.low;
+
+    if (i == d && index >= 0 && index < r.boxes.length
+        && (i != 0 || Double.doubleToRawLongBits(d) == 0)) {
+      Double box = r.boxes[index];
+      if (box == null) {
+        box = Double.valueOf(d);
+        r.boxes[index] = box;
+        if (counting) misses.increment();
+      } else if (counting) {
+        hits.increment();
+      }
+      return box;
+    }
+
+    if (counting) misses.increment();
+    return Double.valueOf(d);
+  }
+
+
+  /**
+   * Cache the integers from low to high (inclusive),
+   * an empty range turns the cache off.
+   */
+  public static void setRange(int low, int high) {
+    range = new Range(low, high);
+  }
+
+
+  public static int getLow() {
+    return range.low;
+  }
+
+
+  public static int getHigh() {
+    return range.low + range.boxes.length - 1;
+  }
+
+
+  public static void setCounting(boolean on) {
+    counting = on;
+  }
+
+
+  public static void resetCounters() {
+    hits.reset();
+    misses.reset();
+  }
+
+
+  /**
+   * Boxings answered from the cache, each one is an allocation avoided.
+   */
+  public static long getHits() {
+    return hits.sum();
+  }
+
+
+  public static long getMisses() {
+    return misses.sum();
+  }
+
+
+  public static double getHitRatio() {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+
+  public static String report() {
+    return "DoubleCache [" + getLow() + ", " + getHigh() + "] hits: "
+        + getHits() + " misses: " + getMisses()
+        + " ratio: " + Math.round(getHitRatio() * 1000) / 10.0 + "%";
+  }
+
+
+  private static class Range {
+    final int low;
+    final Double[] boxes;
+
+    Range(int low, int high) {
+      this.low = low;
+      this.boxes = new Double[high >= low ? high - low + 1 : 0];
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm;
+
+import se.krka.kahlua.vm2.ClosureInf;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+
+/**
+ * A snapshot of a fully initialised environment, new environments are
+ * cloned from it instead of registering the libraries and running
+ * stdlib.lua again.
+ *
+ * Every table reachable from the environment is copied, so a clone can
+ * change its libraries without touching the others. Lua functions are
+ * bound to the environment of the clone and get their own upvalues.
+ * Java functions, prototypes and other java objects are shared,
+ * the worker thread is created again for each clone. Functions made by
+ * compiled code (KahluaThread2) belong to the script that made them and
+ * can not be bound to a clone, the template refuses them.
+ * An immutable table ({@link KahluaTable#isImmutable()}) is shared by the
+ * clones as it is. A table with a
+ * __mode in its metatable is as weak in the clone.
+ *
+ * The snapshot is taken when the template is created, later changes
+ * to the source environment are not seen by the clones.
+ */
+public class EnvironmentTemplate {
+
+  protected final Platform platform;
+
+  private final KahluaTable template;
+
+
+  public EnvironmentTemplate(Platform platform, KahluaTable env) {
+    this.platform = platform;
+    this.template = new Copier(env, null).table(env);
+  }
+
+
+  /**
+   * A new environment with the content of the snapshot.
+   */
+  public KahluaTable newEnvironment() {
+    return new Copier(template, platform.newTable()).table(template);
+  }
+
+
+  /**
+   * The worker thread of a clone, replaces the one of the snapshot.
+   */
+  protected KahluaThread newWorkerThread(KahluaTable env) {
+    return new KahluaThread(platform, env);
+  }
+
+
+  private class Copier {
+    private final Map<Object, Object> copies = new IdentityHashMap<>();
+    private final KahluaTable root;
+    private final KahluaTable rootCopy;
+
+
+    /**
+     * @param rootCopy the table receiving the root, or null for a new one
+     */
+    Copier(KahluaTable root, KahluaTable rootCopy) {
+      this.root = root;
+      this.rootCopy = rootCopy;
+    }
+
+
+    Object copy(Object o) {
+      if (o instanceof KahluaTable) {
+        return table((KahluaTable) o);
+      }
+      if (o instanceof LuaClosure) {
+        return closure((LuaClosure) o);
+      }
+      if (o instanceof ClosureInf) {
+        throw new IllegalArgumentException(
+            "Can not copy a function made by compiled code: " + o);
+      }
+      return o;
+    }
+
+
+    KahluaTable table(KahluaTable t) {
+      if (t.isImmutable()) {
+        return t;
+      }
+      Object done = copies.get(t);
+      if (done != null) {
+        return (KahluaTable) done;
+      }
+
+      KahluaTable c;
+      if (t == root && rootCopy != null) {
+        c = rootCopy;
+        c.wipe();
+      } else if (t instanceof ClassMetatables) {
+        c = new ClassMetatables(platform.newTable());
+      } else {
+        c = platform.newTable();
+      }
+      copies.put(t, c);
+
+      KahluaTable meta = t.getMetatable();
+      if (meta != null) {
+        KahluaTable metaCopy = table(meta);
+        c.setMetatable(metaCopy);
+        KahluaUtil.setWeakMode(c, metaCopy);
+      }
+
+      KahluaTableIterator it = t.iterator();
+      while (it.advance()) {
+        Object value = it.getValue();
+        if (value instanceof KahluaThread) {
+          value = newWorkerThread((KahluaTable) copy(
+              ((KahluaThread) value).getEnvironment()));
+        } else {
+          value = copy(value);
+        }
+        c.rawset(copy(it.getKey()), value);
+      }
+      return c;
+    }
+
+
+    LuaClosure closure(LuaClosure f) {
+      Object done = copies.get(f);
+      if (done != null) {
+        return (LuaClosure) done;
+      }
+
+      LuaClosure c = new LuaClosure(f.prototype, null);
+      copies.put(f, c);
+      c.env = f.env == null ? null : table(f.env);
+
+      for (int i = 0; i < f.upvalues.length; ++i) {
+        UpValue u = f.upvalues[i];
+        if (u == null) {
+          continue;
+        }
+        UpValue uc = (UpValue) copies.get(u);
+        if (uc == null) {
+          uc = new UpValue(null, u.getIndex());
+          copies.put(u, uc);
+          uc.setValue(copy(u.getValue()));
+        }
+        c.upvalues[i] = uc;
+      }
+      return c;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm;
+
+
+/**
+ * Raised in the running script when the instruction budget of its
+ * KahluaThread is used up.
+ *
+ * @see KahluaThread#setInstructionBudget(long, int, int)
+ */
+public class InstructionBudgetException extends KahluaException {
+
+  private static final long serialVersionUID = 1L;
+
+
+  public InstructionBudgetException() {
+    super("instruction budget exceeded");
+  }
+
+
+  /**
+   * The budget exception in the cause chain of e, or null
+   */
+  public static InstructionBudgetException find(Object e) {
+    for (Object c = e; c instanceof Throwable; c = ((Throwable) c).getCause()) {
+      if (c instanceof InstructionBudgetException) {
+        return (InstructionBudgetException) c;
+      }
+    }
+    return null;
+  }
+}
@@ -23,6 +23,9 @@
 package se.krka.kahlua.vm;
 
 public interface KahluaTable {
+	/** Returned by the entry methods of a table that can only be walked with iterator() */
+	int NO_CURSOR = -2;
+
 	void setMetatable(KahluaTable metatable);
 	KahluaTable getMetatable();
 	
@@ -39,4 +42,124 @@ public interface KahluaTable {
 	boolean isEmpty();
 
 	void wipe();
+
+	/**
+	 * Bits of {@link MetaFlags} for metamethods this table is known not to
+	 * have when used as a metatable. Implementations store it in a field
+	 * and must invalidate it after a rawset of a key starting with "__"
+	 * and on wipe; other keys may keep it. A table shared between threads
+	 * must also refuse a setMetaFlags() computed before such a rawset,
+	 * see KahluaTableImpl which keeps a version in the high bits.
+	 */
+	default int getMetaFlags() {
+		return 0;
+	}
+
+	default void setMetaFlags(int flags) {
+	}
+
+	/**
+	 * True for a table that never changes and can be shared by every
+	 * state as it is, copies of an environment keep the same instance.
+	 * False by default.
+	 */
+	default boolean isImmutable() {
+		return false;
+	}
+
+	/**
+	 * The table is not needed any more, a platform that pools tables
+	 * may take its storage back. Does nothing by default.
+	 */
+	default void release() {
+	}
+
+	/**
+	 * Called by setmetatable with the __mode of the new metatable ("k" and
+	 * "v"), a table that supports it then holds its keys and/or values
+	 * weakly. Does nothing by default.
+	 */
+	default void setWeak(boolean weakKeys, boolean weakValues) {
+	}
+
+	/**
+	 * Copies t[from], ..., t[from + count - 1] to dest, raw like rawget.
+	 * Implementations with an array part copy it in one go.
+	 */
+	default void getRange(int from, Object[] dest, int destPos, int count) {
+		for (int i = 0; i < count; i++) {
+			dest[destPos + i] = rawget(from + i);
+		}
+	}
+
+	/**
+	 * Sets t[to + i] = src[srcPos + i] for i in 0 .. count - 1, raw like rawset.
+	 */
+	default void setRange(int to, Object[] src, int srcPos, int count) {
+		for (int i = 0; i < count; i++) {
+			rawset(to + i, src[srcPos + i]);
+		}
+	}
+
+	/**
+	 * Moves t[from .. from + count - 1] to t[to ..], the ranges may overlap
+	 * as with System.arraycopy. The keys left behind keep their values.
+	 */
+	default void move(int from, int to, int count) {
+		if (to > from) {
+			for (int i = count - 1; i >= 0; i--) {
+				rawset(to + i, rawget(from + i));
+			}
+		} else {
+			for (int i = 0; i < count; i++) {
+				rawset(to + i, rawget(from + i));
+			}
+		}
+	}
+
+	/**
+	 * Sets t[from], ..., t[from + count - 1] to value.
+	 */
+	default void fill(int from, int count, Object value) {
+		for (int i = 0; i < count; i++) {
+			rawset(from + i, value);
+		}
+	}
+
+	/**
+	 * Walks the table by position, for next() and pairs without an iterator.
+	 * Returns the position of the first entry at or after pos, or -1 when
+	 * there is none; the walk starts at 0 and goes on from the found
+	 * position plus one. Positions stay valid while no key is added.
+	 * Returns {@link #NO_CURSOR} by default.
+	 */
+	default int nextEntry(int pos) {
+		return NO_CURSOR;
+	}
+
+	default Object entryKey(int pos) {
+		return null;
+	}
+
+	default Object entryValue(int pos) {
+		return null;
+	}
+
+	/**
+	 * The position of the key, the value may be nil.
+	 * -1 when the key is not in the table, {@link #NO_CURSOR} by default.
+	 */
+	default int entryOf(Object key) {
+		return NO_CURSOR;
+	}
+
+	/**
+	 * For next() on a table without positions: an iterator that goes on
+	 * after key, or starts at the beginning for nil, without looking for
+	 * key again, so the fields may be cleared during the walk.
+	 * null when the table can not, next() then walks from the start.
+	 */
+	default KahluaTableIterator iteratorAfter(Object key) {
+		return null;
+	}
 }
@@ -66,8 +66,21 @@ public class KahluaThread {
 	public static final int OP_CLOSE = 35;
 	public static final int OP_CLOSURE = 36;
 	public static final int OP_VARARG = 37;
+
+	// Superinstructions, only found in Prototype.getDecoded()
+	public static final int OP_EQ_JMP = 38;
+	public static final int OP_LT_JMP = 39;
+	public static final int OP_LE_JMP = 40;
+	public static final int OP_TEST_JMP = 41;
+	public static final int OP_GETTABLE_CALL = 42;
+
 	public static final int MAX_INDEX_RECURSION = 100;
 
+	/** The instruction budget raises an InstructionBudgetException when used up */
+	public static final int BUDGET_ERROR = 0;
+	/** The instruction budget yields the running coroutine when used up, if it can */
+	public static final int BUDGET_YIELD = 1;
+
     protected static final String meta_ops[];
     static {
         meta_ops = new String[38];
@@ -90,6 +103,12 @@ public class KahluaThread {
 	private final PrintStream out;
 	private final Platform platform;
 
+	private long budget = -1;
+	private int budgetInterval;
+	private int budgetMode;
+	private int budgetSlice = Integer.MAX_VALUE;
+	private int budgetCountdown = Integer.MAX_VALUE;
+
 	public KahluaThread(Platform platform, KahluaTable environment) {
 		this(System.out, platform, environment);
 	}
@@ -173,38 +192,56 @@ public class KahluaThread {
 		return f;
 	}
 
+	// OP_GETTABLE_CALL deliberately falls through into OP_CALL
+	@SuppressWarnings("fallthrough")
 	protected void luaMainloop() {
 		LuaCallFrame callFrame = currentCoroutine.currentCallFrame();
 		LuaClosure closure = callFrame.closure;
 		Prototype prototype = closure.prototype;
-		int[] opcodes = prototype.code;
+		int[] decoded = prototype.getDecoded();
 
 		int returnBase = callFrame.returnBase;
 
 		while (true) {
 			try {
+				if (--budgetCountdown < 0 && budgetExpired(callFrame.canYield)) {
+					// suspended between two instructions, resume continues at pc
+					Coroutine.yieldHelper(callFrame, callFrame, 0);
+
+					callFrame = currentCoroutine.currentCallFrame();
+					if (callFrame == null || callFrame.isJava()) {
+						return;
+					}
+
+					closure = callFrame.closure;
+					prototype = closure.prototype;
+					decoded = prototype.getDecoded();
+					returnBase = callFrame.returnBase;
+
+					if (callFrame.restoreTop) {
+						callFrame.setTop(prototype.maxStacksize);
+					}
+					continue;
+				}
+
 				int a, b, c;
 
-				int op = opcodes[callFrame.pc++];
-				int opcode = op & 63;
+				int ip = callFrame.pc++ << 2;
+				int opcode = decoded[ip];
+				a = decoded[ip + 1];
+				b = decoded[ip + 2];
+				c = decoded[ip + 3];
 
 				switch (opcode) {
 				case OP_MOVE: {
-					a = getA8(op);
-					b = getB9(op);
 					callFrame.set(a, callFrame.get(b));
 					break;
 				}
 				case OP_LOADK: {
-					a = getA8(op);
-					b = getBx(op);
 					callFrame.set(a, prototype.constants[b]);
 					break;
 				}
 				case OP_LOADBOOL: {
-					a = getA8(op);
-					b = getB9(op);
-					c = getC9(op);
 					Boolean bool = b == 0 ? Boolean.FALSE : Boolean.TRUE;
 					callFrame.set(a, bool);
 					if (c != 0) {
@@ -213,30 +250,20 @@ public class KahluaThread {
 					break;
 				}
 				case OP_LOADNIL: {
-					a = getA8(op);
-					b = getB9(op);
 					callFrame.stackClear(a, b);
 					break;
 				}
 				case OP_GETUPVAL: {
-					a = getA8(op);
-					b = getB9(op);
 					UpValue uv = closure.upvalues[b];
 					callFrame.set(a, uv.getValue());
 					break;
 				}
 				case OP_GETGLOBAL: {
-					a = getA8(op);
-					b = getBx(op);
 					Object res = tableGet(closure.env, prototype.constants[b]);
 					callFrame.set(a, res);
 					break;
 				}
 				case OP_GETTABLE: {
-					a = getA8(op);
-					b = getB9(op);
-					c = getC9(op);
-
 					Object bObj = callFrame.get(b);
 
 					Object key = getRegisterOrConstant(callFrame, c, prototype);
@@ -246,8 +273,6 @@ public class KahluaThread {
 					break;
 				}
 				case OP_SETGLOBAL: {
-					a = getA8(op);
-					b = getBx(op);
 					Object value = callFrame.get(a);
 					Object key = prototype.constants[b];
 
@@ -256,19 +281,12 @@ public class KahluaThread {
 					break;
 				}
 				case OP_SETUPVAL: {
-					a = getA8(op);
-					b = getB9(op);
-
 					UpValue uv = closure.upvalues[b];
 					uv.setValue(callFrame.get(a));
 
 					break;
 				}
 				case OP_SETTABLE: {
-					a = getA8(op);
-					b = getB9(op);
-					c = getC9(op);
-
 					Object aObj = callFrame.get(a);
 
 					Object key = getRegisterOrConstant(callFrame, b, prototype);
@@ -279,22 +297,12 @@ public class KahluaThread {
 					break;
 				}
 				case OP_NEWTABLE: {
-					a = getA8(op);
-
-					// Used to set up initial array and hash size - not
-					// implemented
-					// b = getB9(op);
-					// c = getC9(op);
-
-					KahluaTable t = platform.newTable();
+					// b and c are the array and hash size hints
+					KahluaTable t = platform.newTable(b, c);
 					callFrame.set(a, t);
 					break;
 				}
 				case OP_SELF: {
-					a = getA8(op);
-					b = getB9(op);
-					c = getC9(op);
-
 					Object key = getRegisterOrConstant(callFrame, c, prototype);
 					Object bObj = callFrame.get(b);
 
@@ -310,10 +318,6 @@ public class KahluaThread {
 				case OP_DIV:
 				case OP_MOD:
 				case OP_POW: {
-					a = getA8(op);
-					b = getB9(op);
-					c = getC9(op);
-
 					Object bo = getRegisterOrConstant(callFrame, b, prototype);
 					Object co = getRegisterOrConstant(callFrame, c, prototype);
 
@@ -335,8 +339,6 @@ public class KahluaThread {
 					break;
 				}
 				case OP_UNM: {
-					a = getA8(op);
-					b = getB9(op);
 					Object aObj = callFrame.get(b);
 
 					Double aDouble = KahluaUtil.rawTonumber(aObj);
@@ -352,16 +354,11 @@ public class KahluaThread {
 					break;
 				}
 				case OP_NOT: {
-					a = getA8(op);
-					b = getB9(op);
 					Object aObj = callFrame.get(b);
 					callFrame.set(a, KahluaUtil.toBoolean(!KahluaUtil.boolEval(aObj)));
 					break;
 				}
 				case OP_LEN: {
-					a = getA8(op);
-					b = getB9(op);
-
 					Object o = callFrame.get(b);
 					Object res;
 					if (o instanceof KahluaTable) {
@@ -379,10 +376,6 @@ public class KahluaThread {
 					break;
 				}
 				case OP_CONCAT: {
-					a = getA8(op);
-					b = getB9(op);
-					c = getC9(op);
-
 					int first = b;
 					int last = c;
 
@@ -438,110 +431,97 @@ public class KahluaThread {
 					break;
 				}
 				case OP_JMP: {
-					callFrame.pc += getSBx(op);
+					callFrame.pc += b;
 					break;
 				}
+				case OP_EQ_JMP:
+				case OP_LT_JMP:
+				case OP_LE_JMP:
 				case OP_EQ:
 				case OP_LT:
 				case OP_LE: {
-					a = getA8(op);
-					b = getB9(op);
-					c = getC9(op);
+					boolean fused = opcode >= OP_EQ_JMP;
+					if (fused) {
+						opcode += OP_EQ - OP_EQ_JMP;
+					}
 
 					Object bo = getRegisterOrConstant(callFrame, b, prototype);
 					Object co = getRegisterOrConstant(callFrame, c, prototype);
 
+					boolean resBool;
 					if (bo instanceof Double && co instanceof Double) {
 						double bd_primitive = KahluaUtil.fromDouble(bo);
 						double cd_primitive = KahluaUtil.fromDouble(co);
 
 						if (opcode == OP_EQ) {
-							if ((bd_primitive == cd_primitive) == (a == 0)) {
-								callFrame.pc++;
-							}
-						} else {
-							if (opcode == OP_LT) {
-								if ((bd_primitive < cd_primitive) == (a == 0)) {
-									callFrame.pc++;
-								}
-							} else { // opcode must be OP_LE
-								if ((bd_primitive <= cd_primitive) == (a == 0)) {
-									callFrame.pc++;
-								}
-							}
+							resBool = bd_primitive == cd_primitive;
+						} else if (opcode == OP_LT) {
+							resBool = bd_primitive < cd_primitive;
+						} else { // opcode must be OP_LE
+							resBool = bd_primitive <= cd_primitive;
 						}
 					} else if (bo instanceof String && co instanceof String) {
 						if (opcode == OP_EQ) {
-							if ((bo.equals(co)) == (a == 0)) {
-								callFrame.pc++;
-							}
+							resBool = bo.equals(co);
 						} else {
 							String bs = (String) bo;
 							String cs = (String) co;
 							int cmp = bs.compareTo(cs);
 
 							if (opcode == OP_LT) {
-								if ((cmp < 0) == (a == 0)) {
-									callFrame.pc++;
-								}
+								resBool = cmp < 0;
 							} else { // opcode must be OP_LE
-								if ((cmp <= 0) == (a == 0)) {
-									callFrame.pc++;
-								}
+								resBool = cmp <= 0;
 							}
 						}
+					} else if (bo == co && opcode == OP_EQ) {
+						resBool = true;
 					} else {
-						boolean resBool;
-						if (bo == co && opcode == OP_EQ) {
-							resBool = true;
-						} else {
-							boolean invert = false;
-
-							String meta_op = meta_ops[opcode];
+						boolean invert = false;
 
-							Object metafun = getCompMetaOp(bo, co, meta_op);
+						String meta_op = meta_ops[opcode];
 
-							/*
-							 * Special case: OP_LE uses OP_LT if __le is not
-							 * defined. a <= b is then translated to not (b < a)
-							 */
-							if (metafun == null && opcode == OP_LE) {
-								metafun = getCompMetaOp(bo, co, "__lt");
+						Object metafun = getCompMetaOp(bo, co, meta_op);
 
-								// Swap the objects
-								Object tmp = bo;
-								bo = co;
-								co = tmp;
+						/*
+						 * Special case: OP_LE uses OP_LT if __le is not
+						 * defined. a <= b is then translated to not (b < a)
+						 */
+						if (metafun == null && opcode == OP_LE) {
+							metafun = getCompMetaOp(bo, co, "__lt");
 
-								// Invert a (i.e. add the "not"
-								invert = true;
-							}
+							// Swap the objects
+							Object tmp = bo;
+							bo = co;
+							co = tmp;
 
-							if (metafun == null && opcode == OP_EQ) {
-								resBool = BaseLib.luaEquals(bo, co);
-							} else {
-								if (metafun == null) {
-									KahluaUtil.fail((meta_op + " not defined for operand"));
-								}
-								Object res = call(metafun, bo, co, null);
-								resBool = KahluaUtil.boolEval(res);
-							}
+							// Invert a (i.e. add the "not"
+							invert = true;
+						}
 
-							if (invert) {
-								resBool = !resBool;
+						if (metafun == null && opcode == OP_EQ) {
+							resBool = BaseLib.luaEquals(bo, co);
+						} else {
+							if (metafun == null) {
+								KahluaUtil.fail((meta_op + " not defined for operand"));
 							}
+							Object res = call(metafun, bo, co, null);
+							resBool = KahluaUtil.boolEval(res);
 						}
-						if (resBool == (a == 0)) {
-							callFrame.pc++;
+
+						if (invert) {
+							resBool = !resBool;
 						}
 					}
+					if (resBool == (a == 0)) {
+						callFrame.pc++;
+					} else if (fused) {
+						// take the following OP_JMP here
+						callFrame.pc += decoded[(callFrame.pc << 2) + 2] + 1;
+					}
 					break;
 				}
 				case OP_TEST: {
-					a = getA8(op);
-					// b = getB9(op);
-					c = getC9(op);
-
 					Object value = callFrame.get(a);
 					if (KahluaUtil.boolEval(value) == (c == 0)) {
 						callFrame.pc++;
@@ -549,11 +529,16 @@ public class KahluaThread {
 
 					break;
 				}
+				case OP_TEST_JMP: {
+					Object value = callFrame.get(a);
+					if (KahluaUtil.boolEval(value) == (c == 0)) {
+						callFrame.pc++;
+					} else {
+						callFrame.pc += decoded[(callFrame.pc << 2) + 2] + 1;
+					}
+					break;
+				}
 				case OP_TESTSET: {
-					a = getA8(op);
-					b = getB9(op);
-					c = getC9(op);
-
 					Object value = callFrame.get(b);
 					if (KahluaUtil.boolEval(value) != (c == 0)) {
 						callFrame.set(a, value);
@@ -563,10 +548,18 @@ public class KahluaThread {
 
 					break;
 				}
+				case OP_GETTABLE_CALL: {
+					callFrame.set(a, tableGet(callFrame.get(b),
+							getRegisterOrConstant(callFrame, c, prototype)));
+
+					// continue with the following OP_CALL, falls through
+					// so the call is not duplicated
+					ip = callFrame.pc++ << 2;
+					a = decoded[ip + 1];
+					b = decoded[ip + 2];
+					c = decoded[ip + 3];
+				}
 				case OP_CALL: {
-					a = getA8(op);
-					b = getB9(op);
-					c = getC9(op);
 					int nArguments2 = b - 1;
 					if (nArguments2 != -1) {
 						callFrame.setTop(a + nArguments2 + 1);
@@ -605,7 +598,7 @@ public class KahluaThread {
 						callFrame = newCallFrame;
 						closure = newCallFrame.closure;
 						prototype = closure.prototype;
-						opcodes = prototype.code;
+						decoded = prototype.getDecoded();
 						returnBase = callFrame.returnBase;
 					} else if (fun instanceof JavaFunction) {
 						callJava((JavaFunction) fun, localBase2, returnBase2,
@@ -621,7 +614,7 @@ public class KahluaThread {
 
 						closure = callFrame.closure;
 						prototype = closure.prototype;
-						opcodes = prototype.code;
+						decoded = prototype.getDecoded();
 						returnBase = callFrame.returnBase;
 
 						if (callFrame.restoreTop) {
@@ -639,8 +632,6 @@ public class KahluaThread {
 
 					currentCoroutine.closeUpvalues(base);
 
-					a = getA8(op);
-					b = getB9(op);
 					int nArguments2 = b - 1;
 					if (nArguments2 == -1) {
 						nArguments2 = callFrame.getTop() - a - 1;
@@ -718,14 +709,13 @@ public class KahluaThread {
 
 					closure = callFrame.closure;
 					prototype = closure.prototype;
-					opcodes = prototype.code;
+					decoded = prototype.getDecoded();
 					returnBase = callFrame.returnBase;
 
 					break;
 				}
 				case OP_RETURN: {
-					a = getA8(op);
-					b = getB9(op) - 1;
+					b--;
 
 					int base = callFrame.localBase;
 					currentCoroutine.closeUpvalues(base);
@@ -759,7 +749,7 @@ public class KahluaThread {
 
 						closure = callFrame.closure;
 						prototype = closure.prototype;
-						opcodes = prototype.code;
+						decoded = prototype.getDecoded();
 						returnBase = callFrame.returnBase;
 
 						if (callFrame.restoreTop) {
@@ -772,9 +762,6 @@ public class KahluaThread {
 					break;
 				}
 				case OP_FORPREP: {
-					a = getA8(op);
-					b = getSBx(op);
-
 					double iter = KahluaUtil.fromDouble(callFrame.get(a));
 					double step = KahluaUtil.fromDouble(callFrame.get(a + 2));
 					callFrame.set(a, KahluaUtil.toDouble(iter - step));
@@ -782,8 +769,6 @@ public class KahluaThread {
 					break;
 				}
 				case OP_FORLOOP: {
-					a = getA8(op);
-
 					double iter = KahluaUtil.fromDouble(callFrame.get(a));
 					double end = KahluaUtil.fromDouble(callFrame.get(a + 1));
 					double step = KahluaUtil.fromDouble(callFrame.get(a + 2));
@@ -792,7 +777,6 @@ public class KahluaThread {
 					callFrame.set(a, iterDouble);
 
 					if ((step > 0) ? iter <= end : iter >= end) {
-						b = getSBx(op);
 						callFrame.pc += b;
 						callFrame.set(a + 3, iterDouble);
 					} else {
@@ -801,14 +785,13 @@ public class KahluaThread {
 					break;
 				}
 				case OP_TFORLOOP: {
-					a = getA8(op);
-					c = getC9(op);
-
-					callFrame.setTop(a + 6);
-					callFrame.stackCopy(a, a + 3, 3);
-					call(2);
-					callFrame.clearFromIndex(a + 3 + c);
-					callFrame.setPrototypeStacksize();
+					if (!BaseLib.forloopStep(callFrame, a, c)) {
+						callFrame.setTop(a + 6);
+						callFrame.stackCopy(a, a + 3, 3);
+						call(2);
+						callFrame.clearFromIndex(a + 3 + c);
+						callFrame.setPrototypeStacksize();
+					}
 
 					Object aObj3 = callFrame.get(a + 3);
 					if (aObj3 != null) {
@@ -819,46 +802,35 @@ public class KahluaThread {
 					break;
 				}
 				case OP_SETLIST: {
-					a = getA8(op);
-					b = getB9(op);
-					c = getC9(op);
-
 					if (b == 0) {
 						b = callFrame.getTop() - a - 1;
 					}
 
 					if (c == 0) {
-						c = opcodes[callFrame.pc++];
+						c = prototype.code[callFrame.pc++];
 					}
 
 					int offset = (c - 1) * FIELDS_PER_FLUSH;
 
 					KahluaTable t = (KahluaTable) callFrame.get(a);
-					for (int i = 1; i <= b; i++) {
-						Object key = KahluaUtil.toDouble(offset + i);
-						Object value = callFrame.get(a + i);
-						t.rawset(key, value);
-					}
+					t.setRange(offset + 1, callFrame.coroutine.objectStack,
+							callFrame.localBase + a + 1, b);
 					break;
 				}
 				case OP_CLOSE: {
-					a = getA8(op);
 					callFrame.closeUpvalues(a);
 					break;
 				}
 				case OP_CLOSURE: {
-					a = getA8(op);
-					b = getBx(op);
 					Prototype newPrototype = prototype.prototypes[b];
 					LuaClosure newClosure = new LuaClosure(newPrototype,
 							closure.env);
 					callFrame.set(a, newClosure);
 					int numUpvalues = newPrototype.numUpvalues;
 					for (int i = 0; i < numUpvalues; i++) {
-						op = opcodes[callFrame.pc++];
-						opcode = op & 63;
-						b = getB9(op);
-						switch (opcode) {
+						ip = callFrame.pc++ << 2;
+						b = decoded[ip + 2];
+						switch (decoded[ip]) {
 						case OP_MOVE: {
 							newClosure.upvalues[i] = callFrame.findUpvalue(b);
 							break;
@@ -874,8 +846,7 @@ public class KahluaThread {
 					break;
 				}
 				case OP_VARARG: {
-					a = getA8(op);
-					b = getB9(op) - 1;
+					b--;
 
 					callFrame.pushVarargs(a, b);
 					break;
@@ -903,6 +874,12 @@ public class KahluaThread {
 					callFrame = currentCoroutine.currentCallFrame();
 					if (callFrame == null) {
 						Coroutine parent = currentCoroutine.getParent();
+						if (parent != null && e instanceof InstructionBudgetException) {
+							// Not an error of the coroutine, unwind the parent too
+							currentCoroutine.destroy();
+							currentCoroutine = parent;
+							continue;
+						}
 						if (parent != null) {
 
 							// Copy arguments
@@ -920,7 +897,7 @@ public class KahluaThread {
 							callFrame = currentCoroutine.currentCallFrame();
 							closure = callFrame.closure;
 							prototype = closure.prototype;
-							opcodes = prototype.code;
+							decoded = prototype.getDecoded();
 							returnBase = callFrame.returnBase;
 
 							rethrow = false;
@@ -945,12 +922,82 @@ public class KahluaThread {
 		}
 	}
 
+	/**
+	 * Limit the work of scripts run by this thread, the interpreter counts
+	 * every instruction, compiled code counts loop back-edges and calls.
+	 * The budget is checked every interval counts, when it is used up the
+	 * running coroutine yields (BUDGET_YIELD, if it is in a coroutine that
+	 * can yield there) or an InstructionBudgetException is raised.
+	 * A used up budget keeps firing every interval until it is set again,
+	 * so a script that catches the error with pcall is still stopped.
+	 *
+	 * @param budget a negative budget removes the limit
+	 */
+	public void setInstructionBudget(long budget, int interval, int mode) {
+		KahluaUtil.luaAssert(interval > 0, "interval must be positive");
+		this.budget = budget;
+		this.budgetInterval = interval;
+		this.budgetMode = mode;
+		this.budgetSlice = budget < 0 ? Integer.MAX_VALUE : (int) Math.min(interval, budget);
+		this.budgetCountdown = budgetSlice;
+	}
+
+	/**
+	 * @return the remaining budget, -1 if there is no limit
+	 */
+	public long getInstructionBudget() {
+		if (budget < 0) {
+			return -1;
+		}
+		return Math.max(0, budget - (budgetSlice - Math.max(budgetCountdown, 0)));
+	}
+
+	/**
+	 * Budget probe of compiled code, emitted at loop back-edges and calls.
+	 */
+	public final void checkBudget() {
+		if (--budgetCountdown < 0) {
+			budgetExpired(false);
+		}
+	}
+
+	/**
+	 * Called when the countdown of one interval ran out.
+	 *
+	 * @return true if the interpreter must yield the current coroutine
+	 */
+	private boolean budgetExpired(boolean canYield) {
+		if (budget < 0) {
+			budgetSlice = budgetCountdown = Integer.MAX_VALUE;
+			return false;
+		}
+
+		budget = Math.max(0, budget - budgetSlice);
+		if (budget > 0) {
+			budgetSlice = budgetCountdown = (int) Math.min(budgetInterval, budget);
+			return false;
+		}
+		budgetSlice = budgetCountdown = budgetInterval;
+
+		if (budgetMode == BUDGET_YIELD) {
+			Coroutine coroutine = currentCoroutine;
+			if (coroutine.preempt()) {
+				return false;
+			}
+			if (canYield && coroutine.getParent() != null) {
+				coroutine.preempted = true;
+				return true;
+			}
+		}
+		throw new InstructionBudgetException();
+	}
+
 	public Object getMetaOp(Object o, String meta_op) {
 		KahluaTable meta = (KahluaTable) getmetatable(o, true);
 		if (meta == null) {
 			return null;
 		}
-		return meta.rawget(meta_op);
+		return MetaFlags.get(meta, meta_op);
 	}
 
 	public final Object getCompMetaOp(Object a, Object b, String meta_op) {
@@ -958,8 +1005,11 @@ public class KahluaThread {
 		KahluaTable meta2 = (KahluaTable) getmetatable(b, true);
 		if (meta1 == null || meta2 == null)
 			return null;
-		Object meta_operator1 = meta1.rawget(meta_op);
-		Object meta_operator2 = meta2.rawget(meta_op);
+		Object meta_operator1 = MetaFlags.get(meta1, meta_op);
+		if (meta_operator1 == null) {
+			return null;
+		}
+		Object meta_operator2 = meta1 == meta2 ? meta_operator1 : MetaFlags.get(meta2, meta_op);
 		if (meta_operator1 != meta_operator2 || meta_operator1 == null) {
 			return null;
 		}
@@ -1007,7 +1057,7 @@ public class KahluaThread {
 		return (op >>> 14) - 131071;
 	}
 
-	Double primitiveMath(Double x, Double y, int opcode) {
+	public Double primitiveMath(Double x, Double y, int opcode) {
 		double v1 = KahluaUtil.fromDouble(x);
 		double v2 = KahluaUtil.fromDouble(y);
 		double res = 0;
@@ -1161,11 +1211,15 @@ public class KahluaThread {
 			metatable = t.getMetatable();
 		} else if (metatable == null) {
             KahluaTable metatables = KahluaUtil.getClassMetatables(platform, getEnvironment());
-			metatable = (KahluaTable) tableGet(metatables, o.getClass());
+			if (metatables instanceof ClassMetatables) {
+				metatable = ((ClassMetatables) metatables).lookup(this, o.getClass());
+			} else {
+				metatable = (KahluaTable) tableGet(metatables, o.getClass());
+			}
         }
 
 		if (!raw && metatable != null) {
-			Object meta2 = metatable.rawget("__metatable");
+			Object meta2 = MetaFlags.get(metatable, "__metatable");
 			if (meta2 != null) {
 				return meta2;
 			}
@@ -4,6 +4,9 @@ import se.krka.kahlua.vm2.ClosureInf;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class KahluaUtil {
 	/** @exclude */
@@ -24,13 +27,15 @@ public class KahluaUtil {
     private static final String TYPE_COROUTINE = "coroutine";
 	/** @exclude */
     private static final String TYPE_USERDATA = "userdata";
+	/** @exclude */
+    private static final Map<String, Prototype> sharedPrototypes = new ConcurrentHashMap<String, Prototype>();
 
 	public static double fromDouble(Object o) {
 		return ((Double) o).doubleValue();
 	}
 
 	public static Double toDouble(double d) {
-		return Double.valueOf(d);
+		return DoubleCache.valueOf(d);
 	}
 
 	public static Double toDouble(long d) {
@@ -45,15 +50,58 @@ public class KahluaUtil {
 		return (o != null) && (o != Boolean.FALSE);
 	}
 
+	/**
+	 * Prototypes never change once loaded, so the bundled libraries are only
+	 * read once per JVM and every environment gets a closure over the same
+	 * prototype. They are keyed by the URL the resource was resolved to, a
+	 * different class loader gets its own copy. Any other resource, like a
+	 * module of require, is read again on every call.
+	 */
 	public static LuaClosure loadByteCodeFromResource(String name, KahluaTable environment) {
-		InputStream stream = environment.getClass().getResourceAsStream(name + ".lbc");
-		if (stream == null) {
+		Class<?> c = environment.getClass();
+		if (!isSharedResource(name)) {
+			InputStream stream = c.getResourceAsStream(name + ".lbc");
+			if (stream == null) {
+				return null;
+			}
+			return new LuaClosure(loadPrototype(stream), environment);
+		}
+
+		URL url = c.getResource(name + ".lbc");
+		if (url == null) {
 			return null;
 		}
+		String key = url.toString();
+		Prototype prototype = sharedPrototypes.get(key);
+		if (prototype == null) {
+			try {
+				prototype = loadPrototype(url.openStream());
+			} catch (IOException e) {
+				throw new RuntimeException(e.getMessage());
+			}
+			Prototype old = sharedPrototypes.putIfAbsent(key, prototype);
+			if (old != null) {
+				prototype = old;
+			}
+		}
+		return new LuaClosure(prototype, environment);
+	}
+
+	private static boolean isSharedResource(String name) {
+		return "/stdlib".equals(name) || "/serialize".equals(name);
+	}
+
+	private static Prototype loadPrototype(InputStream stream) {
 		try {
-			return Prototype.loadByteCode(stream, environment);
+			return Prototype.loadByteCode(stream, null).prototype;
 		} catch (IOException e) {
 			throw new RuntimeException(e.getMessage());
+		} finally {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// ignore
+			}
 		}
 	}
 
@@ -109,7 +157,12 @@ public class KahluaUtil {
     }
 
     public static KahluaTable getClassMetatables(Platform platform, KahluaTable env) {
-        return getOrCreateTable(platform, env, "__classmetatables");
+        Object t = env.rawget("__classmetatables");
+        if (t == null || !(t instanceof KahluaTable)) {
+            t = new ClassMetatables(platform.newTable());
+            env.rawset("__classmetatables", t);
+        }
+        return (KahluaTable) t;
     }
 
     public static KahluaThread getWorkerThread(Platform platform, KahluaTable env) {
@@ -126,6 +179,15 @@ public class KahluaUtil {
 	}
 
 
+    /**
+     * Makes t weak as the __mode of its metatable says, or strong again.
+     */
+    public static void setWeakMode(KahluaTable t, KahluaTable meta) {
+        Object mode = meta == null ? null : meta.rawget("__mode");
+        String m = mode instanceof String ? (String) mode : "";
+        t.setWeak(m.indexOf('k') >= 0, m.indexOf('v') >= 0);
+    }
+
     public static KahluaTable getOrCreateTable(Platform platform, KahluaTable env, String name) {
         Object t = env.rawget(name);
         if (t == null || !(t instanceof KahluaTable)) {
@@ -322,6 +384,18 @@ public class KahluaUtil {
 		return res;
 	}
 
+    /**
+     * Decodes a "floating point byte" (eeeeexxx) of the NEWTABLE sizes,
+     * the value is (1xxx) * 2^(eeeee - 1) if eeeee != 0 and xxx otherwise.
+     */
+    public static int fb2int(int x) {
+        int e = (x >> 3) & 31;
+        if (e == 0) {
+            return x;
+        }
+        return ((x & 7) + 8) << (e - 1);
+    }
+
     public static int len(KahluaTable kahluaTable, int low, int high) {
         while (low < high) {
             int middle = (high + low + 1) >> 1;
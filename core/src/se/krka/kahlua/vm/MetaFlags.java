@@ -0,0 +1,112 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm;
+
+
+/**
+ * Remembers which metamethods a metatable does not have, like the
+ * `flags` byte of a table in the reference Lua, so that a miss costs
+ * one bit test instead of a hash lookup.
+ *
+ * The bits are stored in the metatable itself by
+ * {@link KahluaTable#setMetaFlags(int)} and the table clears them on
+ * every rawset. A table which keeps the default methods is simply
+ * never cached. The value given to setMetaFlags is always the value of
+ * getMetaFlags with a bit added, so a table shared between threads can
+ * refuse it when a rawset happened in between.
+ */
+public final class MetaFlags {
+
+  public static final int INDEX     = 1;
+  public static final int NEWINDEX  = 1 << 1;
+  public static final int CALL      = 1 << 2;
+  public static final int EQ        = 1 << 3;
+  public static final int LT        = 1 << 4;
+  public static final int LE        = 1 << 5;
+  public static final int ADD       = 1 << 6;
+  public static final int SUB       = 1 << 7;
+  public static final int MUL       = 1 << 8;
+  public static final int DIV       = 1 << 9;
+  public static final int MOD       = 1 << 10;
+  public static final int POW       = 1 << 11;
+  public static final int UNM       = 1 << 12;
+  public static final int LEN       = 1 << 13;
+  public static final int CONCAT    = 1 << 14;
+  public static final int TOSTRING  = 1 << 15;
+  public static final int METATABLE = 1 << 16;
+
+  /** All flag bits, a table may keep other state in the bits above */
+  public static final int ALL       = (METATABLE << 1) - 1;
+
+
+  private MetaFlags() {}
+
+
+  /**
+   * The bit of a metamethod name, 0 for names that are not cached.
+   */
+  public static int bit(String name) {
+    switch (name) {
+      case "__index":     return INDEX;
+      case "__newindex":  return NEWINDEX;
+      case "__call":      return CALL;
+      case "__eq":        return EQ;
+      case "__lt":        return LT;
+      case "__le":        return LE;
+      case "__add":       return ADD;
+      case "__sub":       return SUB;
+      case "__mul":       return MUL;
+      case "__div":       return DIV;
+      case "__mod":       return MOD;
+      case "__pow":       return POW;
+      case "__unm":       return UNM;
+      case "__len":       return LEN;
+      case "__concat":    return CONCAT;
+      case "__tostring":  return TOSTRING;
+      case "__metatable": return METATABLE;
+      default:            return 0;
+    }
+  }
+
+
+  /**
+   * rawget of a metamethod, a miss is remembered in the metatable.
+   */
+  public static Object get(KahluaTable meta, String name) {
+    int bit = bit(name);
+    if (bit == 0) {
+      return meta.rawget(name);
+    }
+
+    int flags = meta.getMetaFlags();
+    if ((flags & bit) != 0) {
+      return null;
+    }
+
+    Object f = meta.rawget(name);
+    if (f == null) {
+      meta.setMetaFlags(flags | bit);
+    }
+    return f;
+  }
+}
@@ -6,6 +6,14 @@ public interface Platform {
 
     KahluaTable newTable();
 
+    /**
+     * A table expected to get about narray keys 1..narray and nhash other keys,
+     * from the size hints of a table constructor or table.new.
+     */
+    default KahluaTable newTable(int narray, int nhash) {
+        return newTable();
+    }
+
     KahluaTable newEnvironment();
 
 	void setupEnvironment(KahluaTable env);
@@ -50,6 +50,8 @@ public final class Prototype {
 	public int numUpvalues;
 
 	public int maxStacksize;
+
+	private volatile int[] decoded;
 	
 	public Prototype() {
 	}
@@ -146,6 +148,81 @@ public final class Prototype {
 		return name;
 	}
 
+	/**
+	 * The code as the interpreter runs it, four ints per instruction:
+	 * opcode, A, B (Bx or sBx for the ops that use them) and C.
+	 * The sizes of NEWTABLE are already decoded.
+	 * Built on the first call and cached, the pc indexes it like code.
+	 *
+	 * An EQ, LT, LE or TEST followed by JMP and a GETTABLE followed by CALL
+	 * are turned into one superinstruction. The second instruction is kept
+	 * as it is, so jumps into it and the debug lines still work.
+	 */
+	public int[] getDecoded() {
+		int[] d = decoded;
+		if (d == null) {
+			d = decode(code);
+			decoded = d;
+		}
+		return d;
+	}
+
+	private static int[] decode(int[] code) {
+		int len = code.length;
+		int[] d = new int[len << 2];
+		for (int pc = 0; pc < len; pc++) {
+			int op = code[pc];
+			int opcode = op & 63;
+			int i = pc << 2;
+			d[i] = opcode;
+			d[i + 1] = KahluaThread.getA8(op);
+			switch (opcode) {
+			case KahluaThread.OP_LOADK:
+			case KahluaThread.OP_GETGLOBAL:
+			case KahluaThread.OP_SETGLOBAL:
+			case KahluaThread.OP_CLOSURE:
+				d[i + 2] = KahluaThread.getBx(op);
+				break;
+			case KahluaThread.OP_JMP:
+			case KahluaThread.OP_FORPREP:
+			case KahluaThread.OP_FORLOOP:
+				d[i + 2] = KahluaThread.getSBx(op);
+				break;
+			case KahluaThread.OP_NEWTABLE:
+				d[i + 2] = KahluaUtil.fb2int(KahluaThread.getB9(op));
+				d[i + 3] = KahluaUtil.fb2int(KahluaThread.getC9(op));
+				break;
+			default:
+				d[i + 2] = KahluaThread.getB9(op);
+				d[i + 3] = KahluaThread.getC9(op);
+			}
+		}
+
+		for (int pc = 0; pc + 1 < len; pc++) {
+			int i = pc << 2;
+			int next = code[pc + 1] & 63;
+			if (next == KahluaThread.OP_JMP) {
+				switch (d[i]) {
+				case KahluaThread.OP_EQ:
+					d[i] = KahluaThread.OP_EQ_JMP;
+					break;
+				case KahluaThread.OP_LT:
+					d[i] = KahluaThread.OP_LT_JMP;
+					break;
+				case KahluaThread.OP_LE:
+					d[i] = KahluaThread.OP_LE_JMP;
+					break;
+				case KahluaThread.OP_TEST:
+					d[i] = KahluaThread.OP_TEST_JMP;
+					break;
+				}
+			} else if (next == KahluaThread.OP_CALL && d[i] == KahluaThread.OP_GETTABLE) {
+				d[i] = KahluaThread.OP_GETTABLE_CALL;
+			}
+		}
+		return d;
+	}
+
 	// NOTE: known weakness - will crash if a string is longer than 2^16 - 1
 	private static String readLuaString(DataInputStream in, int size_t, boolean littleEndian) throws IOException {
 		long len = 0;
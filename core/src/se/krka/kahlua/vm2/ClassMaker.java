@@ -31,6 +31,9 @@ import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.objectweb.asm.ClassWriter.COMPUTE_FRAMES;
 import static org.objectweb.asm.Opcodes.*;
@@ -47,6 +50,18 @@ import static se.krka.kahlua.vm2.Tool.*;
  */
 public class ClassMaker implements IConst {
 
+  private static final String BOOTSTRAP_SI =
+      "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;";
+  private static final Handle instrumentEnter = new Handle(H_INVOKESTATIC,
+      toClassPath(Instrumentation.class), "enter",
+      BOOTSTRAP_SI +")Ljava/lang/invoke/CallSite;", false);
+  private static final Handle instrumentOp = new Handle(H_INVOKESTATIC,
+      toClassPath(Instrumentation.class), "op",
+      BOOTSTRAP_SI +"I)Ljava/lang/invoke/CallSite;", false);
+
+  /** Method descriptors are resolved by reflection once, shared by all builders */
+  private static final Map<MethodKey, String> methodSi = new ConcurrentHashMap<>();
+
   private ClassWriter cw;
   private FieldVisitor fv;
   private MethodVisitor mv;
@@ -60,6 +75,7 @@ public class ClassMaker implements IConst {
   final String superClassName = toClassPath(scriptSuperClass.getName());
   final String outputDir;
   final DebugInf di;
+  final DebugInf.BuildTimer timer;
 
 
   /**
@@ -70,6 +86,7 @@ public class ClassMaker implements IConst {
     this.className = className;
     this.classPath = toClassPath(className);
     this.di = di;
+    this.timer = di.has(DebugInf.BUILD) ? new DebugInf.BuildTimer() : null;
 
     cw = new ClassWriter(COMPUTE_FRAMES);
     cw.visit(52,
@@ -104,9 +121,12 @@ public class ClassMaker implements IConst {
   public void endMethod(StateBase st) {
     mv.visitInsn(RETURN);
     st.vAllVariables();
+    if (timer != null) timer.lap(DebugInf.BuildTimer.EMIT);
+    // COMPUTE_FRAMES does all the stack map work here
     mv.visitMaxs(0, 0);
     mv.visitEnd();
     mv = null;
+    if (timer != null) timer.lap(DebugInf.BuildTimer.FRAMES);
   }
 
 
@@ -114,11 +134,18 @@ public class ClassMaker implements IConst {
     if (clazz == null) {
       cw.visitEnd();
       byte[] buf = cw.toByteArray();
+      if (timer != null) {
+        timer.lap(DebugInf.BuildTimer.CLASS);
+        timer.classSize(buf.length);
+      }
+
       clazz = LuaClassLoader.instance.defineClass(className, buf);
       cw = null;
+      if (timer != null) timer.lap(DebugInf.BuildTimer.DEFINE);
 
       String outputFile = getOutputFile();
       if (outputFile != null) writeBuf(outputFile, buf);
+      if (timer != null) timer.lap(DebugInf.BuildTimer.WRITE);
     }
     return clazz;
   }
@@ -150,7 +177,9 @@ public class ClassMaker implements IConst {
     InstantiationException, NoSuchMethodException,
     InvocationTargetException {
     Class c = genClass();
-    return (LuaScript) c.getDeclaredConstructor().newInstance();
+    LuaScript ls = (LuaScript) c.getDeclaredConstructor().newInstance();
+    if (timer != null) timer.lap(DebugInf.BuildTimer.INSTANCE);
+    return ls;
   }
 
 
@@ -194,6 +223,12 @@ public class ClassMaker implements IConst {
     s.vCallframe.store();
     s.vCallframe._lock();
 
+    // final Coroutine vCoroutine = vCallframe.coroutine
+    s.vCallframe.load();
+    vField(FR, "coroutine");
+    s.vCoroutine.store();
+    s.vCoroutine._lock();
+
     // final Platform vPlatform = this.platform
     vField("platform");
     s.vPlatform.store();
@@ -220,7 +255,7 @@ public class ClassMaker implements IConst {
     for (int i=0; i<s.vUpvalue.length; ++i) {
       s.vClosure.load();
       vField(LuaClosure.class, "upvalues");
-      mv.visitLdcInsn(i);
+      vInt(i);
       mv.visitInsn(AALOAD);
       LocalVar vu = s.vUpvalue[i];
       vu.store();
@@ -258,7 +293,7 @@ public class ClassMaker implements IConst {
     }
 
     //coroutine.popCallFrame();
-    vField("coroutine");
+    stat.vCoroutine.load();
     vInvokeFunc(CR, "popCallFrame");
 
     s.vError.load();
@@ -293,19 +328,29 @@ public class ClassMaker implements IConst {
   }
 
 
-  void vInvokeFunc(Class owner, String method, Class ...param) {
-    Method m = getMethod(owner, method, param);
+  /**
+   * The descriptor of the method, reflection is only done the first time
+   */
+  public String methodSi(Class<?> c, String m, Class<?> ...param) {
+    MethodKey key = new MethodKey(c, m, param);
+    String si = methodSi.get(key);
+    if (si == null) {
+      si = getMethodSi(getMethod(c, m, param));
+      methodSi.put(key, si);
+    }
+    return si;
+  }
 
+
+  void vInvokeFunc(Class<?> owner, String method, Class<?> ...param) {
     mv.visitMethodInsn(INVOKEVIRTUAL, toClassPath(owner),
-      m.getName(), getMethodSi(m), false);
+      method, methodSi(owner, method, param), false);
   }
 
 
   void vInvokeInterface(Class owner, String method, Class ...param) {
-    Method m = getMethod(owner, method, param);
-
     mv.visitMethodInsn(INVOKEINTERFACE, toClassPath(owner),
-      m.getName(), getMethodSi(m), true);
+      method, methodSi(owner, method, param), true);
   }
 
 
@@ -313,18 +358,15 @@ public class ClassMaker implements IConst {
   void vInvokeFieldFunc(String member, String method, Class ...param) {
     Field f = getField(member);
     Class t = f.getType();
-    Method m = getMethod(t, method, param);
 
     mv.visitMethodInsn(INVOKEVIRTUAL, toClassPath(t),
-      m.getName(), getMethodSi(m), false);
+      method, methodSi(t, method, param), false);
   }
 
 
   void vInvokeStatic(Class owner, String method, Class ...param) {
-    Method m = getMethod(owner, method, param);
-
     mv.visitMethodInsn(INVOKESTATIC, toClassPath(owner),
-      m.getName(), getMethodSi(m), false);
+      method, methodSi(owner, method, param), false);
   }
 
 
@@ -345,14 +387,53 @@ public class ClassMaker implements IConst {
   }
 
 
-  //TODO: optimization
+  /**
+   * Probe of function entry, an empty call unless Instrumentation is enabled
+   */
+  void vInstrumentEnter() {
+    stat.vCI.load();
+    mv.visitInvokeDynamicInsn("enter", "(L"+ toClassPath(CI) +";)V", instrumentEnter);
+  }
+
+
+  /**
+   * Probe of one lua instruction, an empty call unless Instrumentation is enabled
+   */
+  void vInstrumentOp(int opcode) {
+    mv.visitInvokeDynamicInsn("op", "()V", instrumentOp, opcode);
+  }
+
+
+  /**
+   * Instruction budget probe, placed at function entry and loop back-edges
+   */
+  void vCheckBudget() {
+    vThis();
+    vInvokeFunc(LuaScript.class, "checkBudget");
+  }
+
+
   void vInt(int a) {
-    mv.visitLdcInsn(a);
+    if (a >= -1 && a <= 5) {
+      mv.visitInsn(ICONST_0 + a);
+    } else if (a >= Byte.MIN_VALUE && a <= Byte.MAX_VALUE) {
+      mv.visitIntInsn(BIPUSH, a);
+    } else if (a >= Short.MIN_VALUE && a <= Short.MAX_VALUE) {
+      mv.visitIntInsn(SIPUSH, a);
+    } else {
+      mv.visitLdcInsn(a);
+    }
   }
 
 
   void vDouble(double a) {
-    mv.visitLdcInsn(a);
+    if (Double.doubleToRawLongBits(a) == 0L) {
+      mv.visitInsn(DCONST_0);
+    } else if (a == 1.0) {
+      mv.visitInsn(DCONST_1);
+    } else {
+      mv.visitLdcInsn(a);
+    }
   }
 
 
@@ -396,6 +477,12 @@ public class ClassMaker implements IConst {
   }
 
 
+  void vIsNotof(Class<?> s, Label whenNotInstanceof) {
+    mv.visitTypeInsn(INSTANCEOF, toClassPath(s.getName()));
+    mv.visitJumpInsn(IFEQ, whenNotInstanceof);
+  }
+
+
   void vCast(Class s) {
     mv.visitTypeInsn(CHECKCAST, toClassPath(s.getName()));
   }
@@ -521,7 +608,11 @@ public class ClassMaker implements IConst {
    * @param i stack var index
    */
   void vGetStackVar(int i) {
-    vGetStackVar(()->vInt(i));
+    stat.vStack.load();
+    stat.vLocalBase.load();
+    vInt(i);
+    mv.visitInsn(IADD);
+    mv.visitInsn(AALOAD);
   }
 
 
@@ -545,7 +636,7 @@ public class ClassMaker implements IConst {
       vPrint("!!!! stack base changed", a, "~", b);
     });
 
-    vField("coroutine");
+    stat.vCoroutine.load();
     vField(CR, "objectStack");
     a.store();
 
@@ -591,7 +682,7 @@ public class ClassMaker implements IConst {
    * stack variable may change after growing
    */
   void vSyncStack() {
-    vField("coroutine");
+    stat.vCoroutine.load();
     vField(CR, "objectStack");
     stat.vStack.store();
   }
@@ -617,11 +708,26 @@ public class ClassMaker implements IConst {
 //    vInt(i);
 //    bp.param1();
 //    vInvokeFunc(LuaCallFrame.class, "set", I, O);
+    vStackSlot(i);
+    bp.param1();
+    vStoreStackVar();
+  }
+
+
+  /**
+   * Push the stack and the index of R(i), the value pushed after it
+   * is stored by vStoreStackVar(). The hot ops use it instead of
+   * vSetStackVar() so no lambda is made for each instruction.
+   */
+  void vStackSlot(int i) {
     stat.vStack.load();
     stat.vLocalBase.load();
     vInt(i);
     mv.visitInsn(IADD);
-    bp.param1();
+  }
+
+
+  void vStoreStackVar() {
     mv.visitInsn(AASTORE);
   }
 
@@ -639,8 +745,8 @@ public class ClassMaker implements IConst {
 
   void vClearStack(int from, int to) {
     stat.vCallframe.load();
-    mv.visitLdcInsn(from);
-    mv.visitLdcInsn(to);
+    vInt(from);
+    vInt(to);
     vInvokeFunc(LuaCallFrame.class, "stackClear", I, I);
   }
 
@@ -682,7 +788,7 @@ public class ClassMaker implements IConst {
     vThis();
     p.param1();
     p.param2();
-    vInvokeFunc(LuaScript.class, "tableGet", O, O);
+    vTableGet();
   }
 
 
@@ -691,13 +797,31 @@ public class ClassMaker implements IConst {
     p.param1();
     p.param2();
     p.param3();
+    vTableSet();
+  }
+
+
+  /**
+   * this, table and key on the stack
+   */
+  void vTableGet() {
+    vInvokeFunc(LuaScript.class, "tableGet", O, O);
+  }
+
+
+  /**
+   * this, table, key and value on the stack
+   */
+  void vTableSet() {
     vInvokeFunc(LuaScript.class, "tableSet", O, O, O);
   }
 
 
-  void vNewTable() {
+  void vNewTable(int narray, int nhash) {
     stat.vPlatform.load();
-    vInvokeInterface(Platform.class, "newTable");
+    vInt(narray);
+    vInt(nhash);
+    vInvokeInterface(Platform.class, "newTable", int.class, int.class);
   }
 
 
@@ -820,8 +944,11 @@ public class ClassMaker implements IConst {
 
 
   void vToObjectDouble(boolean isString) {
-    Class p = isString ? String.class : D;
-    vInvokeStatic(Double.class, "valueOf", p);
+    if (isString) {
+      vInvokeStatic(Double.class, "valueOf", String.class);
+    } else {
+      vInvokeStatic(KahluaUtil.class, "toDouble", D);
+    }
   }
 
 
@@ -863,7 +990,7 @@ public class ClassMaker implements IConst {
 
   // coroutine.closeUpvalues(base);
   void vCloseCoroutineUpvalues(IBuildParam p) {
-    vField("coroutine");
+    stat.vCoroutine.load();
     p.param1();
     vInvokeFunc(Coroutine.class, "closeUpvalues", I);
   }
@@ -871,7 +998,7 @@ public class ClassMaker implements IConst {
 
   // coroutine.stackCopy(a, returnBase, b);
   void vStackCopy(IBuildParam3 p) {
-    vField("coroutine");
+    stat.vCoroutine.load();
     p.param1();
     p.param2();
     p.param3();
@@ -890,7 +1017,7 @@ public class ClassMaker implements IConst {
 
   // currentCoroutine.setTop(b);
   void vSetCoroutineTop(IBuildParam p) {
-    vField("coroutine");
+    stat.vCoroutine.load();
     p.param1();
     vInvokeFunc(Coroutine.class, "setTop", I);
     vSyncStack();
@@ -905,6 +1032,14 @@ public class ClassMaker implements IConst {
   }
 
 
+  void vSetFrameTop(int top) {
+    stat.vCallframe.load();
+    vInt(top);
+    vInvokeFunc(FR, "setTop", I);
+    vSyncStack();
+  }
+
+
   void vAutoRestoreTop() {
     stat.vCI.load();
     stat.vCallframe.load();
@@ -941,7 +1076,7 @@ public class ClassMaker implements IConst {
 
 
   void vPopFrame() {
-    vField("coroutine");
+    stat.vCoroutine.load();
     vInvokeFunc(CR, "popCallFrame");
   }
 
@@ -1037,8 +1172,7 @@ public class ClassMaker implements IConst {
 
 
   void vPrintStack(int ...i) {
-    vThis();
-    vField(LuaScript.class, "coroutine");
+    stat.vCoroutine.load();
     stat.vCallframe.load();
     vIntArray(i);
     vInvokeStatic(DebugInf.class, "printLuaStack", CR, FR, int[].class);
@@ -1099,4 +1233,28 @@ public class ClassMaker implements IConst {
     }
   }
 
+
+  private static class MethodKey {
+    private final Class<?> owner;
+    private final String name;
+    private final Class<?>[] param;
+    private final int hash;
+
+    private MethodKey(Class<?> owner, String name, Class<?>[] param) {
+      this.owner = owner;
+      this.name = name;
+      this.param = param;
+      this.hash = (owner.hashCode() * 31 + name.hashCode()) * 31 + Arrays.hashCode(param);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof MethodKey)) return false;
+      MethodKey k = (MethodKey) o;
+      return owner == k.owner && name.equals(k.name) && Arrays.equals(param, k.param);
+    }
+  }
 }
@@ -26,6 +26,7 @@ import se.krka.kahlua.luaj.compiler.IInternalCallable;
 import se.krka.kahlua.vm.*;
 
 import java.lang.reflect.Method;
+import java.util.concurrent.atomic.LongAdder;
 
 
 public class ClosureInf implements IInternalCallable {
@@ -46,6 +47,11 @@ public class ClosureInf implements IInternalCallable {
   private int returnBase;
   private int nArguments;
   private int top;
+  private Coroutine coroutine;
+
+  /** @see Instrumentation */
+  final LongAdder executions = new LongAdder();
+  volatile boolean instrumented;
 
 
   public ClosureInf(Prototype prototype,
@@ -79,7 +85,14 @@ public class ClosureInf implements IInternalCallable {
       mc.invoke(ls);
 
     } catch (Throwable e) {
-      throw new LuaFail(e.getCause());
+      Throwable c = e.getCause();
+      if (c == null) c = e;
+      if (c instanceof StackOverflowError) {
+        // Deep recursion of compiled code runs out of java stack
+        // before the call frame limit, report it like the interpreter does
+        c = new LuaFail("Stack overflow");
+      }
+      throw new LuaFail(c);
     }
   }
 
@@ -101,8 +114,16 @@ public class ClosureInf implements IInternalCallable {
   }
 
 
+  /**
+   * The frame is pushed on the coroutine of the caller,
+   * so a compiled function can run inside any coroutine.
+   */
   public void newFrame(Coroutine c) {
-    ComputStack cs = new ComputStack(top, nArguments, localBase, returnBase);
+    if (coroutine != null) {
+      c = coroutine;
+      coroutine = null;
+    }
+    ComputStack cs = new ComputStack(top, nArguments, localBase, returnBase, c);
 
     this.oframe = cs.pushFrame(c, prototype);
     this.ocl = oframe.closure;
@@ -117,6 +138,7 @@ public class ClosureInf implements IInternalCallable {
     this.returnBase = rBase;
     this.nArguments = nArg;
     this.top = -1;
+    this.coroutine = null;
   }
 
 
@@ -125,6 +147,7 @@ public class ClosureInf implements IInternalCallable {
     this.returnBase = cs.returnBase;
     this.nArguments = cs.nArguments;
     this.top = cs.top;
+    this.coroutine = cs.coroutine;
   }
 
 
@@ -47,20 +47,33 @@ public class ComputStack {
   public final int localBase;
   public final int returnBase;
 
+  /**
+   * The coroutine on which the callee frame is pushed,
+   * null means the coroutine bound to the script.
+   */
+  public final Coroutine coroutine;
+
 
   public ComputStack(Coroutine cr, int nArguments) {
     this.top = cr.getTop();
     this.nArguments = nArguments;
     this.localBase = top - nArguments;
     this.returnBase = localBase - 1;
+    this.coroutine = cr;
   }
 
 
   public ComputStack(int t, int na, int lb, int rb) {
+    this(t, na, lb, rb, null);
+  }
+
+
+  public ComputStack(int t, int na, int lb, int rb, Coroutine cr) {
     this.top = t;
     this.nArguments = na;
     this.localBase = lb;
     this.returnBase = rb;
+    this.coroutine = cr;
   }
 
 
@@ -73,6 +86,7 @@ public class ComputStack {
     this.nArguments = nArguments;
     this.localBase = copy.localBase + funcBase + 1;
     this.returnBase = localBase - 1;
+    this.coroutine = copy.coroutine;
   }
 
 
@@ -82,7 +96,7 @@ public class ComputStack {
 
 
   public ComputStack setTop(int nt) {
-    return new ComputStack(nt, nArguments, localBase, returnBase);
+    return new ComputStack(nt, nArguments, localBase, returnBase, coroutine);
   }
 
 
@@ -24,6 +24,9 @@ package se.krka.kahlua.vm2;
 
 import se.krka.kahlua.vm.*;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import static se.krka.kahlua.vm2.KahluaThread2.*;
 
 
@@ -50,7 +53,7 @@ public class DebugInf implements IConst {
   public static final int SHORPS  = 1<<7;
   public static final int STATISTICS = 1<<8;
 
-  public int flag = NONE;
+  public volatile int flag = NONE;
 
   private final static String[] opNames = {
     /*  0 */  "OP_MOVE"
@@ -143,6 +146,16 @@ public class DebugInf implements IConst {
   }
 
 
+  public synchronized void set(int _flag_) {
+    this.flag |= _flag_;
+  }
+
+
+  public static String opName(int opcode) {
+    return opNames[opcode];
+  }
+
+
   public boolean has(int _flag_) {
     return (flag & _flag_) != 0;
   }
@@ -529,29 +542,111 @@ public class DebugInf implements IConst {
 
   public static class Statistics {
 
-    private final int counts[] = new int[opNames.length];
-    private int totalOpCount = 0;
+    // Shared by all the threads which compile lua
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(opNames.length);
+    private final AtomicInteger totalOpCount = new AtomicInteger();
 
 
     public void add(int opcode) {
-      counts[opcode]++;
-      totalOpCount++;
+      counts.incrementAndGet(opcode);
+      totalOpCount.incrementAndGet();
     }
 
 
     public String toString() {
       StringBuilder buf = new StringBuilder(200);
       buf.append("Lua instruction statistics");
-      for (int i=0; i<counts.length; ++i) {
-        double p = ((int)((double)counts[i] / totalOpCount *10000.0) / 100.0);
+      final int total = totalOpCount.get();
+      for (int i=0; i<counts.length(); ++i) {
+        final int c = counts.get(i);
+        double p = ((int)((double)c / total *10000.0) / 100.0);
         buf.append("\n");
         str(buf, 15, opNames[i]);
-        str(buf, 10, counts[i]);
+        str(buf, 10, c);
         str(buf,  8, p);
         buf.append("%");
       }
       buf.append("\n");
-      str(buf, 42, "----- Total: ").append(totalOpCount);
+      str(buf, 42, "----- Total: ").append(total);
+      return buf.toString();
+    }
+  }
+
+
+  /**
+   * Time used by each phase of building one lua file into a class,
+   * printed when the BUILD flag is set.
+   */
+  public static class BuildTimer {
+
+    public static final int EMIT     = 0;
+    public static final int FRAMES   = 1;
+    public static final int CLASS    = 2;
+    public static final int DEFINE   = 3;
+    public static final int WRITE    = 4;
+    public static final int INSTANCE = 5;
+
+    private static final String[] phaseNames = {
+      "emit", "frames", "class", "define", "write", "instance",
+    };
+
+    private final long[] nanos = new long[phaseNames.length];
+    private long mark = System.nanoTime();
+    private int instructions;
+    private int methods;
+    private int classSize;
+
+
+    public void start() {
+      mark = System.nanoTime();
+    }
+
+
+    /**
+     * The time from the last lap (or start) is used by the phase
+     */
+    public void lap(int phase) {
+      long now = System.nanoTime();
+      nanos[phase] += now - mark;
+      mark = now;
+    }
+
+
+    public void method(int instructionCount) {
+      methods++;
+      instructions += instructionCount;
+    }
+
+
+    public void classSize(int size) {
+      classSize = size;
+    }
+
+
+    public double totalMs() {
+      long t = 0;
+      for (long n : nanos) t += n;
+      return t / 1e6;
+    }
+
+
+    /**
+     * Lua instructions emitted per millisecond, frames included
+     */
+    public double throughput() {
+      double ms = (nanos[EMIT] + nanos[FRAMES]) / 1e6;
+      return ms > 0 ? instructions / ms : 0;
+    }
+
+
+    public String toString() {
+      StringBuilder buf = new StringBuilder(200);
+      buf.append(String.format("%.2fms", totalMs()));
+      for (int i=0; i<nanos.length; ++i) {
+        buf.append(String.format(" %s:%.2f", phaseNames[i], nanos[i] / 1e6));
+      }
+      buf.append(String.format(", %d ops in %d methods, %.0f ops/ms, %d bytes",
+          instructions, methods, throughput(), classSize));
       return buf.toString();
     }
   }
@@ -0,0 +1,224 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.vm2;
+
+import java.lang.invoke.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.invoke.MethodType.methodType;
+
+
+/**
+ * Counters of compiled code which can be switched on and off at runtime,
+ * switching only changes the target of the invokedynamic probes.
+ * The generated class always has the probe at function entry and the
+ * probe before every lua instruction.
+ *
+ * All probes of one kind share a MutableCallSite, when disabled
+ * the target is an empty method that the JIT removes entirely,
+ * `syncAll` makes the new target visible to every running thread.
+ * The counters are LongAdder, so enabled probes are thread-safe.
+ */
+public final class Instrumentation {
+
+  public static final int OP_COUNT = 38;
+
+  private static final MethodHandle NOOP;
+  private static final MethodHandle COUNT_OP;
+  private static final MethodHandle COUNT_ENTER;
+
+  private static final MutableCallSite enterSite;
+  private static final MutableCallSite[] opSites = new MutableCallSite[OP_COUNT];
+  private static final LongAdder[] opCounts = new LongAdder[OP_COUNT];
+  private static final Set<ClosureInf> entered =
+      Collections.synchronizedSet(Collections.newSetFromMap(
+          new WeakHashMap<ClosureInf, Boolean>()));
+
+  private static volatile boolean prototypeEnabled;
+  private static volatile boolean opcodeEnabled;
+
+  static {
+    try {
+      MethodHandles.Lookup l = MethodHandles.lookup();
+      NOOP = l.findStatic(Instrumentation.class, "noop", methodType(void.class));
+      COUNT_OP = l.findStatic(Instrumentation.class, "countOp",
+          methodType(void.class, int.class));
+      COUNT_ENTER = l.findStatic(Instrumentation.class, "countEnter",
+          methodType(void.class, ClosureInf.class));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+
+    enterSite = new MutableCallSite(enterTarget(false));
+    for (int i=0; i<OP_COUNT; ++i) {
+      opCounts[i] = new LongAdder();
+      opSites[i] = new MutableCallSite(opTarget(i, false));
+    }
+  }
+
+
+  private Instrumentation() {}
+
+
+  /**
+   * Bootstrap of the probe at the entry of every compiled function,
+   * type is (ClosureInf)V
+   */
+  public static CallSite enter(MethodHandles.Lookup l, String name, MethodType t) {
+    return enterSite;
+  }
+
+
+  /**
+   * Bootstrap of the probe before every lua instruction, type is ()V
+   */
+  public static CallSite op(MethodHandles.Lookup l, String name, MethodType t, int opcode) {
+    return opSites[opcode];
+  }
+
+
+  /**
+   * Switch the counters, running compiled code picks up the change
+   * without being rebuilt.
+   *
+   * @param prototypes count the executions of each compiled function
+   * @param opcodes count every executed lua instruction by opcode
+   */
+  public static synchronized void enable(boolean prototypes, boolean opcodes) {
+    if (prototypes != prototypeEnabled) {
+      prototypeEnabled = prototypes;
+      enterSite.setTarget(enterTarget(prototypes));
+      MutableCallSite.syncAll(new MutableCallSite[] { enterSite });
+    }
+    if (opcodes != opcodeEnabled) {
+      opcodeEnabled = opcodes;
+      for (int i=0; i<OP_COUNT; ++i) {
+        opSites[i].setTarget(opTarget(i, opcodes));
+      }
+      MutableCallSite.syncAll(opSites);
+    }
+  }
+
+
+  public static void disable() {
+    enable(false, false);
+  }
+
+
+  public static boolean isEnabled() {
+    return prototypeEnabled || opcodeEnabled;
+  }
+
+
+  public static long opCount(int opcode) {
+    return opCounts[opcode].sum();
+  }
+
+
+  /**
+   * Executions of the compiled function, since the last reset
+   */
+  public static long executions(ClosureInf ci) {
+    return ci.executions.sum();
+  }
+
+
+  public static synchronized void reset() {
+    for (LongAdder a : opCounts) {
+      a.reset();
+    }
+    for (ClosureInf ci : enteredClosures()) {
+      ci.executions.reset();
+      ci.instrumented = false;
+    }
+    entered.clear();
+  }
+
+
+  public static String report() {
+    StringBuilder buf = new StringBuilder(200);
+    buf.append("Compiled code instrumentation");
+
+    long total = 0;
+    for (LongAdder a : opCounts) total += a.sum();
+    if (total > 0) {
+      for (int i=0; i<OP_COUNT; ++i) {
+        long c = opCounts[i].sum();
+        if (c == 0) continue;
+        buf.append("\n");
+        DebugInf.str(buf, 15, DebugInf.opName(i));
+        DebugInf.str(buf, 14, c);
+      }
+      buf.append("\n");
+      DebugInf.str(buf, 29, "Total: ").append(total);
+    }
+
+    for (ClosureInf ci : enteredClosures()) {
+      buf.append("\n");
+      DebugInf.str(buf, 14, ci.executions.sum());
+      buf.append(Tool.sp).append(ci.prototype).append(Tool.sp).append(ci.funcName);
+    }
+    return buf.toString();
+  }
+
+
+  private static List<ClosureInf> enteredClosures() {
+    synchronized (entered) {
+      return new ArrayList<>(entered);
+    }
+  }
+
+
+  private static MethodHandle enterTarget(boolean enabled) {
+    return enabled ? COUNT_ENTER : MethodHandles.dropArguments(NOOP, 0, ClosureInf.class);
+  }
+
+
+  private static MethodHandle opTarget(int opcode, boolean enabled) {
+    return enabled ? MethodHandles.insertArguments(COUNT_OP, 0, opcode) : NOOP;
+  }
+
+
+  private static void noop() {
+  }
+
+
+  private static void countOp(int opcode) {
+    opCounts[opcode].increment();
+  }
+
+
+  private static void countEnter(ClosureInf ci) {
+    ci.executions.increment();
+    if (!ci.instrumented) {
+      ci.instrumented = true;
+      entered.add(ci);
+    }
+  }
+}
@@ -142,7 +142,7 @@ public class KahluaThread2 extends KahluaThread {
 
   public void setDebug(int ...flag) {
     for (int f : flag) {
-      this.di.flag |= f;
+      this.di.set(f);
     }
   }
 
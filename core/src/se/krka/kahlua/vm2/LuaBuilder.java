@@ -25,6 +25,7 @@ package se.krka.kahlua.vm2;
 
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
+import se.krka.kahlua.stdlib.BaseLib;
 import se.krka.kahlua.vm.*;
 
 import java.lang.reflect.InvocationTargetException;
@@ -69,21 +70,20 @@ public class LuaBuilder implements IConst {
 
 
   public void makeJavacode(Prototype p) {
-    final long start = System.currentTimeMillis();
+    if (cm.timer != null) cm.timer.start();
     cm.defaultConstructor();
 
     ClosureInf root = pushClosure(p, ROOT_FUNCTION_NAME, -1, "<init>");
     newClosureFunction(root);
 
-    if (di.has(DebugInf.BUILD)) {
-      Tool.pl("Build", classPath, "used", System.currentTimeMillis() - start, "ms");
-    }
+    if (cm.timer != null) cm.timer.lap(DebugInf.BuildTimer.EMIT);
   }
 
 
   private void newClosureFunction(ClosureInf ci) {
     final int startIndex = plist.size();
     mv = cm.beginMethod(ci.funcName);
+    if (cm.timer != null) cm.timer.method(ci.prototype.code.length);
     State state = new State(ci);
     cm.updateState(state);
 
@@ -91,10 +91,13 @@ public class LuaBuilder implements IConst {
     int firstLine = ci.prototype.lines[0];
     cm.vLabel(state.initLabel, firstLine);
     cm.vClosureFunctionHeader(state);
+    cm.vInstrumentEnter();
+    cm.vCheckBudget();
     cm.vLabel(state.initOverLabel, firstLine);
 
     while (state.hasNext()) {
       state.readNextOp();
+      cm.vInstrumentOp(opcode);
 
       if (di.flag != DebugInf.NONE) {
         debugOp();
@@ -139,10 +142,12 @@ public class LuaBuilder implements IConst {
 
     private final int[] opcodes;
     private int npc = 0;
+    private int lastLine = -1;
     private int methodLine = 0; //TODO: split function
     private boolean canSplit = true;
 
     public final LocalVar vCallframe;
+    public final LocalVar vCoroutine;
     public final LocalVar vPlatform;
     public final LocalVar vClosure;
     public final LocalVar vPrototype;
@@ -165,6 +170,7 @@ public class LuaBuilder implements IConst {
       this.returnLabel = initLabels();
 
       this.vCallframe = internalVar(FR);
+      this.vCoroutine = internalVar(CR);
       this.vPlatform = internalVar(Platform.class);
       this.vClosure = internalVar(CU);
       this.vPrototype = internalVar(PT);
@@ -212,7 +218,11 @@ public class LuaBuilder implements IConst {
       label = labels[pc];
 
       mv.visitLabel(label);
-      mv.visitLineNumber(line, label);
+      // One line of lua is usually many instructions
+      if (line != lastLine) {
+        mv.visitLineNumber(line, label);
+        lastLine = line;
+      }
       return op;
     }
 
@@ -300,6 +310,10 @@ public class LuaBuilder implements IConst {
       NoSuchMethodException, InstantiationException, IllegalAccessException {
     LuaScript ls = cm.newInstance();
     ls.setClosureInf(plist);
+
+    if (cm.timer != null) {
+      Tool.pl("Build", classPath, cm.timer);
+    }
     return ls;
   }
 
@@ -329,18 +343,18 @@ public class LuaBuilder implements IConst {
     int a = getA8(op);
     int b = getB9(op);
 
-    cm.vSetStackVar(a, () -> {
-      cm.vGetStackVar(b);
-    });
+    cm.vStackSlot(a);
+    cm.vGetStackVar(b);
+    cm.vStoreStackVar();
   }
 
   void op_loadk() {
     int a = getA8(op);
     int b = getBx(op);
 
-    cm.vSetStackVar(a, () -> {
-      cm.vGetConstants(b);
-    });
+    cm.vStackSlot(a);
+    cm.vGetConstants(b);
+    cm.vStoreStackVar();
   }
 
   void op_loadbool(State s) {
@@ -370,28 +384,23 @@ public class LuaBuilder implements IConst {
     int a = getA8(op);
     int b = getBx(op);
 
-    cm.vSetStackVar(a, () -> {
-      cm.vGetGlobalVar(() -> {
-        cm.vGetConstants(b);
-      });
-    });
+    cm.vStackSlot(a);
+    cm.vThis();
+    cm.vEnvironment();
+    cm.vGetConstants(b);
+    cm.vTableGet();
+    cm.vStoreStackVar();
   }
 
   void op_setglobal() {
     final int a = getA8(op);
     final int b = getBx(op);
 
-    cm.vSetTableVar(new IBuildParam3() {
-      public void param1() {
-        cm.vEnvironment();
-      }
-      public void param2() {
-        cm.vGetConstants(b);
-      }
-      public void param3() {
-        cm.vGetStackVar(a);
-      }
-    });
+    cm.vThis();
+    cm.vEnvironment();
+    cm.vGetConstants(b);
+    cm.vGetStackVar(a);
+    cm.vTableSet();
   }
 
   void op_gettable() {
@@ -399,16 +408,12 @@ public class LuaBuilder implements IConst {
     final int b = getB9(op);
     final int c = getC9(op);
 
-    cm.vSetStackVar(a, () -> {
-      cm.vGetTableVar(new IBuildParam2() {
-        public void param1() {
-          cm.vGetStackVar(b);
-        }
-        public void param2() {
-          cm.vGetRegOrConst(c);
-        }
-      });
-    });
+    cm.vStackSlot(a);
+    cm.vThis();
+    cm.vGetStackVar(b);
+    cm.vGetRegOrConst(c);
+    cm.vTableGet();
+    cm.vStoreStackVar();
   }
 
   void op_getupval(State s) {
@@ -434,26 +439,20 @@ public class LuaBuilder implements IConst {
     int b = getB9(op);
     int c = getC9(op);
 
-    final int vTmp = 0;
-
-    cm.vSetTableVar(new IBuildParam3() {
-      public void param1() {
-        cm.vGetStackVar(a);
-      }
-      public void param2() {
-        cm.vGetRegOrConst(b);
-      }
-      public void param3() {
-        cm.vGetRegOrConst(c);
-      }
-    });
+    cm.vThis();
+    cm.vGetStackVar(a);
+    cm.vGetRegOrConst(b);
+    cm.vGetRegOrConst(c);
+    cm.vTableSet();
   }
 
   void op_newtable() {
     int a = getA8(op);
+    int narray = KahluaUtil.fb2int(getB9(op));
+    int nhash = KahluaUtil.fb2int(getC9(op));
 
     cm.vSetStackVar(a, ()->{
-      cm.vNewTable();
+      cm.vNewTable(narray, nhash);
     });
   }
 
@@ -512,9 +511,9 @@ public class LuaBuilder implements IConst {
     math_cal(s, "__pow", false, (bd, cd)->{
       s.vPlatform.load();
       bd.load();
-      cm.vToPrimitiveDouble(false);
+      cm.vToPrimitiveDouble(true);
       cd.load();
-      cm.vToPrimitiveDouble(false);
+      cm.vToPrimitiveDouble(true);
       cm.vInvokeInterface(Platform.class, "pow", D, D);
     });
   }
@@ -525,25 +524,25 @@ public class LuaBuilder implements IConst {
       Label end = new Label();
 
       cd.load();
-      cm.vToPrimitiveDouble(false);
+      cm.vToPrimitiveDouble(true);
       cm.vDouble(0);
       mv.visitInsn(DCMPL);
       mv.visitJumpInsn(IFEQ, v2iszero); // if v4 == 0 goto v2iszero
 
       // v4 != 0
       bd.load();
-      cm.vToPrimitiveDouble(false);
+      cm.vToPrimitiveDouble(true);
       {
         bd.load();
-        cm.vToPrimitiveDouble(false);
+        cm.vToPrimitiveDouble(true);
         cd.load();
-        cm.vToPrimitiveDouble(false);
+        cm.vToPrimitiveDouble(true);
         mv.visitInsn(DDIV);
         mv.visitInsn(D2I);
       }
       mv.visitInsn(I2D);
       cd.load();
-      cm.vToPrimitiveDouble(false);
+      cm.vToPrimitiveDouble(true);
       mv.visitInsn(DMUL);
       mv.visitInsn(DSUB);
 
@@ -558,6 +557,8 @@ public class LuaBuilder implements IConst {
   }
 
   // add sub mul div mod pow
+  // Only the Double fast path is inlined, string coercion and meta methods
+  // are left to LuaScript.arith() to keep each op small.
   void math_cal(State s, String meta_op, boolean popValued, IMathOp primitiveOp) {
     int a = getA8(op);
     int b = getB9(op);
@@ -565,80 +566,47 @@ public class LuaBuilder implements IConst {
 
     final LocalVar bo = s.newVar(O, "bo");
     final LocalVar co = s.newVar(O, "co");
-    final LocalVar bd = s.newVar(O, "bd");
-    final LocalVar cd = s.newVar(O, "cd");
     final LocalVar res = s.newVar(O, "res");
 
     Label saveRes = new Label();
-    Label useMetaOp1 = new Label();
-    Label useMetaOp2 = new Label();
-    Label primitive = new Label();
-
-    {
-      cm.vGetRegOrConst(b);
-      bo.store();
+    Label slow = new Label();
 
-      cm.vGetRegOrConst(c);
-      co.store();
+    cm.vGetRegOrConst(b);
+    bo.store();
+    cm.vGetRegOrConst(c);
+    co.store();
 
-      bo.load();
-      cm.vToNumber(new IToNumber() {
-        public void success() {
-          bd.store();
-
-          co.load();
-          cm.vToNumber(new IToNumber() {
-            public void success() {
-              cd.store();
-              cm.vGoto(primitive);
-            }
-            public void nan() {
-              cm.vPop();
-              cm.vGoto(useMetaOp2);
-            }
-          });
-        }
-        public void nan() {
-          cm.vPop();
-          cm.vGoto(useMetaOp2);
-        }
-      });
-    }
+    bo.load();
+    cm.vIsNotof(Double.class, slow);
+    co.load();
+    cm.vIsNotof(Double.class, slow);
 
     // primitiveMath();
     {
-      cm.vLabel(primitive, line);
-
       if (popValued) {
-        bd.load();
-        cm.vToPrimitiveDouble(false);
-        cd.load();
-        cm.vToPrimitiveDouble(false);
+        bo.load();
+        cm.vToPrimitiveDouble(true);
+        co.load();
+        cm.vToPrimitiveDouble(true);
       }
 
-      primitiveOp.calc(bd, cd);
+      primitiveOp.calc(bo, co);
       // Must TO Double(Object)
       cm.vToObjectDouble(false);
       res.store();
       cm.vGoto(saveRes);
     }
 
-    // useMetaOp()
+    // arith()
     {
-      cm.vLabel(useMetaOp1, line);
-      mv.visitInsn(POP);
-
-      cm.vLabel(useMetaOp2, line);
-      cm.vCallMetaOp(meta_op, new IBuildParam2() {
-        public void param1() {
-          bo.load();
-        }
-        public void param2() {
-          co.load();
-        }
-      });
+      cm.vLabel(slow, line);
+      cm.vThis();
+      bo.load();
+      co.load();
+      cm.vInt(opcode);
+      cm.vString(meta_op);
+      cm.vInvokeFunc(LuaScript.class, "arith", O, O, I, S);
       res.store();
-      cm.vGoto(saveRes);
     }
 
     // saveRes()
@@ -660,7 +628,7 @@ public class LuaBuilder implements IConst {
       public void success() {
         cm.vInvokeFunc(Double.class, "doubleValue");
         mv.visitInsn(DNEG);
-        cm.vInvokeStatic(Double.class, "valueOf", D);
+        cm.vToObjectDouble(false);
         res.store();
       }
 
@@ -779,6 +747,9 @@ public class LuaBuilder implements IConst {
   void op_jmp(State s) {
     final int a = getA8(op);
     final int i = getSBx(op);
+    if (i < 0) {
+      cm.vCheckBudget();
+    }
     cm.vGoto(s.jumpToLabel(i));
 
     if (a > 0) {
@@ -1058,6 +1029,7 @@ public class LuaBuilder implements IConst {
     final IIF checkloop = new IIF() {
       public void doThen() {
         cm.vSetStackVar(a + 3, ()-> iter.load());
+        cm.vCheckBudget();
         cm.vGoto(jumpTo);
       }
       public void doElse() {
@@ -1092,27 +1064,34 @@ public class LuaBuilder implements IConst {
     final int a = getA8(op);
     final int c = getC9(op);
 
-    cm.vSetFrameTop(()-> cm.vInt(a + 6));
-    cm.vFrameStackCopy(new IBuildParam3() {
-      public void param1() {
-        cm.vInt(a);
-      }
-      public void param2() {
-        cm.vInt(a +3);
-      }
-      public void param3() {
-        cm.vInt(3);
-      }
-    });
+    // next and ipairs over a table are stepped without a call
+    stat.vCallframe.load();
+    cm.vInt(a);
+    cm.vInt(c);
+    cm.vInvokeStatic(BaseLib.class, "forloopStep", FR, I, I);
+    cm.vIf(IFEQ, ()-> {
+      cm.vSetFrameTop(()-> cm.vInt(a + 6));
+      cm.vFrameStackCopy(new IBuildParam3() {
+        public void param1() {
+          cm.vInt(a);
+        }
+        public void param2() {
+          cm.vInt(a +3);
+        }
+        public void param3() {
+          cm.vInt(3);
+        }
+      });
 
-    cm.vThis();
-    cm.vInt(2);
-    cm.vInvokeFunc(LS, "call", I);
-    cm.vPop(); // drop return value
+      cm.vThis();
+      cm.vInt(2);
+      cm.vInvokeFunc(LS, "call", I);
+      cm.vPop(); // drop return value
 
-    cm.vClearStack(a + 3 + c);
-    stat.vCallframe.load();
-    cm.vInvokeFunc(FR, "setPrototypeStacksize");
+      cm.vClearStack(a + 3 + c);
+      stat.vCallframe.load();
+      cm.vInvokeFunc(FR, "setPrototypeStacksize");
+    });
 
     cm.vGetStackVar(a + 3);
     cm.vIf(IFNONNULL, new IIF() {
@@ -1138,74 +1117,27 @@ public class LuaBuilder implements IConst {
     int b = getB9(op);
     int c = getC9(op);
 
-    final LocalVar count = state.newVar(I, "count");
-    final LocalVar table = state.newVar(O, "table");
-    final LocalVar offset = state.newVar(I, "offset");
-    final LocalVar i = state.newVar(I, "i");
-
-    final Label check = new Label();
-    final Label forend = new Label();
-
-    if (b != 0) {
-      cm.vInt(b);
-      count.store();
-    } else {
-      cm.vGetTop();
-      cm.vInt(a);
-      mv.visitInsn(ISUB);
-      cm.vInt(1);
-      mv.visitInsn(ISUB);
-      count.store();
-    }
-
     if (c == 0) {
       c = state.readNextOp();
     }
-    cm.vInt((c - 1) * KahluaThread2.FIELDS_PER_FLUSH);
-    offset.store();
 
+    // table.setRange(offset + 1, stack, localBase + a + 1, count)
     cm.vGetStackVar(a);
     cm.vCast(KahluaTable.class);
-    table.store();
-
-    // init for()
-    cm.vInt(1);
-    i.store();
-    cm.vGoto(check);
-
-    // check for()
-    mv.visitLabel(check);
-    i.load();
-    count.load();
-    cm.vIf(IF_ICMPLE, new IIF() {
-      public void doThen() {
-        table.load();
-        // param1
-        offset.load();
-        i.load();
-        mv.visitInsn(IADD);
-        mv.visitInsn(I2D);
-        cm.vToObjectDouble(false);
-        // param2
-        cm.vGetStackVar(()->{
-          cm.vInt(a);
-          i.load();
-          mv.visitInsn(IADD);
-        });
-        cm.vInvokeInterface(KahluaTable.class, "rawset", O,O);
-      }
-      public void doElse() {
-        cm.vGoto(forend);
-      }
-    });
-    i.load();
-    cm.vInt(1);
+    cm.vInt((c - 1) * KahluaThread2.FIELDS_PER_FLUSH + 1);
+    state.vStack.load();
+    state.vLocalBase.load();
+    cm.vInt(a + 1);
     mv.visitInsn(IADD);
-    i.store();
-    cm.vGoto(check);
 
-    // end for()
-    mv.visitLabel(forend);
+    if (b != 0) {
+      cm.vInt(b);
+    } else {
+      cm.vGetTop();
+      cm.vInt(a + 1);
+      mv.visitInsn(ISUB);
+    }
+    cm.vInvokeInterface(KahluaTable.class, "setRange", I, Object[].class, I, I);
   }
 
 
@@ -1245,7 +1177,7 @@ public class LuaBuilder implements IConst {
     cm.vSetRestoreTop(c != 0);
 
     if (b != 0) {
-      cm.vSetFrameTop(()-> cm.vInt(a+b)); // is right
+      cm.vSetFrameTop(a+b); // is right
       cm.vInt(b - 1);
       nArguments2.store();
     } else {
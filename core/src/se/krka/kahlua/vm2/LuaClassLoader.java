@@ -23,30 +23,36 @@
 package se.krka.kahlua.vm2;
 
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class LuaClassLoader extends ClassLoader {
 
   public static final LuaClassLoader instance = new LuaClassLoader();
-  private Map<String, Class<?>> cache;
+  private final Map<String, Class<?>> cache;
 
 
   public LuaClassLoader() {
-    cache = new HashMap<>();
+    cache = new ConcurrentHashMap<>();
   }
 
 
   /**
    * If a class is defined repeatedly, a java.lang.LinkageError will be thrown.
+   * A class already defined is found without taking the lock.
    */
-  public synchronized Class defineClass(String name, byte[] code) {
+  public Class defineClass(String name, byte[] code) {
     Class r = cache.get(name);
     if (r == null) {
-      r = defineClass(name, code, 0, code.length);
-      cache.put(name, r);
+      synchronized (this) {
+        r = cache.get(name);
+        if (r == null) {
+          r = defineClass(name, code, 0, code.length);
+          cache.put(name, r);
+        }
+      }
     }
     return r;
   }
-}
\ No newline at end of file
+}
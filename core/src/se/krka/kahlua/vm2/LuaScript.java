@@ -75,6 +75,11 @@ public abstract class LuaScript implements Runnable, IConst {
   }
 
 
+  protected void checkBudget() {
+    t.checkBudget();
+  }
+
+
   protected void fail(String msg) {
     throw new LuaFail(msg);
   }
@@ -104,6 +109,19 @@ public abstract class LuaScript implements Runnable, IConst {
   }
 
 
+  /**
+   * Slow path of add/sub/mul/div/mod/pow, when an operand is not a Double.
+   */
+  protected Object arith(Object a, Object b, int opcode, String op) {
+    Double ad = KahluaUtil.rawTonumber(a);
+    Double bd = KahluaUtil.rawTonumber(b);
+    if (ad != null && bd != null) {
+      return t.primitiveMath(ad, bd, opcode);
+    }
+    return metaOp(a, b, op);
+  }
+
+
   //TODO: optimization
   protected Object call(Object func, Object a1, Object a2, Object a3) {
     return t.call(func, a1, a2, a3);
@@ -269,15 +287,22 @@ public abstract class LuaScript implements Runnable, IConst {
         cs.top,
         nArguments2 + 1, // nArguments2 += 1;
         cs.returnBase, // localBase2 = returnBase2;
-        cs.returnBase
+        cs.returnBase,
+        cs.coroutine
       );
       function = funcMeta;
     }
   }
 
 
+  private Coroutine coroutineOf(ComputStack cs) {
+    return cs.coroutine != null ? cs.coroutine : coroutine;
+  }
+
+
   private void callJava(JavaFunction javaf, ComputStack cs) {
-    LuaCallFrame oframe = cs.pushFrame(coroutine, javaf);
+    final Coroutine c = coroutineOf(cs);
+    LuaCallFrame oframe = cs.pushFrame(c, javaf);
     //oframe.setTop(cs.top);
 
     int nReturnValues = javaf.call(oframe, cs.nArguments);
@@ -288,7 +313,7 @@ public abstract class LuaScript implements Runnable, IConst {
     oframe.stackCopy(actualReturnBase, diff, nReturnValues);
     oframe.setTop(nReturnValues + diff);
 
-    this.coroutine.popCallFrame();
+    c.popCallFrame();
   }
 
 
@@ -299,9 +324,10 @@ public abstract class LuaScript implements Runnable, IConst {
    */
   private void callOld(LuaClosure c, ComputStack cs) {
     //TODO: Need restoreTop set top if exception
-    KahluaThread2 t = new KahluaThread2(platform, coroutine.environment);
+    final Coroutine cr = coroutineOf(cs);
+    KahluaThread2 t = new KahluaThread2(platform, cr.environment);
     t.setDebug(debugFlag);
-    t.call(c, coroutine, cs.nArguments);
+    t.call(c, cr, cs.nArguments);
   }
 
 
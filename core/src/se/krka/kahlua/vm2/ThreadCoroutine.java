@@ -0,0 +1,392 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm2;
+
+import se.krka.kahlua.vm.*;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * The body of this coroutine runs on its own java thread, resume and yield
+ * hand control back and forth, so only one side is running at any time.
+ * The java stack of a suspended coroutine is simply parked, that is why
+ * compiled code (which has no interpreter frames to save) can yield
+ * from any call depth, even across pcall or a java function.
+ *
+ * With a virtual thread factory a parked coroutine costs a few hundred bytes,
+ * with platform threads every live coroutine holds a real thread.
+ *
+ * This object is only the handle lua sees, the stacks belong to a
+ * {@link Body} that is referenced by the parked thread. The body keeps
+ * the handle weakly, when lua drops a coroutine that never finished its
+ * thread is killed. A body that refers to its own handle (an upvalue of
+ * the function, for example) keeps it alive until it is killed by hand.
+ *
+ * @see ThreadCoroutineLib
+ */
+public class ThreadCoroutine extends Coroutine {
+
+  private static final int RESUME = 0;
+  private static final int YIELD  = 1;
+  private static final int RETURN = 2;
+  private static final int ERROR  = 3;
+
+  private static final ReferenceQueue<ThreadCoroutine> unreachable =
+      new ReferenceQueue<>();
+  private static Thread reaper;
+
+  private final Body body;
+
+
+  public ThreadCoroutine(Platform p, KahluaTable env, Object function, ThreadFactory f) {
+    super(p, env);
+    this.body = new Body(this, p, env, function, f);
+  }
+
+
+  /**
+   * The handle of a coroutine that runs on its own thread,
+   * any other coroutine is returned as it is.
+   */
+  public static Coroutine visible(Coroutine c) {
+    if (c instanceof Body) {
+      return ((Body) c).handle.get();
+    }
+    return c;
+  }
+
+
+  /**
+   * True if c is the running side of a ThreadCoroutine.
+   */
+  public static boolean isBody(Coroutine c) {
+    return c instanceof Body;
+  }
+
+
+  /**
+   * Called on the thread of the caller, blocks until the body yields,
+   * returns or fails. Results are pushed like coroutine.resume does.
+   */
+  public int resume(LuaCallFrame callFrame, int nArguments) {
+    Baton r = body.handOff(callFrame, args(callFrame, 1, nArguments));
+
+    if (r.kind == ERROR) {
+      rethrowBudget(r);
+      callFrame.push(Boolean.FALSE);
+      callFrame.push(r.values[0]);
+      callFrame.push(r.values[1]);
+      return 3;
+    }
+    callFrame.push(Boolean.TRUE);
+    return pushAll(callFrame, r.values) + 1;
+  }
+
+
+  /**
+   * Resume for coroutine.wrap, all arguments go to the body,
+   * the error of the body is raised in the caller.
+   */
+  public int resumeWrapped(LuaCallFrame callFrame, int nArguments) {
+    Baton r = body.handOff(callFrame, args(callFrame, 0, nArguments));
+
+    if (r.kind == ERROR) {
+      rethrowBudget(r);
+      throw new KahluaException(r.values[0]);
+    }
+    return pushAll(callFrame, r.values);
+  }
+
+
+  /**
+   * Called on the body thread, parks it until the next resume.
+   * The arguments of that resume become the results of yield.
+   *
+   * @param c the coroutine of the calling frame, must be a body
+   */
+  public static int yield(Coroutine c, LuaCallFrame callFrame, int nArguments) {
+    return ((Body) c).yield(callFrame, nArguments);
+  }
+
+
+  /**
+   * The instruction budget is not an error of the coroutine,
+   * it goes on in the caller.
+   */
+  private static void rethrowBudget(Baton r) {
+    InstructionBudgetException e = InstructionBudgetException.find(r.values[2]);
+    if (e != null) {
+      throw e;
+    }
+  }
+
+
+  private static Object[] args(LuaCallFrame callFrame, int from, int nArguments) {
+    Object[] a = new Object[nArguments > from ? nArguments - from : 0];
+    for (int i = 0; i < a.length; ++i) {
+      a[i] = callFrame.get(i + from);
+    }
+    return a;
+  }
+
+
+  private static int pushAll(LuaCallFrame callFrame, Object[] values) {
+    for (Object v : values) {
+      callFrame.push(v);
+    }
+    return values.length;
+  }
+
+
+  private static Object errorMessage(Throwable e) {
+    for (Throwable c = e; c != null; c = c.getCause()) {
+      if (c instanceof KahluaException) {
+        return ((KahluaException) c).errorMessage;
+      }
+      if (c.getCause() == null) {
+        return c.getMessage();
+      }
+    }
+    return e.getMessage();
+  }
+
+
+  /**
+   * Stop a suspended coroutine that will never be resumed,
+   * its thread is released by unwinding the body with an error.
+   */
+  public void kill() {
+    body.kill();
+  }
+
+
+  @Override
+  public String getStatus() {
+    return body.getStatus();
+  }
+
+
+  /**
+   * Kills the bodies whose handle was collected, started with the first body.
+   */
+  private static synchronized void startReaper() {
+    if (reaper != null) {
+      return;
+    }
+    reaper = new Thread(new Runnable() {
+      public void run() {
+        for (;;) {
+          try {
+            ((Handle) unreachable.remove()).body.kill();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }, "kahlua-coroutine-reaper");
+    reaper.setDaemon(true);
+    reaper.start();
+  }
+
+
+  private static class Handle extends WeakReference<ThreadCoroutine> {
+    final Body body;
+
+    Handle(ThreadCoroutine c, Body body) {
+      super(c, unreachable);
+      this.body = body;
+    }
+  }
+
+
+  /**
+   * The coroutine that really runs on the body thread.
+   */
+  private static class Body extends Coroutine {
+    private final Handle handle;
+    private final Object function;
+    private final ThreadFactory factory;
+    private final SynchronousQueue<Baton> toBody = new SynchronousQueue<>();
+    private final SynchronousQueue<Baton> toCaller = new SynchronousQueue<>();
+
+    private Thread runner;
+    private volatile boolean dead;
+    private volatile boolean killed;
+
+
+    Body(ThreadCoroutine c, Platform p, KahluaTable env, Object function, ThreadFactory f) {
+      super(p, env);
+      this.handle = new Handle(c, this);
+      this.function = function;
+      this.factory = f;
+    }
+
+
+    Baton handOff(LuaCallFrame callFrame, Object[] args) {
+      String status = getStatus();
+      if (status != "suspended") {
+        return new Baton(ERROR, new Object[] {
+            "Can not resume coroutine that is in status: "+ status, "", null });
+      }
+
+      Coroutine caller = callFrame.coroutine;
+      KahluaThread kt = callFrame.getThread();
+      resume(caller);
+      kt.currentCoroutine = this;
+
+      try {
+        if (runner == null) {
+          startReaper();
+          runner = factory.newThread(this::run);
+          runner.start();
+        }
+        toBody.put(new Baton(RESUME, args));
+        return toCaller.take();
+      } catch (InterruptedException e) {
+        throw new LuaFail(e);
+      } finally {
+        kt.currentCoroutine = caller;
+        destroy();
+      }
+    }
+
+
+    int yield(LuaCallFrame callFrame, int nArguments) {
+      Object[] values = args(callFrame, 0, nArguments);
+      park(new Baton(YIELD, values));
+      Baton r;
+      try {
+        r = toBody.take();
+      } catch (InterruptedException e) {
+        throw killedFail();
+      }
+      return pushAll(callFrame, r.values);
+    }
+
+
+    /**
+     * Yield without values from the body thread, the values of the
+     * next resume are dropped. Used by the instruction budget.
+     */
+    @Override
+    public boolean preempt() {
+      park(new Baton(YIELD, new Object[0]));
+      try {
+        toBody.take();
+      } catch (InterruptedException e) {
+        throw killedFail();
+      }
+      return true;
+    }
+
+
+    private void park(Baton b) {
+      if (killed) {
+        throw killedFail();
+      }
+      try {
+        toCaller.put(b);
+      } catch (InterruptedException e) {
+        throw killedFail();
+      }
+    }
+
+
+    /**
+     * A killed body fails again on every yield, so a pcall
+     * around the yield can not keep its thread.
+     */
+    private LuaFail killedFail() {
+      killed = true;
+      return new LuaFail("coroutine killed");
+    }
+
+
+    private void run() {
+      Baton result;
+      try {
+        Baton first = toBody.take();
+        KahluaThread kt = getThread();
+        Object[] args = first.values;
+
+        setTop(args.length + 1);
+        objectStack[0] = function;
+        System.arraycopy(args, 0, objectStack, 1, args.length);
+
+        int n = kt.call(args.length);
+        Object[] ret = new Object[n];
+        System.arraycopy(objectStack, 0, ret, 0, n);
+        result = new Baton(RETURN, ret);
+
+      } catch (InterruptedException e) {
+        return;
+      } catch (Throwable e) {
+        result = new Baton(ERROR, new Object[] { errorMessage(e), stackTrace, e });
+      }
+
+      dead = true;
+      setCallFrameStackTop(0);
+      setTop(0);
+
+      if (!killed) {
+        try {
+          toCaller.put(result);
+        } catch (InterruptedException e) {
+          // nobody is waiting for it
+        }
+      }
+    }
+
+
+    void kill() {
+      if (runner != null && !dead) {
+        killed = true;
+        runner.interrupt();
+      }
+    }
+
+
+    @Override
+    public String getStatus() {
+      if (dead) {
+        return "dead";
+      }
+      return getParent() == null ? "suspended" : "normal";
+    }
+  }
+
+
+  private static class Baton {
+    final int kind;
+    final Object[] values;
+
+    Baton(int kind, Object[] values) {
+      this.kind = kind;
+      this.values = values;
+    }
+  }
+}
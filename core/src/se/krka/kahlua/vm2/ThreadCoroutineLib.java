@@ -0,0 +1,189 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.vm2;
+
+import se.krka.kahlua.vm.*;
+
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Replaces create/resume/yield/status/running/wrap of the 'coroutine' table,
+ * new coroutines are {@link ThreadCoroutine}, which compiled code can yield from.
+ * Unlike the interpreter coroutines, yield also works across pcall
+ * and java functions, because the whole java stack of the body is parked.
+ *
+ * Coroutines created before the register still use the original functions.
+ */
+public class ThreadCoroutineLib implements JavaFunction {
+
+  private static final int CREATE  = 0;
+  private static final int RESUME  = 1;
+  private static final int YIELD   = 2;
+  private static final int STATUS  = 3;
+  private static final int RUNNING = 4;
+  private static final int WRAP    = 5;
+
+  private static final String[] names = {
+      "create", "resume", "yield", "status", "running", "wrap",
+  };
+
+  private final int index;
+  private final ThreadFactory factory;
+  private final JavaFunction original;
+
+
+  private ThreadCoroutineLib(int index, ThreadFactory f, Object original) {
+    this.index = index;
+    this.factory = f;
+    this.original = (original instanceof JavaFunction)
+        ? (JavaFunction) original : null;
+  }
+
+
+  /**
+   * Must be called after the stdlib is loaded, the existing 'coroutine'
+   * table is reused so the metatable of the old coroutines still works.
+   *
+   * @param f create the thread of every coroutine body, the threads should
+   *          be daemon threads, a virtual thread factory is the best choice.
+   */
+  public static void register(Platform platform, KahluaTable env, ThreadFactory f) {
+    Object o = env.rawget("coroutine");
+    KahluaTable coroutine = (o instanceof KahluaTable)
+        ? (KahluaTable) o : platform.newTable();
+
+    for (int i = 0; i < names.length; ++i) {
+      Object old = coroutine.rawget(names[i]);
+      coroutine.rawset(names[i], new ThreadCoroutineLib(i, f, old));
+    }
+
+    coroutine.rawset("__index", coroutine);
+    KahluaTable metatables = KahluaUtil.getClassMetatables(platform, env);
+    metatables.rawset(ThreadCoroutine.class, coroutine);
+    env.rawset("coroutine", coroutine);
+  }
+
+
+  @Override
+  public int call(LuaCallFrame callFrame, int nArguments) {
+    switch (index) {
+      case CREATE:  return create(callFrame);
+      case RESUME:  return resume(callFrame, nArguments);
+      case YIELD:   return yieldBody(callFrame, nArguments);
+      case STATUS:  return status(callFrame);
+      case RUNNING: return running(callFrame);
+      case WRAP:    return wrap(callFrame);
+    }
+    throw new LuaFail("Illegal function object");
+  }
+
+
+  private int create(LuaCallFrame callFrame) {
+    callFrame.push(newCoroutine(callFrame, "create"));
+    return 1;
+  }
+
+
+  private int wrap(LuaCallFrame callFrame) {
+    final ThreadCoroutine c = newCoroutine(callFrame, "wrap");
+    callFrame.push(new JavaFunction() {
+      public int call(LuaCallFrame cf, int nArguments) {
+        return c.resumeWrapped(cf, nArguments);
+      }
+    });
+    return 1;
+  }
+
+
+  private int resume(LuaCallFrame callFrame, int nArguments) {
+    Coroutine t = getCoroutine(callFrame, "resume");
+    if (t instanceof ThreadCoroutine) {
+      return ((ThreadCoroutine) t).resume(callFrame, nArguments);
+    }
+    return callOriginal(callFrame, nArguments);
+  }
+
+
+  private int yieldBody(LuaCallFrame callFrame, int nArguments) {
+    Coroutine t = callFrame.coroutine;
+    if (ThreadCoroutine.isBody(t)) {
+      KahluaUtil.luaAssert(t.getParent() != null,
+          "Can not yield outside of a coroutine");
+      return ThreadCoroutine.yield(t, callFrame, nArguments);
+    }
+    return callOriginal(callFrame, nArguments);
+  }
+
+
+  private int status(LuaCallFrame callFrame) {
+    Coroutine t = getCoroutine(callFrame, "status");
+    if (ThreadCoroutine.visible(callFrame.coroutine) == t) {
+      return callFrame.push("running");
+    }
+    return callFrame.push(t.getStatus());
+  }
+
+
+  private int running(LuaCallFrame callFrame) {
+    Coroutine t = callFrame.coroutine;
+    if (t.getStatus() != "normal") {
+      t = null;
+    }
+    return callFrame.push(ThreadCoroutine.visible(t));
+  }
+
+
+  private int callOriginal(LuaCallFrame callFrame, int nArguments) {
+    if (original == null) {
+      throw new LuaFail("coroutine."+ names[index] +" is not supported here");
+    }
+    return original.call(callFrame, nArguments);
+  }
+
+
+  private ThreadCoroutine newCoroutine(LuaCallFrame callFrame, String name) {
+    Object f = KahluaUtil.getArg(callFrame, 1, name);
+    KahluaUtil.luaAssert(f instanceof LuaClosure
+        || f instanceof ClosureInf || f instanceof JavaFunction,
+        "argument must be a function, got "+ f);
+    ThreadCoroutine c = new ThreadCoroutine(
+        callFrame.getPlatform(), callFrame.getEnvironment(), f, factory);
+    c.inheritLimits(callFrame.coroutine);
+    return c;
+  }
+
+
+  private static Coroutine getCoroutine(LuaCallFrame callFrame, String name) {
+    Object o = KahluaUtil.getArg(callFrame, 1, name);
+    KahluaUtil.luaAssert(o instanceof Coroutine, "argument must be a coroutine");
+    return (Coroutine) o;
+  }
+
+
+  @Override
+  public String toString() {
+    return "coroutine."+ names[index];
+  }
+}
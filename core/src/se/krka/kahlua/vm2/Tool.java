@@ -217,16 +217,7 @@ public class Tool {
 
 
   public static String swap(String from, char a, char to) {
-    StringBuilder r = new StringBuilder();
-    for (int i=0; i<from.length(); ++i) {
-      final char c = from.charAt(i);
-      if (c == a) {
-        r.append(to);
-      } else {
-        r.append(c);
-      }
-    }
-    return r.toString();
+    return from.replace(a, to);
   }
 
 
@@ -0,0 +1,210 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.j2se;
+
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaTableIterator;
+
+
+/**
+ * A table of a {@link TableArena} scope. Storing it in a table that lives
+ * longer (a table of an outer scope or any other table) marks it escaped,
+ * it is then kept when the scope ends. A function stored that way is
+ * looked into when the scope ends.
+ *
+ * A reset table is poisoned when its arena asks for it, every use fails
+ * until the arena takes it again, see {@link TableArena#setPoison}.
+ */
+final class ArenaTable extends HybridTable {
+
+  /** The scope it was made in, 0 once it is promoted */
+  int depth;
+  boolean escaped;
+  boolean poisoned;
+
+
+  /**
+   * Called by the tables that outlive every scope.
+   */
+  static void escape(Object o) {
+    if (o instanceof ArenaTable) {
+      ((ArenaTable) o).escaped = true;
+    } else if (TableArena.isFunction(o)) {
+      TableArena.escapeFunction(o, 0);
+    }
+  }
+
+
+  private void barrier(Object o) {
+    if (o instanceof ArenaTable) {
+      ArenaTable t = (ArenaTable) o;
+      if (t.depth > depth) {
+        t.escaped = true;
+      }
+    } else if (TableArena.isFunction(o)) {
+      TableArena.escapeFunction(o, depth);
+    }
+  }
+
+
+  private void check() {
+    if (poisoned) {
+      throw new IllegalStateException("table used after the end of its arena scope");
+    }
+  }
+
+
+  @Override
+  public Object rawget(Object key) {
+    check();
+    return super.rawget(key);
+  }
+
+
+  @Override
+  public Object rawget(int key) {
+    check();
+    return super.rawget(key);
+  }
+
+
+  @Override
+  public Object rawget(double key) {
+    check();
+    return super.rawget(key);
+  }
+
+
+  @Override
+  public void rawset(double key, Object value) {
+    check();
+    barrier(value);
+    super.rawset(key, value);
+  }
+
+
+  @Override
+  public int len() {
+    check();
+    return super.len();
+  }
+
+
+  @Override
+  public boolean isEmpty() {
+    check();
+    return super.isEmpty();
+  }
+
+
+  @Override
+  public KahluaTableIterator iterator() {
+    check();
+    return super.iterator();
+  }
+
+
+  @Override
+  public int nextEntry(int pos) {
+    check();
+    return super.nextEntry(pos);
+  }
+
+
+  @Override
+  public int entryOf(Object key) {
+    check();
+    return super.entryOf(key);
+  }
+
+
+  @Override
+  public KahluaTable getMetatable() {
+    check();
+    return super.getMetatable();
+  }
+
+
+  @Override
+  public void getRange(int from, Object[] dest, int destPos, int count) {
+    check();
+    super.getRange(from, dest, destPos, count);
+  }
+
+
+  @Override
+  public void move(int from, int to, int count) {
+    check();
+    super.move(from, to, count);
+  }
+
+
+  @Override
+  public void rawset(Object key, Object value) {
+    check();
+    barrier(key);
+    barrier(value);
+    super.rawset(key, value);
+  }
+
+
+  @Override
+  public void rawset(int key, Object value) {
+    check();
+    barrier(value);
+    super.rawset(key, value);
+  }
+
+
+  @Override
+  public void setRange(int to, Object[] src, int srcPos, int count) {
+    check();
+    for (int i = 0; i < count; ++i) {
+      barrier(src[srcPos + i]);
+    }
+    super.setRange(to, src, srcPos, count);
+  }
+
+
+  @Override
+  public void fill(int from, int count, Object value) {
+    check();
+    barrier(value);
+    super.fill(from, count, value);
+  }
+
+
+  @Override
+  public void setMetatable(KahluaTable metatable) {
+    check();
+    barrier(metatable);
+    super.setMetatable(metatable);
+  }
+
+
+  void reset() {
+    wipe();
+    super.setMetatable(null);
+    escaped = false;
+  }
+}
@@ -25,9 +25,11 @@ package se.krka.kahlua.j2se;
 
 import se.krka.kahlua.vm.KahluaTable;
 import se.krka.kahlua.vm.KahluaTableIterator;
+import se.krka.kahlua.vm.KahluaUtil;
 import se.krka.kahlua.vm.LuaCallFrame;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 
 public class ArrayTable implements KahluaTable, ICanbeRecycled {
@@ -47,6 +49,13 @@ public class ArrayTable implements KahluaTable, ICanbeRecycled {
   }
 
 
+  ArrayTable(ITableSwitcher sw, int size) {
+    this.list = new Object[size + 1];
+    this.qlength = 0;
+    this.sw = new WeakReference<>(sw);
+  }
+
+
   ArrayTable(RecyclePackage rp, ITableSwitcher sw) {
     this.list = (Object[]) rp.data;
     this.qlength = 0;
@@ -54,6 +63,11 @@ public class ArrayTable implements KahluaTable, ICanbeRecycled {
   }
 
 
+  int capacity() {
+    return list.length;
+  }
+
+
   void bind(ITableSwitcher sw) {
     this.sw = new WeakReference<>(sw);
   }
@@ -98,7 +112,7 @@ public class ArrayTable implements KahluaTable, ICanbeRecycled {
     if (key instanceof Double) {
       final Double dk = (Double)key;
       final int i = dk.intValue();
-      if (dk == (double)i) {
+      if (dk == (double)i && i >= 1) {
         return i;
       }
     }
@@ -106,13 +120,18 @@ public class ArrayTable implements KahluaTable, ICanbeRecycled {
   }
 
 
+  /**
+   * The array holds the keys from 1, a value under it makes a map.
+   */
   @Override
   public void rawset(int key, Object value) {
-    if (key >= list.length) {
-      Object[] newList = new Object[key * 2];
-      System.arraycopy(list, 0, newList, 0, list.length);
-      list = newList;
+    if (key < 1) {
+      if (value != null) {
+        sw.get().switchToMap(meta, this.list).rawset(key, value);
+      }
+      return;
     }
+    grow(key);
 
     final Object old = list[key];
 
@@ -135,7 +154,7 @@ public class ArrayTable implements KahluaTable, ICanbeRecycled {
 
   @Override
   public Object rawget(int key) {
-    if (key < list.length) {
+    if (key >= 1 && key < list.length) {
       return list[key];
     }
     return null;
@@ -148,12 +167,134 @@ public class ArrayTable implements KahluaTable, ICanbeRecycled {
   }
 
 
+  private void grow(int last) {
+    if (last >= list.length) {
+      list = Arrays.copyOf(list, last * 2);
+    }
+  }
+
+
+  private void touched(int from, int end) {
+    if (from <= minIndex) {
+      minIndex = from;
+    }
+    if (end >= maxIndex) {
+      maxIndex = end;
+    }
+  }
+
+
+  private int count(int from, int end) {
+    Object[] l = list;
+    int n = 0;
+    for (int i = from, e = Math.min(end, l.length); i < e; ++i) {
+      if (l[i] != null) ++n;
+    }
+    return n;
+  }
+
+
+  /**
+   * The range ops copy the array in one go, keys under 1 go
+   * through rawget/rawset.
+   */
+  @Override
+  public void getRange(int from, Object[] dest, int destPos, int count) {
+    if (from < 1) {
+      KahluaTable.super.getRange(from, dest, destPos, count);
+      return;
+    }
+    int n = Math.max(0, Math.min(count, list.length - from));
+    if (n > 0) {
+      System.arraycopy(list, from, dest, destPos, n);
+    }
+    Arrays.fill(dest, destPos + n, destPos + count, null);
+  }
+
+
+  @Override
+  public void setRange(int to, Object[] src, int srcPos, int count) {
+    if (to < 1) {
+      KahluaTable.super.setRange(to, src, srcPos, count);
+      return;
+    }
+    if (count <= 0) {
+      return;
+    }
+    grow(to + count - 1);
+    int n = 0;
+    for (int i = srcPos, e = srcPos + count; i < e; ++i) {
+      if (src[i] != null) ++n;
+    }
+    qlength += n - count(to, to + count);
+    System.arraycopy(src, srcPos, list, to, count);
+    touched(to, to + count);
+  }
+
+
+  @Override
+  public void move(int from, int to, int count) {
+    if (from < 1 || to < 1) {
+      KahluaTable.super.move(from, to, count);
+      return;
+    }
+    if (count <= 0 || from == to) {
+      return;
+    }
+    grow(Math.max(from, to) + count - 1);
+    qlength += count(from, from + count) - count(to, to + count);
+    System.arraycopy(list, from, list, to, count);
+    touched(to, to + count);
+  }
+
+
+  @Override
+  public void fill(int from, int count, Object value) {
+    if (from < 1) {
+      KahluaTable.super.fill(from, count, value);
+      return;
+    }
+    if (count <= 0) {
+      return;
+    }
+    if (value == null) {
+      int end = Math.min(from + count, list.length);
+      if (from < end) {
+        qlength -= count(from, end);
+        Arrays.fill(list, from, end, null);
+      }
+    } else {
+      grow(from + count - 1);
+      qlength += count - count(from, from + count);
+      Arrays.fill(list, from, from + count, value);
+    }
+    touched(from, from + count);
+  }
+
+
   @Override
   public KahluaTableIterator iterator() {
     return new ArrayIterator(this);
   }
 
 
+  /**
+   * Goes on from the index of the key, cleared slots do not matter.
+   */
+  @Override
+  public KahluaTableIterator iteratorAfter(Object key) {
+    ArrayIterator it = new ArrayIterator(this);
+    if (key != null) {
+      int index = tryUseArray(key);
+      if (index < 0) {
+        return null;
+      }
+      it.i = index + 1;
+    }
+    return it;
+  }
+
+
   @Override
   public boolean isEmpty() {
     return qlength == 0;
@@ -200,17 +341,18 @@ public class ArrayTable implements KahluaTable, ICanbeRecycled {
 
     @Override
     public boolean advance() {
-      while (at.list[i] == null) {
-        if (++i >= at.list.length) {
-          curKey = null;
-          curValue = null;
-          return false;
+      Object[] l = at.list;
+      while (i < l.length) {
+        Object v = l[i++];
+        if (v != null) {
+          curKey = KahluaUtil.toDouble(i - 1);
+          curValue = v;
+          return true;
         }
       }
-
-      curKey = (double) i;
-      curValue = at.list[i];
-      return true;
+      curKey = null;
+      curValue = null;
+      return false;
     }
 
 
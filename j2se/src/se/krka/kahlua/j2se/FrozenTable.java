@@ -0,0 +1,407 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.j2se;
+
+import se.krka.kahlua.vm.Coroutine;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaTableIterator;
+import se.krka.kahlua.vm.KahluaUtil;
+import se.krka.kahlua.vm.LuaCallFrame;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm2.ClosureInf;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A table that never changes, made by {@link #freeze(KahluaTable)} from a
+ * table and everything reachable from it. The keys 1..n are in an array
+ * part, the others in an open addressing hash part that is only read.
+ *
+ * Reads take no lock, so one frozen copy of static data (definitions,
+ * recipes, spawn tables) can be shared by every KahluaThread of every java
+ * thread instead of being built again in each state. Like any java object
+ * it must be handed over safely: through a final or volatile field, a
+ * concurrent collection or before the reading thread is started.
+ *
+ * rawset, setMetatable and wipe fail. To change shared data, freeze a new
+ * version and replace the reference to the old one.
+ */
+public final class FrozenTable implements KahluaTable {
+
+  private static final Object[] EMPTY = {};
+  private static final Double ZERO = 0.0;
+
+  private final Object[] array;
+  private final Object[] keys;
+  private final Object[] values;
+  /** Entries of the hash part */
+  private final int count;
+
+  /** Set by the freezer before the table is returned */
+  private KahluaTable metatable;
+  /** Written by MetaFlags without a lock, the table never changes so any bit is right */
+  private int metaFlags;
+
+
+  private FrozenTable(Object[] array, int count) {
+    this.array = array;
+    this.count = count;
+    if (count == 0) {
+      keys = values = EMPTY;
+    } else {
+      int cap = Integer.highestOneBit(count * 2 - 1) << 1;
+      keys = new Object[cap];
+      values = new Object[cap];
+    }
+  }
+
+
+  /**
+   * A frozen copy of t. Tables reached from it, as values, keys or
+   * metatables, are frozen too and shared cycles are kept. A frozen
+   * table is returned as it is.
+   *
+   * Lua functions and coroutines belong to the state that made them
+   * and can not be frozen; java functions and other objects are copied
+   * as they are, they must be safe to use from several threads.
+   */
+  public static FrozenTable freeze(KahluaTable t) {
+    return new Freezer().table(t);
+  }
+
+
+  @Override
+  public Object rawget(Object key) {
+    if (key instanceof Double) {
+      double d = (Double) key;
+      int i = (int) d;
+      if (i == d && i > 0 && i <= array.length) {
+        return array[i - 1];
+      }
+      if (d == 0) {
+        key = ZERO;
+      }
+    }
+    int i = slot(key);
+    return i < 0 ? null : values[i];
+  }
+
+
+  @Override
+  public Object rawget(int key) {
+    if (key > 0 && key <= array.length) {
+      return array[key - 1];
+    }
+    if (count == 0) {
+      return null;
+    }
+    return rawget(KahluaUtil.toDouble(key));
+  }
+
+
+  /**
+   * The hash slot of the key, -1 when it is not there.
+   */
+  private int slot(Object key) {
+    Object[] ks = keys;
+    if (key == null || ks.length == 0) {
+      return -1;
+    }
+    int mask = ks.length - 1;
+    for (int i = hash(key.hashCode()) & mask; ; i = (i + 1) & mask) {
+      Object k = ks[i];
+      if (k == null) {
+        return -1;
+      }
+      if (k == key || k.equals(key)) {
+        return i;
+      }
+    }
+  }
+
+
+  private void insert(Object key, Object value) {
+    int mask = keys.length - 1;
+    int i = hash(key.hashCode()) & mask;
+    while (keys[i] != null) {
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+  }
+
+
+  private static int hash(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+
+  @Override
+  public void rawset(Object key, Object value) {
+    KahluaUtil.fail("attempt to modify a frozen table");
+  }
+
+
+  @Override
+  public void rawset(int key, Object value) {
+    KahluaUtil.fail("attempt to modify a frozen table");
+  }
+
+
+  @Override
+  public void setMetatable(KahluaTable metatable) {
+    KahluaUtil.fail("attempt to change the metatable of a frozen table");
+  }
+
+
+  @Override
+  public KahluaTable getMetatable() {
+    return metatable;
+  }
+
+
+  @Override
+  public void wipe() {
+    KahluaUtil.fail("attempt to modify a frozen table");
+  }
+
+
+  @Override
+  public boolean isImmutable() {
+    return true;
+  }
+
+
+  /**
+   * The array part ends at the first nil, so its size is a border.
+   */
+  @Override
+  public int len() {
+    return array.length;
+  }
+
+
+  @Override
+  public boolean isEmpty() {
+    return array.length == 0 && count == 0;
+  }
+
+
+  @Override
+  public int getMetaFlags() {
+    return metaFlags;
+  }
+
+
+  @Override
+  public void setMetaFlags(int flags) {
+    metaFlags = flags;
+  }
+
+
+  @Override
+  public void getRange(int from, Object[] dest, int destPos, int count) {
+    if (from > 0 && count >= 0 && (long) from + count - 1 <= array.length) {
+      System.arraycopy(array, from - 1, dest, destPos, count);
+    } else {
+      KahluaTable.super.getRange(from, dest, destPos, count);
+    }
+  }
+
+
+  /**
+   * The array part has positions 0..n-1, the hash slots follow it.
+   */
+  @Override
+  public int nextEntry(int pos) {
+    int n = array.length;
+    if (pos < n) {
+      return pos;
+    }
+    Object[] ks = keys;
+    for (int i = pos - n; i < ks.length; ++i) {
+      if (ks[i] != null) {
+        return i + n;
+      }
+    }
+    return -1;
+  }
+
+
+  @Override
+  public Object entryKey(int pos) {
+    int n = array.length;
+    return pos < n ? KahluaUtil.toDouble(pos + 1) : keys[pos - n];
+  }
+
+
+  @Override
+  public Object entryValue(int pos) {
+    int n = array.length;
+    return pos < n ? array[pos] : values[pos - n];
+  }
+
+
+  @Override
+  public int entryOf(Object key) {
+    int n = array.length;
+    if (key instanceof Double) {
+      double d = (Double) key;
+      int i = (int) d;
+      if (i == d && i > 0 && i <= n) {
+        return i - 1;
+      }
+      if (d == 0) {
+        key = ZERO;
+      }
+    }
+    int i = slot(key);
+    return i < 0 ? -1 : i + n;
+  }
+
+
+  @Override
+  public KahluaTableIterator iterator() {
+    return new Iterator();
+  }
+
+
+  @Override
+  public String toString() {
+    return "table 0x" + Integer.toHexString(System.identityHashCode(this));
+  }
+
+
+  private class Iterator implements KahluaTableIterator {
+    private int index;
+    private Object curKey;
+    private Object curValue;
+
+
+    @Override
+    public int call(LuaCallFrame callFrame, int nArguments) {
+      if (advance()) {
+        return callFrame.push(curKey, curValue);
+      }
+      return 0;
+    }
+
+
+    @Override
+    public boolean advance() {
+      int pos = nextEntry(index);
+      if (pos < 0) {
+        curKey = null;
+        curValue = null;
+        return false;
+      }
+      index = pos + 1;
+      curKey = entryKey(pos);
+      curValue = entryValue(pos);
+      return true;
+    }
+
+
+    @Override
+    public Object getKey() {
+      return curKey;
+    }
+
+
+    @Override
+    public Object getValue() {
+      return curValue;
+    }
+  }
+
+
+  private static class Freezer {
+    private final Map<KahluaTable, FrozenTable> copies = new IdentityHashMap<>();
+
+
+    FrozenTable table(KahluaTable t) {
+      if (t instanceof FrozenTable) {
+        return (FrozenTable) t;
+      }
+      FrozenTable done = copies.get(t);
+      if (done != null) {
+        return done;
+      }
+
+      int n = 0;
+      while (t.rawget(n + 1) != null) {
+        ++n;
+      }
+      List<Object> hashed = new ArrayList<>();
+      KahluaTableIterator it = t.iterator();
+      while (it.advance()) {
+        Object k = it.getKey();
+        if (k instanceof Double) {
+          double d = (Double) k;
+          int i = (int) d;
+          if (i == d && i > 0 && i <= n) {
+            continue;
+          }
+          if (d == 0) {
+            k = ZERO;
+          }
+        }
+        hashed.add(k);
+        hashed.add(it.getValue());
+      }
+
+      Object[] array = n == 0 ? EMPTY : new Object[n];
+      FrozenTable f = new FrozenTable(array, hashed.size() / 2);
+      copies.put(t, f);
+
+      for (int i = 0; i < n; ++i) {
+        array[i] = value(t.rawget(i + 1));
+      }
+      for (int i = 0; i < hashed.size(); i += 2) {
+        f.insert(value(hashed.get(i)), value(hashed.get(i + 1)));
+      }
+      KahluaTable meta = t.getMetatable();
+      if (meta != null) {
+        f.metatable = table(meta);
+      }
+      return f;
+    }
+
+
+    Object value(Object v) {
+      if (v instanceof KahluaTable) {
+        return table((KahluaTable) v);
+      }
+      if (v instanceof LuaClosure || v instanceof ClosureInf || v instanceof Coroutine) {
+        KahluaUtil.fail("can not freeze a " + KahluaUtil.type(v)
+            + ", it belongs to one lua state");
+      }
+      return v;
+    }
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua.j2se;
+
+import se.krka.kahlua.j2se.RecyclePackage.Type;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Sizes the shared table pools from the heap usage. It sets a usage and a
+ * collection usage threshold on the heap pools and listens to the
+ * notifications of the MemoryMXBean: when a pool goes over its threshold
+ * the pool limit is cut in proportion to how far over it is, and the
+ * tables over the limit are released. When the heap stays under half the
+ * threshold for a whole interval the limit grows again.
+ *
+ * The thresholds are global to the JVM, unbind() puts back the ones
+ * that were set before bind().
+ */
+public class HeapPressureReleaseStrategy implements IMemoryReleaseStrategy {
+
+  private final double threshold;
+  private final long interval;
+  private final List<BoundPool> pools = new ArrayList<>();
+  private final NotificationListener listener = this::onNotification;
+
+  private volatile J2SEPlatform2 platform;
+  private volatile boolean pressure;
+
+  private final AtomicLong pressureEvents = new AtomicLong();
+  private final AtomicLong shrinks = new AtomicLong();
+  private final AtomicLong grows = new AtomicLong();
+
+
+  /**
+   * Pressure at 75% of the heap, the limit may grow every second.
+   */
+  public HeapPressureReleaseStrategy() {
+    this(0.75, 1000);
+  }
+
+
+  /**
+   * @param threshold part of a heap pool that means pressure, 0 to 1
+   * @param interval milliseconds between two grow checks
+   */
+  public HeapPressureReleaseStrategy(double threshold, long interval) {
+    if (threshold <= 0 || threshold >= 1) {
+      throw new IllegalArgumentException("threshold must be between 0 and 1");
+    }
+    this.threshold = threshold;
+    this.interval = interval;
+  }
+
+
+  @Override
+  public long interval() {
+    return interval;
+  }
+
+
+  @Override
+  public synchronized void bind(J2SEPlatform2 p) {
+    platform = p;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()) {
+        continue;
+      }
+      long max = pool.getUsage().getMax();
+      if (max <= 0) {
+        continue;
+      }
+      pools.add(new BoundPool(pool));
+      pool.setUsageThreshold((long) (max * threshold));
+      if (pool.isCollectionUsageThresholdSupported()) {
+        pool.setCollectionUsageThreshold((long) (max * threshold));
+      }
+    }
+    emitter().addNotificationListener(listener, null, null);
+  }
+
+
+  @Override
+  public synchronized void unbind(J2SEPlatform2 p) {
+    try {
+      emitter().removeNotificationListener(listener);
+    } catch (Exception e) {
+      // was not added
+    }
+    for (BoundPool b : pools) {
+      b.restore();
+    }
+    pools.clear();
+    platform = null;
+  }
+
+
+  /**
+   * Called once per interval for each type, the limit is checked
+   * after the array pool, the last one.
+   */
+  @Override
+  public void release(Queue<RecyclePackage> o, Type t) {
+    J2SEPlatform2 p = platform;
+    if (p == null || t != Type.Array) {
+      return;
+    }
+    if (pressure) {
+      pressure = false;
+      return;
+    }
+    if (heapUsage() < threshold / 2) {
+      int limit = p.getSharedPoolLimit();
+      int max = p.getMaxSharedPoolLimit();
+      if (limit < max) {
+        p.setSharedPoolLimit(Math.min(max, limit + Math.max(16, limit / 2)));
+        grows.incrementAndGet();
+      }
+    }
+  }
+
+
+  /**
+   * The heap is over the threshold by the given part, 0 to 1,
+   * the limit is cut by at least a quarter, after a collection by half.
+   * The notifications call it, so can code that knows of pressure first.
+   */
+  public void onPressure(double over, boolean afterCollection) {
+    J2SEPlatform2 p = platform;
+    if (p == null) {
+      return;
+    }
+    pressure = true;
+    pressureEvents.incrementAndGet();
+
+    double cut = Math.max(over, afterCollection ? 0.5 : 0.25);
+    int limit = p.getSharedPoolLimit();
+    p.setSharedPoolLimit((int) (limit * (1 - Math.min(cut, 1))));
+    shrinks.incrementAndGet();
+  }
+
+
+  private void onNotification(Notification n, Object handback) {
+    String type = n.getType();
+    boolean collection = MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type);
+    if (!collection && !MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)) {
+      return;
+    }
+    MemoryUsage u = MemoryNotificationInfo.from((CompositeData) n.getUserData()).getUsage();
+    double used = u.getMax() > 0 ? (double) u.getUsed() / u.getMax() : 1;
+    onPressure((used - threshold) / (1 - threshold), collection);
+  }
+
+
+  private double heapUsage() {
+    double most = 0;
+    for (BoundPool b : pools) {
+      MemoryUsage u = b.pool.getUsage();
+      if (u.getMax() > 0) {
+        most = Math.max(most, (double) u.getUsed() / u.getMax());
+      }
+    }
+    return most;
+  }
+
+
+  /**
+   * A heap pool with the thresholds it had before bind().
+   */
+  private static class BoundPool {
+    final MemoryPoolMXBean pool;
+    final long usage;
+    final long collection;
+
+    BoundPool(MemoryPoolMXBean pool) {
+      this.pool = pool;
+      this.usage = pool.getUsageThreshold();
+      this.collection = pool.isCollectionUsageThresholdSupported()
+          ? pool.getCollectionUsageThreshold() : 0;
+    }
+
+    void restore() {
+      pool.setUsageThreshold(usage);
+      if (pool.isCollectionUsageThresholdSupported()) {
+        pool.setCollectionUsageThreshold(collection);
+      }
+    }
+  }
+
+
+  private static NotificationEmitter emitter() {
+    return (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+  }
+
+
+  /**
+   * Threshold notifications received.
+   */
+  public long getPressureEvents() {
+    return pressureEvents.get();
+  }
+
+
+  public long getShrinks() {
+    return shrinks.get();
+  }
+
+
+  public long getGrows() {
+    return grows.get();
+  }
+
+
+  /**
+   * Tables released from the pools of the bound platform.
+   */
+  public long getReleasedTables() {
+    J2SEPlatform2 p = platform;
+    return p == null ? 0 : p.getReleasedTables();
+  }
+
+
+  @Override
+  public String toString() {
+    J2SEPlatform2 p = platform;
+    return "heap pressure: "+ pressureEvents +" shrink: "+ shrinks
+        +" grow: "+ grows +(p == null ? "" : " "+ p.tableReport());
+  }
+}
@@ -0,0 +1,901 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.j2se;
+
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaTableIterator;
+import se.krka.kahlua.vm.KahluaUtil;
+import se.krka.kahlua.vm.LuaCallFrame;
+
+import java.util.Arrays;
+
+
+/**
+ * A table laid out like the one of Lua 5.1: the keys 1..n live in an array
+ * part, all other keys in an open addressing hash part. Numeric keys of the
+ * hash part are stored as double, so no key is boxed.
+ *
+ * While only numbers are written to it, the array part is a double[] (nil is
+ * a NaN, a NaN value moves it to objects), the first other value turns it
+ * into an Object[] for good.
+ *
+ * A key set to nil stays in its slot until the next rehash, so fields can be
+ * cleared while iterating. The sizes of both parts are chosen again when the
+ * hash part is full, the array part gets the largest n for which more than
+ * half of 1..n are used.
+ *
+ * Not synchronized, a table must only be used by one java thread at a time.
+ */
+public class HybridTable implements KahluaTable {
+
+  private static final Object[] EMPTY = {};
+  private static final double[] NO_NUMBERS = {};
+  private static final int MAX_BITS = 30;
+  private static final double NIL = Double.NaN;
+
+  /** The key of a hash slot whose key is in nkeys */
+  private static final Object NUMBER = new Object();
+
+  private Object[] array = EMPTY;
+  /** The array part when it only holds numbers, array is empty then */
+  private double[] darray;
+  /** Size of the array part once something is put in it */
+  private int arrayHint;
+
+  private Object[] keys = EMPTY;
+  private double[] nkeys = NO_NUMBERS;
+  private Object[] values = EMPTY;
+  /** Slots with a key, the removed ones too */
+  private int used;
+  /** Slots with a numeric key */
+  private int numKeys;
+  private int threshold;
+
+  /** A hint for len(), the array part only */
+  private int border;
+
+  private KahluaTable metatable;
+  private int metaFlags;
+
+
+  public HybridTable() {
+  }
+
+
+  public HybridTable(int narray, int nhash) {
+    arrayHint = narray;
+    if (nhash > 0) {
+      allocHash(nhash);
+    }
+  }
+
+
+  @Override
+  public void setMetatable(KahluaTable metatable) {
+    this.metatable = metatable;
+  }
+
+
+  @Override
+  public KahluaTable getMetatable() {
+    return metatable;
+  }
+
+
+  @Override
+  public Object rawget(Object key) {
+    if (key instanceof Double) {
+      return rawget(((Double) key).doubleValue());
+    }
+    if (key == null || used == 0) {
+      return null;
+    }
+    Object[] ks = keys;
+    int mask = ks.length - 1;
+    for (int i = hash(key.hashCode()) & mask; ; i = (i + 1) & mask) {
+      Object k = ks[i];
+      if (k == null) {
+        return null;
+      }
+      if (k == key || k.equals(key)) {
+        return values[i];
+      }
+    }
+  }
+
+
+  @Override
+  public Object rawget(int key) {
+    double[] d = darray;
+    if (d != null) {
+      if (key > 0 && key <= d.length) {
+        double v = d[key - 1];
+        return v == v ? KahluaUtil.toDouble(v) : null;
+      }
+    } else {
+      Object[] a = array;
+      if (key > 0 && key <= a.length) {
+        return a[key - 1];
+      }
+    }
+    return getNumber(key);
+  }
+
+
+  public Object rawget(double key) {
+    int i = (int) key;
+    if (i == key) {
+      return rawget(i);
+    }
+    return getNumber(key);
+  }
+
+
+  private Object getNumber(double key) {
+    if (numKeys == 0) {
+      return null;
+    }
+    if (key == 0) {
+      key = 0.0;
+    }
+    Object[] ks = keys;
+    double[] nks = nkeys;
+    int mask = ks.length - 1;
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+      Object k = ks[i];
+      if (k == null) {
+        return null;
+      }
+      if (k == NUMBER && nks[i] == key) {
+        return values[i];
+      }
+    }
+  }
+
+
+  @Override
+  public void rawset(Object key, Object value) {
+    if (key instanceof Double) {
+      rawset(((Double) key).doubleValue(), value);
+      return;
+    }
+    if (key == null) {
+      if (value != null) {
+        KahluaUtil.fail("table index is nil");
+      }
+      return;
+    }
+    metaFlags = 0;
+
+    if (used > 0) {
+      Object[] ks = keys;
+      int mask = ks.length - 1;
+      int free = -1;
+      int i = hash(key.hashCode()) & mask;
+      for (Object k; (k = ks[i]) != null; i = (i + 1) & mask) {
+        if (k == key || k.equals(key)) {
+          values[i] = value;
+          return;
+        }
+        if (free < 0 && values[i] == null) {
+          free = i;
+        }
+      }
+      if (value == null) {
+        return;
+      }
+      if (free >= 0) {
+        if (ks[free] == NUMBER) {
+          --numKeys;
+        }
+        ks[free] = key;
+        values[free] = value;
+        return;
+      }
+    }
+    if (value == null) {
+      return;
+    }
+    if (used >= threshold) {
+      rehash(key);
+      rawset(key, value);
+      return;
+    }
+    insert(key, 0, value);
+  }
+
+
+  @Override
+  public void rawset(int key, Object value) {
+    double[] d = darray;
+    if (d != null) {
+      if (key > 0 && key <= d.length) {
+        setDouble(d, key, value);
+        return;
+      }
+    } else {
+      Object[] a = array;
+      if (key > 0 && key <= a.length) {
+        setArray(a, key, value);
+        return;
+      }
+    }
+    setNumber(key, value);
+  }
+
+
+  public void rawset(double key, Object value) {
+    int i = (int) key;
+    if (i == key) {
+      rawset(i, value);
+      return;
+    }
+    if (key != key) {
+      if (value != null) {
+        KahluaUtil.fail("table index is NaN");
+      }
+      return;
+    }
+    setNumber(key, value);
+  }
+
+
+  private void setArray(Object[] a, int key, Object value) {
+    a[key - 1] = value;
+    if (value != null) {
+      if (key == border + 1) {
+        border = key;
+      }
+    } else if (key == border) {
+      border = key - 1;
+    }
+  }
+
+
+  private void setDouble(double[] d, int key, Object value) {
+    if (value instanceof Double) {
+      double v = (Double) value;
+      if (v == v) {
+        d[key - 1] = v;
+        if (key == border + 1) {
+          border = key;
+        }
+        return;
+      }
+    } else if (value == null) {
+      d[key - 1] = NIL;
+      if (key == border) {
+        border = key - 1;
+      }
+      return;
+    }
+    toObjects();
+    setArray(array, key, value);
+  }
+
+
+  /**
+   * The array part stops being numeric.
+   */
+  private void toObjects() {
+    double[] d = darray;
+    Object[] a = new Object[d.length];
+    for (int i = 0; i < d.length; ++i) {
+      double v = d[i];
+      if (v == v) {
+        a[i] = KahluaUtil.toDouble(v);
+      }
+    }
+    array = a;
+    darray = null;
+  }
+
+
+  private static boolean isNumber(Object value) {
+    if (value instanceof Double) {
+      double v = (Double) value;
+      return v == v;
+    }
+    return false;
+  }
+
+
+  private int arraySize() {
+    double[] d = darray;
+    return d != null ? d.length : array.length;
+  }
+
+
+  private boolean arrayNil(int i) {
+    double[] d = darray;
+    if (d != null) {
+      return d[i] != d[i];
+    }
+    return array[i] == null;
+  }
+
+
+  private Object arrayGet(int i) {
+    double[] d = darray;
+    if (d != null) {
+      double v = d[i];
+      return v == v ? KahluaUtil.toDouble(v) : null;
+    }
+    return array[i];
+  }
+
+
+  /**
+   * Resize the array part, an empty one becomes numeric when
+   * its first value is a number.
+   */
+  private void growArray(int size, boolean numeric) {
+    double[] d = darray;
+    if (d != null) {
+      darray = Arrays.copyOf(d, size);
+      if (size > d.length) {
+        Arrays.fill(darray, d.length, size, NIL);
+      }
+    } else if (array.length == 0 && numeric) {
+      darray = new double[size];
+      Arrays.fill(darray, NIL);
+    } else {
+      array = Arrays.copyOf(array, size);
+    }
+  }
+
+
+  private void setNumber(double key, Object value) {
+    if (key == 0) {
+      key = 0.0;
+    }
+
+    if (used > 0) {
+      Object[] ks = keys;
+      double[] nks = nkeys;
+      int mask = ks.length - 1;
+      int free = -1;
+      int i = hash(key) & mask;
+      for (Object k; (k = ks[i]) != null; i = (i + 1) & mask) {
+        if (k == NUMBER && nks[i] == key) {
+          values[i] = value;
+          return;
+        }
+        if (free < 0 && values[i] == null) {
+          free = i;
+        }
+      }
+      if (value == null) {
+        return;
+      }
+      if (free >= 0) {
+        if (ks[free] != NUMBER) {
+          ++numKeys;
+        }
+        ks[free] = NUMBER;
+        nks[free] = key;
+        values[free] = value;
+        return;
+      }
+    }
+    if (value == null) {
+      return;
+    }
+
+    // Appending to the array part, nothing to move out of the hash part
+    if (numKeys == 0) {
+      int n = arraySize();
+      int k = (int) key;
+      if (k == key && (k == n + 1 || (n == 0 && k > 0 && k <= arrayHint))) {
+        growArray(Math.max(Math.max(4, n << 1), arrayHint), isNumber(value));
+        rawset(k, value);
+        return;
+      }
+    }
+
+    if (used >= threshold) {
+      rehash(KahluaUtil.toDouble(key));
+      rawset(key, value);
+      return;
+    }
+    insert(NUMBER, key, value);
+  }
+
+
+  /**
+   * Put a new key in a free slot, the key must not be in the table.
+   */
+  private void insert(Object key, double nkey, Object value) {
+    Object[] ks = keys;
+    int mask = ks.length - 1;
+    int i = (key == NUMBER ? hash(nkey) : hash(key.hashCode())) & mask;
+    while (ks[i] != null) {
+      i = (i + 1) & mask;
+    }
+    ks[i] = key;
+    values[i] = value;
+    if (key == NUMBER) {
+      nkeys[i] = nkey;
+      ++numKeys;
+    }
+    ++used;
+  }
+
+
+  private void allocHash(int size) {
+    int cap = 4;
+    while (cap - (cap >> 2) < size) {
+      cap <<= 1;
+    }
+    keys = new Object[cap];
+    nkeys = new double[cap];
+    values = new Object[cap];
+    threshold = cap - (cap >> 2);
+    used = 0;
+    numKeys = 0;
+  }
+
+
+  private static int ceilLog2(int x) {
+    return x <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(x - 1);
+  }
+
+
+  private static int arrayIndex(double key) {
+    int i = (int) key;
+    return i == key && i > 0 && i <= (1 << MAX_BITS) ? i : 0;
+  }
+
+
+  /**
+   * New sizes for both parts, counting the live keys and the extra one
+   * that did not fit.
+   */
+  private void rehash(Object extra) {
+    int[] nums = new int[MAX_BITS + 1];
+    int nint = 0;
+    int total = 0;
+
+    int n = arraySize();
+    for (int i = 0; i < n; ++i) {
+      if (!arrayNil(i)) {
+        ++nums[ceilLog2(i + 1)];
+        ++nint;
+      }
+    }
+    total += nint;
+
+    Object[] ks = keys;
+    for (int i = 0; i < ks.length; ++i) {
+      if (values[i] != null) {
+        ++total;
+        if (ks[i] == NUMBER) {
+          int k = arrayIndex(nkeys[i]);
+          if (k > 0) {
+            ++nums[ceilLog2(k)];
+            ++nint;
+          }
+        }
+      }
+    }
+
+    ++total;
+    if (extra instanceof Double) {
+      int k = arrayIndex((Double) extra);
+      if (k > 0) {
+        ++nums[ceilLog2(k)];
+        ++nint;
+      }
+    }
+
+    // The largest power of 2 with more than half of its slots used
+    int narray = 0;
+    int inArray = 0;
+    int count = 0;
+    for (int i = 0, twoToI = 1; i <= MAX_BITS && twoToI / 2 < nint; ++i, twoToI <<= 1) {
+      if (nums[i] > 0) {
+        count += nums[i];
+        if (count > twoToI / 2) {
+          narray = twoToI;
+          inArray = count;
+        }
+      }
+    }
+    resize(narray, total - inArray);
+  }
+
+
+  private void resize(int narray, int nhash) {
+    Object[] oldArray = array;
+    double[] oldDarray = darray;
+    int oldSize = arraySize();
+    Object[] oldKeys = keys;
+    double[] oldNkeys = nkeys;
+    Object[] oldValues = values;
+
+    if (narray == 0) {
+      array = EMPTY;
+      darray = null;
+    } else if (narray != oldSize) {
+      boolean numeric = oldSize == 0;
+      for (int i = 0; numeric && i < oldKeys.length; ++i) {
+        if (oldValues[i] != null && oldKeys[i] == NUMBER
+            && arrayIndex(oldNkeys[i]) > 0 && arrayIndex(oldNkeys[i]) <= narray) {
+          numeric = isNumber(oldValues[i]);
+        }
+      }
+      growArray(narray, numeric);
+    }
+
+    if (nhash > 0) {
+      allocHash(nhash);
+    } else {
+      keys = EMPTY;
+      nkeys = NO_NUMBERS;
+      values = EMPTY;
+      threshold = used = numKeys = 0;
+    }
+    if (border > narray) {
+      border = narray;
+    }
+
+    for (int i = narray; i < oldSize; ++i) {
+      if (oldDarray != null) {
+        double v = oldDarray[i];
+        if (v == v) {
+          insert(NUMBER, i + 1, KahluaUtil.toDouble(v));
+        }
+      } else if (oldArray[i] != null) {
+        insert(NUMBER, i + 1, oldArray[i]);
+      }
+    }
+    for (int i = 0; i < oldKeys.length; ++i) {
+      Object v = oldValues[i];
+      if (v == null) {
+        continue;
+      }
+      Object k = oldKeys[i];
+      if (k == NUMBER) {
+        double d = oldNkeys[i];
+        int ai = arrayIndex(d);
+        if (ai > 0 && ai <= narray) {
+          rawset(ai, v);
+        } else {
+          insert(NUMBER, d, v);
+        }
+      } else {
+        insert(k, 0, v);
+      }
+    }
+  }
+
+
+  private static int hash(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+
+  private static int hash(double d) {
+    long b = Double.doubleToLongBits(d);
+    return hash((int) (b ^ (b >>> 32)));
+  }
+
+
+  @Override
+  public int len() {
+    int n = arraySize();
+    int b = border;
+    if (b > 0 && arrayNil(b - 1)) {
+      b = search(0, b);
+    } else if (b < n && !arrayNil(b)) {
+      b = arrayNil(n - 1) ? search(b + 1, n) : n;
+    }
+    border = b;
+
+    if (b == n && numKeys > 0 && getNumber(n + 1) != null) {
+      return unbound(n + 1);
+    }
+    return b;
+  }
+
+
+  /**
+   * A border between i and j, key i is not nil (or 0) and key j is nil.
+   */
+  private int search(int i, int j) {
+    while (j - i > 1) {
+      int m = (i + j) >>> 1;
+      if (arrayNil(m - 1)) {
+        j = m;
+      } else {
+        i = m;
+      }
+    }
+    return i;
+  }
+
+
+  /**
+   * A border in the hash part, key i is not nil.
+   */
+  private int unbound(int i) {
+    long j = (long) i + 1;
+    while (getNumber(j) != null) {
+      i = (int) j;
+      j *= 2;
+      if (j > Integer.MAX_VALUE) {
+        i = 1;
+        while (rawget(i) != null) {
+          ++i;
+        }
+        return i - 1;
+      }
+    }
+    while (j - i > 1) {
+      int m = (int) ((i + j) >>> 1);
+      if (rawget(m) == null) {
+        j = m;
+      } else {
+        i = m;
+      }
+    }
+    return i;
+  }
+
+
+  /**
+   * True when keys from .. from + count - 1 are all in the array part.
+   */
+  private boolean inArray(int from, int count) {
+    return from > 0 && count >= 0 && (long) from + count - 1 <= arraySize();
+  }
+
+
+  @Override
+  public void getRange(int from, Object[] dest, int destPos, int count) {
+    if (!inArray(from, count)) {
+      KahluaTable.super.getRange(from, dest, destPos, count);
+    } else if (darray != null) {
+      for (int i = 0; i < count; ++i) {
+        dest[destPos + i] = arrayGet(from - 1 + i);
+      }
+    } else {
+      System.arraycopy(array, from - 1, dest, destPos, count);
+    }
+  }
+
+
+  @Override
+  public void setRange(int to, Object[] src, int srcPos, int count) {
+    if (darray == null && inArray(to, count)) {
+      System.arraycopy(src, srcPos, array, to - 1, count);
+    } else {
+      for (int i = 0; i < count; ++i) {
+        rawset(to + i, src[srcPos + i]);
+      }
+    }
+  }
+
+
+  @Override
+  public void move(int from, int to, int count) {
+    if (!inArray(from, count) || !inArray(to, count)) {
+      KahluaTable.super.move(from, to, count);
+    } else if (darray != null) {
+      System.arraycopy(darray, from - 1, darray, to - 1, count);
+    } else {
+      System.arraycopy(array, from - 1, array, to - 1, count);
+    }
+  }
+
+
+  @Override
+  public void fill(int from, int count, Object value) {
+    if (!inArray(from, count)) {
+      KahluaTable.super.fill(from, count, value);
+    } else if (darray == null) {
+      Arrays.fill(array, from - 1, from - 1 + count, value);
+    } else if (value == null || value instanceof Double && !((Double) value).isNaN()) {
+      Arrays.fill(darray, from - 1, from - 1 + count,
+          value == null ? NIL : ((Double) value).doubleValue());
+    } else {
+      KahluaTable.super.fill(from, count, value);
+    }
+  }
+
+
+  @Override
+  public KahluaTableIterator iterator() {
+    return new Iterator();
+  }
+
+
+  /**
+   * The array part has positions 0..n-1, the hash slots follow it.
+   */
+  @Override
+  public int nextEntry(int pos) {
+    int n = arraySize();
+    for (; pos < n; ++pos) {
+      if (!arrayNil(pos)) {
+        return pos;
+      }
+    }
+    Object[] vs = values;
+    for (int i = pos - n; i < vs.length; ++i) {
+      if (vs[i] != null) {
+        return i + n;
+      }
+    }
+    return -1;
+  }
+
+
+  @Override
+  public Object entryKey(int pos) {
+    int n = arraySize();
+    if (pos < n) {
+      return KahluaUtil.toDouble(pos + 1);
+    }
+    Object k = keys[pos - n];
+    return k == NUMBER ? KahluaUtil.toDouble(nkeys[pos - n]) : k;
+  }
+
+
+  @Override
+  public Object entryValue(int pos) {
+    int n = arraySize();
+    return pos < n ? arrayGet(pos) : values[pos - n];
+  }
+
+
+  @Override
+  public int entryOf(Object key) {
+    int n = arraySize();
+    if (key instanceof Double) {
+      double d = (Double) key;
+      int i = (int) d;
+      if (i == d && i > 0 && i <= n) {
+        return i - 1;
+      }
+      if (d == 0) {
+        d = 0.0;
+      }
+      if (numKeys > 0) {
+        Object[] ks = keys;
+        int mask = ks.length - 1;
+        for (int j = hash(d) & mask; ks[j] != null; j = (j + 1) & mask) {
+          if (ks[j] == NUMBER && nkeys[j] == d) {
+            return j + n;
+          }
+        }
+      }
+    } else if (key != null && used > 0) {
+      Object[] ks = keys;
+      int mask = ks.length - 1;
+      for (int j = hash(key.hashCode()) & mask; ks[j] != null; j = (j + 1) & mask) {
+        if (ks[j] == key || ks[j].equals(key)) {
+          return j + n;
+        }
+      }
+    }
+    return -1;
+  }
+
+
+  @Override
+  public boolean isEmpty() {
+    int n = arraySize();
+    for (int i = 0; i < n; ++i) {
+      if (!arrayNil(i)) {
+        return false;
+      }
+    }
+    for (Object v : values) {
+      if (v != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  @Override
+  public void wipe() {
+    metaFlags = 0;
+    if (darray != null) {
+      Arrays.fill(darray, NIL);
+    } else {
+      Arrays.fill(array, null);
+    }
+    Arrays.fill(keys, null);
+    Arrays.fill(values, null);
+    used = numKeys = border = 0;
+  }
+
+
+  @Override
+  public int getMetaFlags() {
+    return metaFlags;
+  }
+
+
+  @Override
+  public void setMetaFlags(int flags) {
+    metaFlags = flags;
+  }
+
+
+  @Override
+  public String toString() {
+    return "table 0x" + Integer.toHexString(System.identityHashCode(this));
+  }
+
+
+  /**
+   * Walks the array part then the hash part, a rehash while iterating
+   * (adding new keys) may skip or repeat entries, as in Lua.
+   */
+  private class Iterator implements KahluaTableIterator {
+    private int index;
+    private Object curKey;
+    private Object curValue;
+
+
+    @Override
+    public int call(LuaCallFrame callFrame, int nArguments) {
+      if (advance()) {
+        return callFrame.push(curKey, curValue);
+      }
+      return 0;
+    }
+
+
+    @Override
+    public boolean advance() {
+      int pos = nextEntry(index);
+      if (pos < 0) {
+        curKey = null;
+        curValue = null;
+        return false;
+      }
+      index = pos + 1;
+      curKey = entryKey(pos);
+      curValue = entryValue(pos);
+      return true;
+    }
+
+
+    @Override
+    public Object getKey() {
+      return curKey;
+    }
+
+
+    @Override
+    public Object getValue() {
+      return curValue;
+    }
+  }
+}
@@ -46,4 +46,14 @@ public interface IMemoryReleaseStrategy {
    * @return
    */
   long interval();
+
+  /**
+   * Called when the strategy is set on a platform, before the first release.
+   */
+  default void bind(J2SEPlatform2 platform) {}
+
+  /**
+   * Called when the strategy is replaced by another one.
+   */
+  default void unbind(J2SEPlatform2 platform) {}
 }
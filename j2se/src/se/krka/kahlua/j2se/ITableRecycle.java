@@ -33,5 +33,22 @@ public interface ITableRecycle {
 
   KahluaTable createArrayTable(ITableSwitcher s);
 
+
+  /**
+   * An array table for keys up to size, a recycled one may be of any size.
+   */
+  default KahluaTable createArrayTable(ITableSwitcher s, int size) {
+    return createArrayTable(s);
+  }
+
   KahluaTable createMapTable();
+
+
+  /**
+   * True while an arena scope is open on any thread, the tables only
+   * run the arena write barrier then.
+   */
+  default boolean arenaActive() {
+    return false;
+  }
 }
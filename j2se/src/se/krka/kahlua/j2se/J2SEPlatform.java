@@ -5,16 +5,46 @@ import se.krka.kahlua.luaj.compiler.LuaCompiler;
 import se.krka.kahlua.stdlib.*;
 import se.krka.kahlua.test.UserdataArray;
 import se.krka.kahlua.threading.BlockingKahluaThread;
+import se.krka.kahlua.threading.VerifiedSingleKahluaThread;
 import se.krka.kahlua.vm.*;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class J2SEPlatform implements Platform {
 	private static J2SEPlatform INSTANCE = new J2SEPlatform();
+	private static Prototype serializeSource;
+	private static final boolean VERIFY_CONFINED = J2SEPlatform.class.desiredAssertionStatus();
+
+	private boolean concurrent = true;
+
 	public static J2SEPlatform getInstance() {
 		return INSTANCE;
 	}
+
+	/**
+	 * With false the Lua states of this platform are declared thread-confined:
+	 * each one is only ever used by the java thread that created it.
+	 * Tables are then backed by a HashMap and the worker thread takes no lock,
+	 * with assertions enabled (-ea) it fails when another java thread uses it.
+	 * Set it before creating the environment, existing tables are not changed.
+	 */
+	public void useConcurrent(boolean use) {
+		this.concurrent = use;
+	}
+
+	public boolean isConcurrent() {
+		return concurrent;
+	}
+
+	public Map<Object, Object> createMap() {
+		if (concurrent) {
+			return new ConcurrentHashMap<Object, Object>();
+		}
+		return new HashMap<Object, Object>();
+	}
 	
     @Override
     public double pow(double x, double y) {
@@ -23,7 +53,7 @@ public class J2SEPlatform implements Platform {
 
     @Override
     public KahluaTable newTable() {
-        return new KahluaTableImpl(new ConcurrentHashMap<Object, Object>());
+        return new KahluaTableImpl(createMap());
     }
 
     @Override
@@ -53,18 +83,58 @@ public class J2SEPlatform implements Platform {
 		KahluaThread workerThread = setupWorkerThread(env);
 		KahluaUtil.setupLibrary(env, workerThread, "/stdlib");
 
-		try {
-			LuaClosure closure = LuaCompiler.loadis(getClass().getResourceAsStream("/serialize.lua"), "serialize.lua", env);
-			workerThread.call(closure, null, null, null);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		LuaClosure closure = KahluaUtil.loadByteCodeFromResource("/serialize", env);
+		if (closure == null) {
+			closure = new LuaClosure(getSerializeSource(), env);
+		}
+		workerThread.call(closure, null, null, null);
+	}
+
+	/**
+	 * Fallback when serialize.lbc was not built, compiled once per JVM.
+	 */
+	private static synchronized Prototype getSerializeSource() {
+		if (serializeSource == null) {
+			try {
+				serializeSource = LuaCompiler.loadis(J2SEPlatform.class.getResourceAsStream("/serialize.lua"), "serialize.lua", null).prototype;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
 		}
+		return serializeSource;
+	}
+
+	/**
+	 * Snapshot of an initialised environment, {@link EnvironmentTemplate#newEnvironment()}
+	 * clones it much faster than {@link #newEnvironment()} builds one.
+	 */
+	public EnvironmentTemplate newTemplate(KahluaTable env) {
+		return new EnvironmentTemplate(this, env) {
+			@Override
+			protected KahluaThread newWorkerThread(KahluaTable env) {
+				return J2SEPlatform.this.newWorkerThread(env);
+			}
+		};
 	}
 
 	private KahluaThread setupWorkerThread(KahluaTable env) {
-        BlockingKahluaThread thread = new BlockingKahluaThread(this, env);
+		KahluaThread thread = newWorkerThread(env);
 		KahluaUtil.setWorkerThread(env, thread);
 		return thread;
-    }
+	}
+
+	/**
+	 * A locking thread, or for a thread-confined platform a plain one
+	 * (checked when assertions are enabled).
+	 */
+	protected KahluaThread newWorkerThread(KahluaTable env) {
+		if (concurrent) {
+			return new BlockingKahluaThread(this, env);
+		}
+		if (VERIFY_CONFINED) {
+			return new VerifiedSingleKahluaThread(this, env, true);
+		}
+		return new KahluaThread(this, env);
+	}
 
 }
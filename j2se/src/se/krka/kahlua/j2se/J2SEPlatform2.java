@@ -25,25 +25,30 @@ package se.krka.kahlua.j2se;
 import se.krka.kahlua.vm.KahluaTable;
 import se.krka.kahlua.vm2.Tool;
 
-import java.lang.ref.Cleaner;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
- * There is no memory management policy by default.
- * Memory usage only increases and will not decrease.
+ * Tables given back with {@link KahluaTable#release()} (table.release in lua)
+ * are reused, others are left to the garbage collector.
+ * There is no memory management policy by default,
+ * the pools only shrink when one is set.
+ *
+ * Inside a {@link TableArena} scope the tables of that thread come from
+ * the arena instead, and are taken back all at once when the scope ends.
  */
 public class J2SEPlatform2 extends J2SEPlatform {
 
   private static J2SEPlatform2 INSTANCE = new J2SEPlatform2();
   private TableRecycle recy = new TableRecycle();
-  private boolean concurrent = true;
+
+  private final AtomicInteger activeArenas = new AtomicInteger();
+  private final ThreadLocal<TableArena> arenas =
+      ThreadLocal.withInitial(() -> new TableArena(activeArenas));
 
 
   public static J2SEPlatform2 getInstance() {
@@ -51,17 +56,38 @@ public class J2SEPlatform2 extends J2SEPlatform {
   }
 
 
-  public void useConcurrent(boolean use) {
-    this.concurrent = use;
+  /**
+   * The arena of the calling thread, tables made between its begin()
+   * and end() are temporaries of that scope.
+   */
+  public TableArena arena() {
+    return arenas.get();
   }
 
 
   @Override
   public KahluaTable newTable() {
-    return recy.newUserTable(concurrent);
+    if (activeArenas.get() > 0) {
+      TableArena a = arenas.get();
+      if (a.isActive()) {
+        return a.newTable();
+      }
+    }
+    return recy.newUserTable();
   }
 
 
+  @Override
+  public KahluaTable newTable(int narray, int nhash) {
+    if (activeArenas.get() > 0) {
+      TableArena a = arenas.get();
+      if (a.isActive()) {
+        return a.newTable();
+      }
+    }
+    return recy.newUserTable(narray, nhash);
+  }
+
 
   @Override
   public KahluaTable newEnvironment() {
@@ -71,44 +97,125 @@ public class J2SEPlatform2 extends J2SEPlatform {
   }
 
 
-  public Map createMap() {
-    if (concurrent) {
-      return new ConcurrentHashMap<>();
-    } else {
-      return new HashMap<>();
-    }
-  }
-
-
   /**
    * A memory management policy must be set
+   * @see HeapPressureReleaseStrategy
    */
   public void setMemoryManager(IMemoryReleaseStrategy m) {
     recy.updateMemoryStrategy(m);
   }
 
 
+  /**
+   * The most tables kept in each shared pool, lowering it releases
+   * the tables over the new limit.
+   */
+  public void setSharedPoolLimit(int limit) {
+    recy.setLimit(limit);
+  }
+
+
+  public int getSharedPoolLimit() {
+    return recy.limit;
+  }
+
+
+  public int getMaxSharedPoolLimit() {
+    return TableRecycle.SHARED_LIMIT;
+  }
+
+
+  /**
+   * Tables waiting in the shared pool of the type.
+   */
+  public int getPooledTables(RecyclePackage.Type t) {
+    return recy.shared(t).size();
+  }
+
+
+  /**
+   * Pooled tables given up to the garbage collector by the memory manager.
+   */
+  public long getReleasedTables() {
+    return recy.released.sum();
+  }
+
+
+  /**
+   * Tables made since the platform was created.
+   */
+  public long getCreatedTables() {
+    return recy.created.sum();
+  }
+
+
+  /**
+   * Tables made from a released one.
+   */
+  public long getReusedTables() {
+    return recy.reused.sum();
+  }
+
+
+  /**
+   * Released tables that did not fit in any pool.
+   */
+  public long getDroppedTables() {
+    return recy.dropped.sum();
+  }
+
+
+  /**
+   * The part of the new tables that came from a pool.
+   */
+  public double getTableHitRate() {
+    long r = getReusedTables();
+    long all = r + getCreatedTables();
+    return all == 0 ? 0 : (double) r / all;
+  }
+
+
+  public String tableReport() {
+    return "N: "+ getCreatedTables() +" R: "+ getReusedTables()
+        +" D: "+ getDroppedTables()
+        +" F: "+ getReleasedTables()
+        +" pooled: "+ getPooledTables(RecyclePackage.Type.Map)
+        +"/"+ getPooledTables(RecyclePackage.Type.Array)
+        +" limit: "+ getSharedPoolLimit()
+        +" hit rate: "+ Math.round(getTableHitRate() * 1000) / 10.0 +"%";
+  }
+
+
+  /**
+   * A table given back by {@link KahluaTable#release()} goes to the pool of
+   * the releasing thread, in a bucket of its capacity. A full bucket or a
+   * big table moves the table to the shared pool, which holds up to limit
+   * tables of a type and is trimmed by the memory manager, past that the
+   * table is dropped. Every run of the memory manager (and every change of
+   * the limit) makes the thread pools move their tables to the shared pool
+   * the next time they are used.
+   */
   private class TableRecycle implements ITableRecycle, ThreadFactory {
 
-    private Queue<RecyclePackage> mcache = new ConcurrentLinkedQueue<>();
-    private Queue<RecyclePackage> acache = new ConcurrentLinkedQueue<>();
-    private ArrayBlockingQueue<RecyclePackage> work = new ArrayBlockingQueue<>(20);
-    private Cleaner cleaner = Cleaner.create(this);
-    private Thread memManager;
-    private boolean stopMemm;
+    private static final int BUCKETS = 32;
+    private static final int LOCAL_BUCKETS = 11;
+    private static final int LOCAL_LIMIT = 16;
+    private static final int LOCAL_TOTAL = 64;
+    private static final int SHARED_LIMIT = 1024;
 
+    private Queue<RecyclePackage> mcache = new ArrayBlockingQueue<>(SHARED_LIMIT);
+    private Queue<RecyclePackage> acache = new ArrayBlockingQueue<>(SHARED_LIMIT);
+    private ThreadLocal<LocalPool> local = ThreadLocal.withInitial(LocalPool::new);
+    private Thread memManager;
+    private IMemoryReleaseStrategy memStrategy;
+    private volatile boolean stopMemm;
+    private volatile int epoch;
+    volatile int limit = SHARED_LIMIT;
 
-    TableRecycle() {
-      newThread("Table Recycle", ()->{
-        try {
-          for (;;) {
-            process(work.take());
-          }
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-        }
-      });
-    }
+    final LongAdder created = new LongAdder();
+    final LongAdder reused = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder released = new LongAdder();
 
 
     synchronized void updateMemoryStrategy(IMemoryReleaseStrategy memr) {
@@ -119,65 +226,155 @@ public class J2SEPlatform2 extends J2SEPlatform {
       if (memManager != null) {
         stopMemm = true;
         Tool.join(memManager);
+        memStrategy.unbind(J2SEPlatform2.this);
       }
 
       stopMemm = false;
+      memStrategy = memr;
+      memr.bind(J2SEPlatform2.this);
       memManager = newThread("Memory release", ()-> {
         while (!stopMemm) {
           Tool.sleep(memr.interval());
-          memr.release(mcache, RecyclePackage.Type.Map);
-          memr.release(acache, RecyclePackage.Type.Array);
+          release(memr, mcache, RecyclePackage.Type.Map);
+          release(memr, acache, RecyclePackage.Type.Array);
+          ++epoch;
         }
       });
     }
 
 
-    KahluaTable newUserTable(boolean concurrent) {
-      KahluaTableImpl2 kt2 = new KahluaTableImpl2(this);
-      kt2.registerTo(cleaner);
-      return kt2;
+    private void release(IMemoryReleaseStrategy memr,
+                         Queue<RecyclePackage> q, RecyclePackage.Type t) {
+      int before = q.size();
+      memr.release(q, t);
+      released.add(Math.max(0, before - q.size()));
     }
 
 
-    private void process(RecyclePackage t) {
-      ((KahluaTable)t.data).wipe();
+    Queue<RecyclePackage> shared(RecyclePackage.Type t) {
+      return t == RecyclePackage.Type.Map ? mcache : acache;
+    }
+
+
+    void setLimit(int n) {
+      limit = Math.max(0, Math.min(n, SHARED_LIMIT));
+      trim(mcache);
+      trim(acache);
+      ++epoch;
+    }
+
+
+    private void trim(Queue<RecyclePackage> q) {
+      while (q.size() > limit && q.poll() != null) {
+        released.increment();
+      }
+    }
+
 
+    /**
+     * The pool of the calling thread, emptied into the shared pool
+     * when the memory manager ran since its last use.
+     */
+    private LocalPool localPool() {
+      LocalPool p = local.get();
+      int e = epoch;
+      if (p.epoch != e) {
+        p.epoch = e;
+        RecyclePackage t;
+        while ((t = p.poll(RecyclePackage.Type.Array, 0, LOCAL_BUCKETS)) != null) {
+          toShared(t);
+        }
+        while ((t = p.poll(RecyclePackage.Type.Map, 0, LOCAL_BUCKETS)) != null) {
+          toShared(t);
+        }
+      }
+      return p;
+    }
+
+
+    private void toShared(RecyclePackage t) {
+      Queue<RecyclePackage> shared = shared(t.key);
+      if (shared.size() >= limit || !shared.offer(t)) {
+        dropped.increment();
+      }
+    }
+
+
+    KahluaTable newUserTable() {
+      return new KahluaTableImpl2(this);
+    }
+
+
+    KahluaTable newUserTable(int narray, int nhash) {
+      return new KahluaTableImpl2(this, narray, nhash);
+    }
+
+
+    @Override
+    public void recycle(RecyclePackage t) {
+      KahluaTable table = (KahluaTable) t.data;
+      int size;
       if (t.key == RecyclePackage.Type.Map) {
-        mcache.add(t);
+        size = ((KahluaTableImpl) table).size();
       }
       else if (t.key == RecyclePackage.Type.Array) {
-        acache.add(t);
+        size = ((ArrayTable) table).capacity();
       }
       else {
         throw new IllegalArgumentException("Unknow type "+ t.key);
       }
+
+      table.wipe();
+      table.setMetatable(null);
+      table.setWeak(false, false);
+
+      if (!localPool().offer(t, sizeClass(size))) {
+        toShared(t);
+      }
     }
 
+
     @Override
-    public void recycle(RecyclePackage d) {
-      work.offer(d);
+    public KahluaTable createArrayTable(ITableSwitcher s) {
+      return createArrayTable(s, 54);
     }
 
+
     @Override
-    public KahluaTable createArrayTable(ITableSwitcher s) {
-      RecyclePackage rp = acache.poll();
+    public KahluaTable createArrayTable(ITableSwitcher s, int size) {
+      RecyclePackage rp = localPool().poll(RecyclePackage.Type.Array, sizeClass(size + 1), 2);
       if (rp == null) {
-        return new ArrayTable(s);
-      } else {
-        ArrayTable at = (ArrayTable) rp.data;
-        at.bind(s);
-        return at;
+        rp = acache.poll();
       }
+      if (rp == null) {
+        created.increment();
+        return new ArrayTable(s, size);
+      }
+      reused.increment();
+      ArrayTable at = (ArrayTable) rp.data;
+      at.bind(s);
+      return at;
+    }
+
+
+    @Override
+    public boolean arenaActive() {
+      return activeArenas.get() > 0;
     }
 
+
     @Override
     public KahluaTable createMapTable() {
-      RecyclePackage rp = mcache.poll();
+      RecyclePackage rp = localPool().poll(RecyclePackage.Type.Map, 0, BUCKETS);
+      if (rp == null) {
+        rp = mcache.poll();
+      }
       if (rp == null) {
+        created.increment();
         return new KahluaTableImpl(createMap());
-      } else {
-        return (KahluaTable) rp.data;
       }
+      reused.increment();
+      return (KahluaTable) rp.data;
     }
 
 
@@ -195,4 +392,65 @@ public class J2SEPlatform2 extends J2SEPlatform {
       return t;
     }
   }
+
+
+  private static int sizeClass(int n) {
+    return n <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+  }
+
+
+  /**
+   * Recycled tables of one thread, bucket i holds capacities up to 2^i.
+   * Only small tables are kept here, at most LOCAL_TOTAL of them.
+   */
+  private static class LocalPool {
+
+    private final Bucket[] arrays = new Bucket[TableRecycle.LOCAL_BUCKETS];
+    private final Bucket[] maps = new Bucket[TableRecycle.LOCAL_BUCKETS];
+    private int total;
+    int epoch;
+
+
+    boolean offer(RecyclePackage t, int sizeClass) {
+      if (sizeClass >= TableRecycle.LOCAL_BUCKETS || total >= TableRecycle.LOCAL_TOTAL) {
+        return false;
+      }
+      Bucket[] buckets = t.key == RecyclePackage.Type.Map ? maps : arrays;
+      Bucket b = buckets[sizeClass];
+      if (b == null) {
+        b = buckets[sizeClass] = new Bucket();
+      }
+      if (b.size >= TableRecycle.LOCAL_LIMIT) {
+        return false;
+      }
+      b.tables[b.size++] = t;
+      ++total;
+      return true;
+    }
+
+
+    /**
+     * A table of the size class or up to range classes bigger.
+     */
+    RecyclePackage poll(RecyclePackage.Type type, int sizeClass, int range) {
+      Bucket[] buckets = type == RecyclePackage.Type.Map ? maps : arrays;
+      int last = Math.min(sizeClass + range, TableRecycle.LOCAL_BUCKETS - 1);
+      for (int i = sizeClass; i <= last; ++i) {
+        Bucket b = buckets[i];
+        if (b != null && b.size > 0) {
+          RecyclePackage t = b.tables[--b.size];
+          b.tables[b.size] = null;
+          --total;
+          return t;
+        }
+      }
+      return null;
+    }
+  }
+
+
+  private static class Bucket {
+    final RecyclePackage[] tables = new RecyclePackage[TableRecycle.LOCAL_LIMIT];
+    int size;
+  }
 }
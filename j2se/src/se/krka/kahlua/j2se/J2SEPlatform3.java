@@ -0,0 +1,53 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.j2se;
+
+import se.krka.kahlua.vm.KahluaTable;
+
+
+/**
+ * All tables are {@link ShapeTable}, a {@link HybridTable} that keeps its
+ * string fields in slots. They are not synchronized:
+ * an environment of this platform must be used by one java thread at a time.
+ */
+public class J2SEPlatform3 extends J2SEPlatform {
+
+  private static J2SEPlatform3 INSTANCE = new J2SEPlatform3();
+
+
+  public static J2SEPlatform3 getInstance() {
+    return INSTANCE;
+  }
+
+
+  @Override
+  public KahluaTable newTable() {
+    return new ShapeTable();
+  }
+
+
+  @Override
+  public KahluaTable newTable(int narray, int nhash) {
+    return new ShapeTable(narray, nhash);
+  }
+}
@@ -26,12 +26,22 @@ import se.krka.kahlua.vm.*;
 
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 
 public class KahluaTableImpl implements KahluaTable, ICanbeRecycled {
 
-  private final Map<Object, Object> delegate;
+  /** The bits above the MetaFlags count the clears */
+  private static final int VERSION = MetaFlags.ALL + 1;
+  private static final AtomicIntegerFieldUpdater<KahluaTableImpl> metaFlagsUpdater =
+      AtomicIntegerFieldUpdater.newUpdater(KahluaTableImpl.class, "metaFlags");
+
+  /** Swapped by setWeak() */
+  private volatile Map<Object, Object> delegate;
   private KahluaTable metatable;
+  private volatile int metaFlags;
+  /** Where the last next() stopped */
+  private volatile Cursor cursor;
 
 
   public KahluaTableImpl(Map<Object, Object> delegate) {
@@ -60,9 +70,13 @@ public class KahluaTableImpl implements KahluaTable, ICanbeRecycled {
   public void rawset(Object key, Object value) {
     if (value == null) {
       delegate.remove(key);
-      return;
+    } else {
+      delegate.put(key, value);
+    }
+    // After the write, a miss cached before it can not survive
+    if (key instanceof String && ((String) key).startsWith("__")) {
+      clearMetaFlags();
     }
-    delegate.put(key, value);
   }
 
 
@@ -140,6 +154,110 @@ public class KahluaTableImpl implements KahluaTable, ICanbeRecycled {
   }
 
 
+  /**
+   * next() goes on from the cursor the previous call left when it was
+   * called with its key, else it takes a new one. A cursor walks the keys
+   * the table had when it was taken and skips the cleared ones. A walk
+   * left before its end keeps its keys until the next walk or a wipe.
+   */
+  @Override
+  public KahluaTableIterator iteratorAfter(Object key) {
+    Cursor c = cursor;
+    if (c != null && key != null && key.equals(c.curKey)) {
+      return new Cursor(c.keys, c.i);
+    }
+    c = new Cursor(delegate.keySet().toArray(), 0);
+    if (key != null) {
+      while (c.i < c.keys.length) {
+        if (key.equals(c.keys[c.i++])) {
+          return c;
+        }
+      }
+      return null;
+    }
+    return c;
+  }
+
+
+  private final class Cursor implements KahluaTableIterator {
+    private final Object[] keys;
+    private int i;
+    private Object curKey;
+    private Object curValue;
+
+
+    Cursor(Object[] keys, int i) {
+      this.keys = keys;
+      this.i = i;
+    }
+
+
+    @Override
+    public int call(LuaCallFrame callFrame, int nArguments) {
+      if (advance()) {
+        return callFrame.push(curKey, curValue);
+      }
+      return 0;
+    }
+
+
+    @Override
+    public boolean advance() {
+      while (i < keys.length) {
+        Object k = keys[i++];
+        Object v = delegate.get(k);
+        if (v != null) {
+          curKey = k;
+          curValue = v;
+          cursor = this;
+          return true;
+        }
+      }
+      curKey = null;
+      curValue = null;
+      cursor = null;
+      return false;
+    }
+
+
+    @Override
+    public Object getKey() {
+      return curKey;
+    }
+
+
+    @Override
+    public Object getValue() {
+      return curValue;
+    }
+  }
+
+
+  /**
+   * The entries move to a {@link WeakMap}, or back to the map of the table.
+   * The move is not atomic: a write made by another thread while it runs
+   * may be lost, so a shared table must not be used during the call.
+   * setmetatable() is usually called before the table is shared.
+   */
+  @Override
+  public void setWeak(boolean weakKeys, boolean weakValues) {
+    Map<Object, Object> d = delegate;
+    if (d instanceof WeakMap) {
+      WeakMap w = (WeakMap) d;
+      if (w.weakKeys == weakKeys && w.weakValues == weakValues) {
+        return;
+      }
+      d = w.restore();
+    }
+    delegate = weakKeys || weakValues ? new WeakMap(d, weakKeys, weakValues) : d;
+  }
+
+
+  int size() {
+    return delegate.size();
+  }
+
+
   @Override
   public boolean isEmpty() {
     return delegate.isEmpty();
@@ -149,6 +267,41 @@ public class KahluaTableImpl implements KahluaTable, ICanbeRecycled {
   @Override
   public void wipe() {
     delegate.clear();
+    cursor = null;
+    clearMetaFlags();
+  }
+
+
+  /**
+   * The table may be shared between threads, so the flags carry a
+   * version that every clear increments. A miss is only stored if no
+   * metamethod was set since its flags were read.
+   */
+  @Override
+  public int getMetaFlags() {
+    return metaFlags;
+  }
+
+
+  @Override
+  public void setMetaFlags(int flags) {
+    for (;;) {
+      int cur = metaFlags;
+      if ((cur & ~MetaFlags.ALL) != (flags & ~MetaFlags.ALL)
+          || metaFlagsUpdater.compareAndSet(this, cur, cur | flags)) {
+        return;
+      }
+    }
+  }
+
+
+  private void clearMetaFlags() {
+    for (;;) {
+      int cur = metaFlags;
+      if (metaFlagsUpdater.compareAndSet(this, cur, (cur & ~MetaFlags.ALL) + VERSION)) {
+        return;
+      }
+    }
   }
 
 
@@ -24,23 +24,29 @@ package se.krka.kahlua.j2se;
 
 import se.krka.kahlua.vm.KahluaTable;
 import se.krka.kahlua.vm.KahluaTableIterator;
+import se.krka.kahlua.vm.KahluaUtil;
 import se.krka.kahlua.vm2.Tool;
 
-import java.lang.ref.Cleaner;
-import java.lang.ref.WeakReference;
-
 
 public class KahluaTableImpl2 implements KahluaTable, ITableSwitcher {
 
   private ITableRecycle recy;
   private KahluaTable impl;
-  private Cleanning c;
+  private int metaFlags;
 
 
   public KahluaTableImpl2(ITableRecycle recy) {
     this.recy = recy;
     this.impl = recy.createArrayTable(this);
-    this.c = new Cleanning(recy, (ICanbeRecycled)this.impl);
+  }
+
+
+  /**
+   * A table that will get other keys starts as a map.
+   */
+  public KahluaTableImpl2(ITableRecycle recy, int narray, int nhash) {
+    this.recy = recy;
+    this.impl = nhash > 0 ? recy.createMapTable() : recy.createArrayTable(this, narray);
   }
 
 
@@ -50,11 +56,19 @@ public class KahluaTableImpl2 implements KahluaTable, ITableSwitcher {
 
 
   public void rawset(int key, Object value) {
+    if (recy.arenaActive()) {
+      ArenaTable.escape(value);
+    }
     impl.rawset(key, value);
   }
 
 
   public void rawset(Object key, Object value) {
+    metaFlags = 0;
+    if (recy.arenaActive()) {
+      ArenaTable.escape(key);
+      ArenaTable.escape(value);
+    }
     impl.rawset(key, value);
   }
 
@@ -75,18 +89,82 @@ public class KahluaTableImpl2 implements KahluaTable, ITableSwitcher {
   }
 
 
+  /**
+   * The range ops of an array go to it, a map or a key under 1
+   * goes through rawget/rawset, which switch the storage if needed.
+   */
+  @Override
+  public void getRange(int from, Object[] dest, int destPos, int count) {
+    impl.getRange(from, dest, destPos, count);
+  }
+
+
+  @Override
+  public void setRange(int to, Object[] src, int srcPos, int count) {
+    if (to >= 1 && impl instanceof ArrayTable) {
+      if (recy.arenaActive()) {
+        for (int i = 0; i < count; ++i) {
+          ArenaTable.escape(src[srcPos + i]);
+        }
+      }
+      impl.setRange(to, src, srcPos, count);
+    } else {
+      KahluaTable.super.setRange(to, src, srcPos, count);
+    }
+  }
+
+
+  @Override
+  public void move(int from, int to, int count) {
+    if (from >= 1 && to >= 1 && impl instanceof ArrayTable) {
+      impl.move(from, to, count);
+    } else {
+      KahluaTable.super.move(from, to, count);
+    }
+  }
+
+
+  @Override
+  public void fill(int from, int count, Object value) {
+    if (from >= 1 && impl instanceof ArrayTable) {
+      if (recy.arenaActive()) {
+        ArenaTable.escape(value);
+      }
+      impl.fill(from, count, value);
+    } else {
+      KahluaTable.super.fill(from, count, value);
+    }
+  }
+
+
   public boolean isEmpty() {
     return impl.isEmpty();
   }
 
 
   public void wipe() {
+    metaFlags = 0;
     impl.wipe();
   }
 
 
+  @Override
+  public int getMetaFlags() {
+    return metaFlags;
+  }
+
+
+  @Override
+  public void setMetaFlags(int flags) {
+    metaFlags = flags;
+  }
+
+
   @Override
   public void setMetatable(KahluaTable metatable) {
+    if (recy.arenaActive()) {
+      ArenaTable.escape(metatable);
+    }
     impl.setMetatable(metatable);
   }
 
@@ -102,6 +180,12 @@ public class KahluaTableImpl2 implements KahluaTable, ITableSwitcher {
   }
 
 
+  @Override
+  public KahluaTableIterator iteratorAfter(Object key) {
+    return impl.iteratorAfter(key);
+  }
+
+
   @Override
   public KahluaTable switchToMap(KahluaTable meta, Object[] values) {
     KahluaTable v1 = recy.createMapTable();
@@ -110,41 +194,43 @@ public class KahluaTableImpl2 implements KahluaTable, ITableSwitcher {
     for (int i=0; i<values.length; ++i) {
       Object v = values[i];
       if (v != null) {
-        v1.rawset(Double.valueOf(i), v);
+        v1.rawset(KahluaUtil.toDouble(i), v);
       }
     }
 
-    c.run();
-    c.update((ICanbeRecycled)v1);
-
+    recy.recycle(((ICanbeRecycled) impl).getRecyclePackage());
     impl = v1;
     return v1;
   }
 
 
-  public void registerTo(Cleaner c) {
-    c.register(this, this.c);
-  }
-
-
-  private static class Cleanning implements Runnable {
-
-    RecyclePackage data;
-    ITableRecycle recy;
-
-    // Do not reference target
-    public Cleanning(ITableRecycle recy, ICanbeRecycled target) {
-      this.recy = recy;
-      update(target);
+  /**
+   * Weak tables are maps, an array is switched to a map first.
+   */
+  @Override
+  public void setWeak(boolean weakKeys, boolean weakValues) {
+    if (impl instanceof ArrayTable) {
+      if (!weakKeys && !weakValues) {
+        return;
+      }
+      ArrayTable a = (ArrayTable) impl;
+      Object[] values = new Object[a.capacity()];
+      a.getRange(0, values, 0, values.length);
+      switchToMap(a.getMetatable(), values);
     }
+    impl.setWeak(weakKeys, weakValues);
+  }
 
-    private void update(ICanbeRecycled target) {
-      data = target.getRecyclePackage();
-    }
 
-    @Override
-    public void run() {
-      recy.recycle(data);
-    }
+  /**
+   * The storage goes back to the platform, this table is left empty
+   * (without metatable) and can still be used.
+   */
+  @Override
+  public void release() {
+    KahluaTable old = impl;
+    impl = new ArrayTable(this, 0);
+    metaFlags = 0;
+    recy.recycle(((ICanbeRecycled) old).getRecyclePackage());
   }
 }
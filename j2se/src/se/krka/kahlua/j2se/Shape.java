@@ -0,0 +1,135 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua.j2se;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The string fields of a {@link ShapeTable}, in the order they were added.
+ * Tables that get the same fields in the same order share the same shape,
+ * the shapes form a tree from the empty one, linked by the added field.
+ *
+ * Shapes are shared by all tables of all threads and never removed, so the
+ * number of fields, of transitions from one shape and of shapes in the JVM
+ * is limited, a table that would pass a limit is turned into a plain hash
+ * table. Once the budget is spent only the existing shapes are reused.
+ */
+final class Shape {
+
+  static final int MAX_FIELDS = 32;
+  private static final int MAX_TRANSITIONS = 256;
+  static final int MAX_SHAPES = 1 << 14;
+
+  private static final AtomicInteger count = new AtomicInteger(1);
+
+  static final Shape EMPTY = new Shape(new String[0]);
+
+  /** Field name of each slot */
+  private final String[] keys;
+  private Map<String, Shape> transitions;
+  private volatile Shape last;
+
+
+  private Shape(String[] keys) {
+    this.keys = keys;
+  }
+
+
+  int size() {
+    return keys.length;
+  }
+
+
+  String key(int slot) {
+    return keys[slot];
+  }
+
+
+  /**
+   * The slot of the field, -1 when it is not in the shape.
+   */
+  int indexOf(String key) {
+    String[] ks = keys;
+    int h = key.hashCode();
+    for (int i = 0; i < ks.length; ++i) {
+      String k = ks[i];
+      if (k == key || k.hashCode() == h && k.equals(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+
+  /**
+   * The shape with one more field, null when a limit is reached.
+   */
+  Shape with(String key) {
+    Shape t = last;
+    if (t != null && t.keys[keys.length].equals(key)) {
+      return t;
+    }
+    if (keys.length >= MAX_FIELDS) {
+      return null;
+    }
+
+    synchronized (this) {
+      if (transitions == null) {
+        transitions = new HashMap<>();
+      }
+      t = transitions.get(key);
+      if (t == null) {
+        if (transitions.size() >= MAX_TRANSITIONS || !reserve()) {
+          return null;
+        }
+        String[] ks = Arrays.copyOf(keys, keys.length + 1);
+        ks[keys.length] = key;
+        t = new Shape(ks);
+        transitions.put(key, t);
+      }
+    }
+    last = t;
+    return t;
+  }
+
+
+  private static boolean reserve() {
+    for (;;) {
+      int n = count.get();
+      if (n >= MAX_SHAPES) {
+        return false;
+      }
+      if (count.compareAndSet(n, n + 1)) {
+        return true;
+      }
+    }
+  }
+
+
+  static int count() {
+    return count.get();
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua.j2se;
+
+import java.util.Arrays;
+
+
+/**
+ * A {@link HybridTable} for records: string keys are stored in a slot array
+ * described by a {@link Shape} shared with the tables that have the same
+ * fields, instead of one hash entry each. Other keys go to the hybrid part.
+ *
+ * A field set to nil keeps its slot. A table with too many string keys
+ * (or a rare shape) moves them to the hash part and stays a dictionary.
+ */
+public class ShapeTable extends HybridTable {
+
+  private static final Object[] NO_SLOTS = {};
+
+  /** null once the table is a dictionary */
+  private Shape shape = Shape.EMPTY;
+  private Object[] slots = NO_SLOTS;
+
+
+  public ShapeTable() {
+  }
+
+
+  /**
+   * @param nfields expected string fields
+   */
+  public ShapeTable(int narray, int nfields) {
+    super(narray, 0);
+    if (nfields > 0) {
+      slots = new Object[Math.min(nfields, Shape.MAX_FIELDS)];
+    }
+  }
+
+
+  @Override
+  public Object rawget(Object key) {
+    if (key instanceof String && shape != null) {
+      int i = shape.indexOf((String) key);
+      return i < 0 ? null : slots[i];
+    }
+    return super.rawget(key);
+  }
+
+
+  @Override
+  public void rawset(Object key, Object value) {
+    if (!(key instanceof String) || shape == null) {
+      super.rawset(key, value);
+      return;
+    }
+    setMetaFlags(0);
+
+    int i = shape.indexOf((String) key);
+    if (i >= 0) {
+      slots[i] = value;
+      return;
+    }
+    if (value == null) {
+      return;
+    }
+
+    Shape next = shape.with((String) key);
+    if (next == null) {
+      toDictionary();
+      super.rawset(key, value);
+      return;
+    }
+    i = shape.size();
+    if (i == slots.length) {
+      slots = Arrays.copyOf(slots, Math.min(Math.max(4, i * 2), Shape.MAX_FIELDS));
+    }
+    slots[i] = value;
+    shape = next;
+  }
+
+
+  private void toDictionary() {
+    Shape s = shape;
+    Object[] v = slots;
+    shape = null;
+    slots = NO_SLOTS;
+    for (int i = 0; i < s.size(); ++i) {
+      if (v[i] != null) {
+        super.rawset(s.key(i), v[i]);
+      }
+    }
+  }
+
+
+  /**
+   * The fields come first, then the positions of the hybrid part.
+   */
+  @Override
+  public int nextEntry(int pos) {
+    int base = fields();
+    for (; pos < base; ++pos) {
+      if (slots[pos] != null) {
+        return pos;
+      }
+    }
+    int p = super.nextEntry(pos - base);
+    return p < 0 ? p : p + base;
+  }
+
+
+  @Override
+  public Object entryKey(int pos) {
+    int base = fields();
+    return pos < base ? shape.key(pos) : super.entryKey(pos - base);
+  }
+
+
+  @Override
+  public Object entryValue(int pos) {
+    int base = fields();
+    return pos < base ? slots[pos] : super.entryValue(pos - base);
+  }
+
+
+  @Override
+  public int entryOf(Object key) {
+    if (key instanceof String && shape != null) {
+      return shape.indexOf((String) key);
+    }
+    int p = super.entryOf(key);
+    return p < 0 ? p : p + fields();
+  }
+
+
+  private int fields() {
+    Shape s = shape;
+    return s == null ? 0 : s.size();
+  }
+
+
+  @Override
+  public boolean isEmpty() {
+    for (Object v : slots) {
+      if (v != null) {
+        return false;
+      }
+    }
+    return super.isEmpty();
+  }
+
+
+  @Override
+  public void wipe() {
+    super.wipe();
+    shape = Shape.EMPTY;
+    Arrays.fill(slots, null);
+  }
+
+
+  /**
+   * Shapes created in the JVM, never more than the shape budget.
+   */
+  public static int getShapeCount() {
+    return Shape.count();
+  }
+
+
+  public static int getMaxShapeCount() {
+    return Shape.MAX_SHAPES;
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.j2se;
+
+import se.krka.kahlua.vm.Coroutine;
+import se.krka.kahlua.vm.JavaFunction;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaTableIterator;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.UpValue;
+import se.krka.kahlua.vm2.ClosureInf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Tables for the temporaries of one tick. Between begin() and end() every
+ * table the platform makes on this thread comes from the arena, end() resets
+ * them all and the next scope takes them again in the same order.
+ *
+ * A table stored in a table that lives longer than the scope (or used as its
+ * metatable) is promoted, it is kept and leaves the arena. So is a table
+ * reachable from the upvalues of a function, or the stack of a coroutine,
+ * that is stored in such a table. A java function can not be looked into,
+ * storing one promotes every table of the scope. A table only held by a
+ * local or by java code past end() is reset under it, the scope is for
+ * temporaries. A store into an upvalue of a function made before begin()
+ * is not seen either: with {@link #setPoison} (on when assertions are
+ * enabled) such a table fails on its next use instead of being empty.
+ *
+ * Each java thread has its own arena, see {@link J2SEPlatform2#arena()}.
+ */
+public class TableArena {
+
+  /** The innermost active arena of the thread */
+  private static final ThreadLocal<TableArena> current = new ThreadLocal<>();
+
+  private final AtomicInteger activeArenas;
+  private TableArena outer;
+
+  private ArenaTable[] tables = new ArenaTable[64];
+  private int top;
+  private int[] scopes = new int[4];
+  private int depth;
+
+  /** Functions stored in a table of an outer scope, with its depth */
+  private Object[] roots = new Object[8];
+  private int[] rootDepths = new int[8];
+  private int nroots;
+
+  private boolean poison = TableArena.class.desiredAssertionStatus();
+
+  private long created;
+  private long reused;
+  private long promoted;
+
+
+  TableArena(AtomicInteger activeArenas) {
+    this.activeArenas = activeArenas;
+  }
+
+
+  /**
+   * Start a scope, scopes can be nested.
+   */
+  public void begin() {
+    if (depth == scopes.length) {
+      scopes = Arrays.copyOf(scopes, depth << 1);
+    }
+    scopes[depth++] = top;
+    if (depth == 1) {
+      activeArenas.incrementAndGet();
+      outer = current.get();
+      current.set(this);
+    }
+  }
+
+
+  /**
+   * Reset the tables of the innermost scope, the escaped ones are promoted.
+   */
+  public void end() {
+    if (depth == 0) {
+      throw new IllegalStateException("no arena scope");
+    }
+    int start = scopes[depth - 1];
+    promote(start);
+
+    for (int i = start; i < top; ++i) {
+      ArenaTable t = tables[i];
+      if (t.escaped) {
+        t.depth = 0;
+        t.escaped = false;
+        tables[i] = null;
+        ++promoted;
+      } else {
+        t.reset();
+        t.poisoned = poison;
+      }
+    }
+    top = start;
+    dropRoots(depth - 1);
+
+    if (--depth == 0) {
+      activeArenas.decrementAndGet();
+      current.set(outer);
+      outer = null;
+    }
+  }
+
+
+  /**
+   * Reset tables throw on any use until the arena gives them again,
+   * so one still held past end() is found instead of read empty.
+   */
+  public void setPoison(boolean poison) {
+    this.poison = poison;
+  }
+
+
+  public boolean isActive() {
+    return depth > 0;
+  }
+
+
+  /**
+   * Tables made by the arena, not taken again from it.
+   */
+  public long getCreated() {
+    return created;
+  }
+
+
+  public long getReused() {
+    return reused;
+  }
+
+
+  /**
+   * Tables that escaped their scope.
+   */
+  public long getPromoted() {
+    return promoted;
+  }
+
+
+  KahluaTable newTable() {
+    if (top == tables.length) {
+      tables = Arrays.copyOf(tables, top << 1);
+    }
+    ArenaTable t = tables[top];
+    if (t == null) {
+      t = new ArenaTable();
+      tables[top] = t;
+      ++created;
+    } else {
+      ++reused;
+    }
+    t.poisoned = false;
+    t.depth = depth;
+    ++top;
+    return t;
+  }
+
+
+  static boolean isFunction(Object o) {
+    return o instanceof LuaClosure || o instanceof ClosureInf
+        || o instanceof Coroutine || o instanceof JavaFunction;
+  }
+
+
+  /**
+   * A function or coroutine was stored in a table made in scope
+   * holderDepth (0 for a table that outlives every scope).
+   */
+  static void escapeFunction(Object f, int holderDepth) {
+    TableArena a = current.get();
+    if (a != null && holderDepth < a.depth) {
+      a.addRoot(f, holderDepth);
+    }
+  }
+
+
+  private void addRoot(Object f, int holderDepth) {
+    if (nroots == roots.length) {
+      roots = Arrays.copyOf(roots, nroots << 1);
+      rootDepths = Arrays.copyOf(rootDepths, nroots << 1);
+    }
+    roots[nroots] = f;
+    rootDepths[nroots] = holderDepth;
+    ++nroots;
+  }
+
+
+  /**
+   * The functions stored in tables of the scope being left are
+   * no longer roots, the tables are kept or reset with it.
+   */
+  private void dropRoots(int outerDepth) {
+    int n = 0;
+    for (int i = 0; i < nroots; ++i) {
+      if (rootDepths[i] < outerDepth) {
+        roots[n] = roots[i];
+        rootDepths[n] = rootDepths[i];
+        ++n;
+      }
+    }
+    Arrays.fill(roots, n, nroots, null);
+    nroots = n;
+  }
+
+
+  /**
+   * What an escaped table or function holds escapes with it.
+   */
+  private void promote(int start) {
+    ArrayList<ArenaTable> work = new ArrayList<>();
+    Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    boolean all = false;
+
+    for (int i = start; i < top; ++i) {
+      if (tables[i].escaped) {
+        work.add(tables[i]);
+      }
+    }
+    for (int i = 0; i < nroots; ++i) {
+      all |= reach(roots[i], work, seen);
+    }
+
+    while (!work.isEmpty() && !all) {
+      ArenaTable t = work.remove(work.size() - 1);
+      all |= reach(t.getMetatable(), work, seen);
+      KahluaTableIterator it = t.iterator();
+      while (it.advance()) {
+        all |= reach(it.getKey(), work, seen);
+        all |= reach(it.getValue(), work, seen);
+      }
+    }
+
+    if (all) {
+      for (int i = start; i < top; ++i) {
+        tables[i].escaped = true;
+      }
+    }
+  }
+
+
+  /**
+   * @return true if a java function was reached, what it holds is unknown
+   */
+  private boolean reach(Object o, ArrayList<ArenaTable> work, Set<Object> seen) {
+    if (o instanceof ArenaTable) {
+      ArenaTable t = (ArenaTable) o;
+      if (t.depth == depth && !t.escaped) {
+        t.escaped = true;
+        work.add(t);
+      }
+      return false;
+    }
+    if (!isFunction(o) || !seen.add(o)) {
+      return false;
+    }
+
+    boolean all = false;
+    if (o instanceof LuaClosure) {
+      LuaClosure c = (LuaClosure) o;
+      all = reach(c.env, work, seen) | reachUpvalues(c.upvalues, work, seen);
+    } else if (o instanceof ClosureInf) {
+      all = reachUpvalues(((ClosureInf) o).upvalues, work, seen);
+    } else if (o instanceof Coroutine) {
+      Coroutine c = (Coroutine) o;
+      Object[] stack = c.objectStack;
+      for (int i = 0, n = stack == null ? 0 : c.getTop(); i < n; ++i) {
+        all |= reach(stack[i], work, seen);
+      }
+    } else {
+      all = true;
+    }
+    return all;
+  }
+
+
+  private boolean reachUpvalues(UpValue[] upvalues, ArrayList<ArenaTable> work, Set<Object> seen) {
+    boolean all = false;
+    for (UpValue u : upvalues) {
+      if (u != null) {
+        all |= reach(u.getValue(), work, seen);
+      }
+    }
+    return all;
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua.j2se;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * The map of a table with a __mode: collectable keys ("k") and/or values
+ * ("v") are held by weak references. Strings, numbers and booleans are
+ * values in lua and are always held. The entries of collected objects are
+ * removed from a ReferenceQueue on the next access of the table, there is
+ * no cleaner thread.
+ *
+ * A weak key holds its value strongly, so a value that refers to its own
+ * key keeps the entry alive, as in Lua 5.1 (java has no ephemerons).
+ */
+final class WeakMap extends AbstractMap<Object, Object> {
+
+  final boolean weakKeys;
+  final boolean weakValues;
+
+  private final Map<Object, Object> map = new ConcurrentHashMap<>();
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+  /** The map of the table before, given back by restore() */
+  private final Map<Object, Object> original;
+
+
+  WeakMap(Map<Object, Object> original, boolean weakKeys, boolean weakValues) {
+    this.weakKeys = weakKeys;
+    this.weakValues = weakValues;
+    this.original = original;
+    for (Map.Entry<Object, Object> e : original.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+    original.clear();
+  }
+
+
+  /**
+   * The map of the table before it was weak, with the entries still alive.
+   */
+  Map<Object, Object> restore() {
+    for (Map.Entry<Object, Object> e : entrySet()) {
+      original.put(e.getKey(), e.getValue());
+    }
+    map.clear();
+    return original;
+  }
+
+
+  private static boolean collectable(Object o) {
+    return !(o instanceof String || o instanceof Double || o instanceof Boolean);
+  }
+
+
+  private Object probe(Object key) {
+    return weakKeys && collectable(key) ? new Probe(key) : key;
+  }
+
+
+  private static Object unwrap(Object o) {
+    return o instanceof Reference ? ((Reference<?>) o).get() : o;
+  }
+
+
+  /**
+   * Removes the entries whose key or value was collected.
+   */
+  private void expunge() {
+    for (Reference<?> r; (r = queue.poll()) != null; ) {
+      if (r instanceof WeakKey) {
+        map.remove(r);
+      } else {
+        map.remove(((WeakValue) r).key, r);
+      }
+    }
+  }
+
+
+  @Override
+  public Object get(Object key) {
+    expunge();
+    return unwrap(map.get(probe(key)));
+  }
+
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+
+  @Override
+  public Object put(Object key, Object value) {
+    expunge();
+    Object k = weakKeys && collectable(key) ? new WeakKey(key, queue) : key;
+    Object v = weakValues && collectable(value) ? new WeakValue(value, k, queue) : value;
+    return unwrap(map.put(k, v));
+  }
+
+
+  @Override
+  public Object remove(Object key) {
+    expunge();
+    return unwrap(map.remove(probe(key)));
+  }
+
+
+  @Override
+  public int size() {
+    expunge();
+    return map.size();
+  }
+
+
+  @Override
+  public void clear() {
+    map.clear();
+    while (queue.poll() != null) {
+      // all gone
+    }
+  }
+
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    expunge();
+    return new AbstractSet<Map.Entry<Object, Object>>() {
+      @Override
+      public Iterator<Map.Entry<Object, Object>> iterator() {
+        return new Entries(map.entrySet().iterator());
+      }
+
+
+      @Override
+      public int size() {
+        return map.size();
+      }
+    };
+  }
+
+
+  /**
+   * Skips the entries collected but not yet removed.
+   */
+  private static class Entries implements Iterator<Map.Entry<Object, Object>> {
+    private final Iterator<Map.Entry<Object, Object>> it;
+    private Map.Entry<Object, Object> next;
+
+
+    Entries(Iterator<Map.Entry<Object, Object>> it) {
+      this.it = it;
+    }
+
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && it.hasNext()) {
+        Map.Entry<Object, Object> e = it.next();
+        Object k = unwrap(e.getKey());
+        Object v = unwrap(e.getValue());
+        if (k != null && v != null) {
+          next = new SimpleImmutableEntry<>(k, v);
+        }
+      }
+      return next != null;
+    }
+
+
+    @Override
+    public Map.Entry<Object, Object> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<Object, Object> e = next;
+      next = null;
+      return e;
+    }
+  }
+
+
+  private static final class WeakKey extends WeakReference<Object> {
+    private final int hash;
+
+
+    WeakKey(Object key, ReferenceQueue<Object> q) {
+      super(key, q);
+      hash = key.hashCode();
+    }
+
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      Object k = get();
+      if (k == null) {
+        return false;
+      }
+      Object other = o instanceof WeakKey ? ((WeakKey) o).get()
+                   : o instanceof Probe ? ((Probe) o).key : null;
+      return k == other || k.equals(other);
+    }
+  }
+
+
+  /**
+   * Looks up a weak key without making a reference.
+   */
+  private static final class Probe {
+    private final Object key;
+
+
+    Probe(Object key) {
+      this.key = key;
+    }
+
+
+    @Override
+    public int hashCode() {
+      return key.hashCode();
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+      if (o instanceof WeakKey) {
+        Object k = ((WeakKey) o).get();
+        return k == key || key.equals(k);
+      }
+      return false;
+    }
+  }
+
+
+  private static final class WeakValue extends WeakReference<Object> {
+    /** The key in the map, to remove the entry */
+    final Object key;
+
+
+    WeakValue(Object value, Object key, ReferenceQueue<Object> q) {
+      super(value, q);
+      this.key = key;
+    }
+  }
+}
@@ -32,22 +32,40 @@ import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A specialized KahluaThread that verifies that a KahluaThread is not used by multiple threads.
+ * A confined one also verifies that it is only ever used by the first java thread calling it.
  */
 public class VerifiedSingleKahluaThread extends KahluaThread {
     private final Lock lock = new ReentrantLock();
+    private final boolean confined;
+    private Thread owner;
 
     public VerifiedSingleKahluaThread(Platform platform, KahluaTable environment) {
+        this(platform, environment, false);
+    }
+
+    public VerifiedSingleKahluaThread(Platform platform, KahluaTable environment, boolean confined) {
         super(platform, environment);
+        this.confined = confined;
     }
 
     public VerifiedSingleKahluaThread(PrintStream stream, Platform platform, KahluaTable environment) {
         super(stream, platform, environment);
+        this.confined = false;
     }
 
     private void lock() {
         if (!lock.tryLock()) {
             throw new IllegalStateException("Multiple threads may not access the same lua thread");
         }
+        if (confined) {
+            Thread current = Thread.currentThread();
+            if (owner == null) {
+                owner = current;
+            } else if (owner != current) {
+                lock.unlock();
+                throw new IllegalStateException("Lua thread is confined to java thread " + owner.getName());
+            }
+        }
     }
 
     private void unlock() {
@@ -25,3 +25,30 @@ testAssert(ta ~= tb, "same metatable for __eq")
 testAssert(tb == tc, "different metatables for __eq")
 testAssert(td == td, "not using metatable")
 
+
+testCall("compare and jump", function()
+	local lt, le, eq, truthy = 0, 0, 0, 0
+	for i = 1, 10 do
+		if i < 5 then lt = lt + 1 end
+		if i <= 5 then le = le + 1 end
+		if i == 5 then eq = eq + 1 end
+		if i % 2 == 0 and i then truthy = truthy + 1 end
+	end
+	testAssert(lt == 4 and le == 5 and eq == 1 and truthy == 5)
+
+	local n = 0
+	while "a" < "c" and n < 3 do n = n + 1 end
+	testAssert(n == 3)
+
+	local meta = {__lt = function(a, b) return a.v < b.v end}
+	local x, y = setmetatable({v = 1}, meta), setmetatable({v = 2}, meta)
+	testAssert(x < y and not (y < x) and x <= y)
+end)
+
+testCall("get and call", function()
+	local t = {f = function() return 42 end}
+	testAssert(t.f() == 42)
+	local proxy = setmetatable({}, {__index = t})
+	testAssert(proxy.f() == 42)
+	testAssert(not pcall(function() return proxy.g() end))
+end)
@@ -57,4 +57,60 @@ end
 
 assert(gameboy_defaults.a ~= nil)
 assert(gameboy_defaults.b ~= nil)
-assert(gameboy_defaults.c == nil)
\ No newline at end of file
+assert(gameboy_defaults.c == nil)
+testCall("next", function()
+	local t = {10, 20, 30, x = 1, y = 2}
+	local n, sum = 0, 0
+	local k, v = next(t)
+	while k ~= nil do
+		n = n + 1
+		sum = sum + v
+		k, v = next(t, k)
+	end
+	testAssert(n == 5 and sum == 63)
+	testAssert(next({}) == nil)
+	testAssert(not pcall(next, t, "missing"))
+
+	local seen = 0
+	for k, v in next, t do
+		seen = seen + 1
+	end
+	testAssert(seen == 5)
+end)
+
+testCall("pairs clear while iterating", function()
+	local t = {}
+	for i = 1, 50 do
+		t[i] = i
+		t["k" .. i] = i
+	end
+	local n = 0
+	for k, v in pairs(t) do
+		t[k] = nil
+		n = n + 1
+	end
+	testAssert(n == 100)
+	testAssert(table.isempty(t))
+end)
+
+testCall("ipairs", function()
+	local t = {1, 2, 3, nil, 5}
+	local n = 0
+	for i, v in ipairs(t) do
+		testAssert(i == v)
+		n = n + 1
+	end
+	testAssert(n == 3)
+
+	local proxy = setmetatable({}, {__index = function(_, i) if i <= 4 then return i * 2 end end})
+	local sum = 0
+	for i, v in ipairs(proxy) do
+		sum = sum + v
+	end
+	testAssert(sum == 20)
+
+	local f, s, c = ipairs(t)
+	testAssert(s == t and c == 0)
+	local i, v = f(s, c)
+	testAssert(i == 1 and v == 1)
+end)
@@ -204,3 +204,22 @@ do
 	assert(endswith(errormsg, "cannot change a protected metatable"), errormsg)
 end
 
+
+testCall("metamethod added after a miss", function()
+	local mt = {}
+	local t = setmetatable({}, mt)
+	local u = setmetatable({}, mt)
+	testAssert(t.x == nil)
+	testAssert(not pcall(function() return t + 1 end))
+	testAssert(not (t == u))
+
+	mt.__index = {x = 1}
+	rawset(mt, "__add", function() return 2 end)
+	mt.__eq = function() return true end
+	testAssert(t.x == 1)
+	testAssert(t + 1 == 2)
+	testAssert(t == u)
+
+	mt.__index = nil
+	testAssert(t.x == nil)
+end)
@@ -131,8 +131,39 @@ do
 	sortAndVerify{1000, 100, 2000, 200, 150}
 	sortAndVerify{1, 2, 3, 4, 5, 6}
 	sortAndVerify{6, 5, 4, 3, 2, 1}
+	sortAndVerify{"b", "a", "d", "c"}
+	local big = {}
+	for i = 1, 1000 do
+		big[i] = (i * 7919) % 1009
+	end
+	sortAndVerify(big)
 end
 
+testCall("sort with comparator", function()
+	local t = {}
+	for i = 1, 200 do
+		t[i] = {key = i % 7, order = i}
+	end
+	table.sort(t, function(a, b) return a.key > b.key end)
+	for i = 2, #t do
+		local prev, cur = t[i - 1], t[i]
+		testAssert(prev.key > cur.key or prev.key == cur.key and prev.order < cur.order)
+	end
+end)
+
+testCall("sort with __lt", function()
+	local mt = {__lt = function(a, b) return a.v < b.v end}
+	local t = {}
+	for i = 1, 30 do
+		t[i] = setmetatable({v = 31 - i}, mt)
+	end
+	table.sort(t)
+	for i = 1, 30 do
+		testAssert(t[i].v == i)
+	end
+	testAssert(not pcall(table.sort, {1, "a", 2}))
+end)
+
 do
 	local t = {}
 	table.insert(t, 1)
@@ -164,3 +195,73 @@ testAssert(not table.isempty(t))
 t["asd"] = nil
 testAssert(table.isempty(t))
 
+
+testCall(function()
+	local t = table.new(100, 4)
+	testAssert(type(t) == "table")
+	testAssert(table.isempty(t))
+	testAssert(#t == 0)
+	for i = 1, 100 do
+		t[i] = i
+	end
+	t.x, t.y = 1, 2
+	testAssert(#t == 100)
+	testAssert(t[100] == 100 and t.y == 2)
+
+	local e = table.new()
+	testAssert(table.isempty(e))
+	e = table.new(-1, 0 / 0)
+	e[1] = "a"
+	testAssert(#e == 1)
+end)
+
+testCall(function()
+	local big = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20,
+		a = 1, b = 2, c = 3}
+	testAssert(#big == 20)
+	testAssert(big[20] == 20 and big.c == 3)
+end)
+
+testCall(function()
+	local t = {1, 2, 3, x = 4}
+	table.release(t)
+	t[1] = "again"
+	testAssert(t[1] == "again")
+end)
+
+testCall("bulk array operations", function()
+	local t = {}
+	for i = 1, 1000 do
+		t[i] = i
+	end
+	for i = 1, 500 do
+		testAssert(table.remove(t, 1) == i)
+	end
+	testAssert(#t == 500 and t[1] == 501 and t[500] == 1000 and t[501] == nil)
+
+	table.insert(t, 1, "first")
+	table.insert(t, 250, "mid")
+	testAssert(#t == 502 and t[1] == "first" and t[2] == 501)
+	testAssert(t[250] == "mid" and t[251] == 749 and t[502] == 1000)
+
+	local s = {"a", "b", "c", "d"}
+	testAssert(table.concat(s, ",") == "a,b,c,d")
+	testAssert(table.concat(s, ",", 2, 3) == "b,c")
+	local big = {}
+	for i = 1, 600 do
+		big[i] = "x"
+	end
+	testAssert(#table.concat(big) == 600)
+
+	local a, b, c = unpack({1, 2, 3})
+	testAssert(a == 1 and b == 2 and c == 3)
+	testAssert(select("#", unpack({1, 2, 3}, 2)) == 2)
+
+	local function pack(...)
+		return {...}
+	end
+	local p = pack(unpack(big))
+	testAssert(#p == 600 and p[600] == "x")
+	local q = {1, 2, 3, unpack({4, 5, 6})}
+	testAssert(#q == 6 and q[6] == 6)
+end)
@@ -0,0 +1,103 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.InstructionBudgetException;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.Platform;
+import se.krka.kahlua.vm2.KahluaThread2;
+import se.krka.kahlua.vm2.ThreadCoroutineLib;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BudgetTest {
+
+	private static final String RUNAWAY =
+			"while true do pcall(function() while true do end end) end";
+
+	private static final String WORKER =
+			"count = 0\n" +
+			"local co = coroutine.create(function() while true do count = count + 1 end end)\n" +
+			"return function() local ok = coroutine.resume(co) return ok end";
+
+	private static void assertStopped(KahluaThread t, KahluaTable env) throws IOException {
+		LuaClosure f = LuaCompiler.loadstring(RUNAWAY, "runaway", env);
+		t.setInstructionBudget(100000, 1000, KahluaThread.BUDGET_ERROR);
+		try {
+			t.call(f, null);
+			fail("runaway loop was not stopped");
+		} catch (RuntimeException e) {
+			Throwable c = e;
+			while (!(c instanceof InstructionBudgetException) && c.getCause() != null) {
+				c = c.getCause();
+			}
+			assertTrue(String.valueOf(e), c instanceof InstructionBudgetException
+					|| String.valueOf(c.getMessage()).contains("instruction budget exceeded"));
+		}
+		assertEquals(0, t.getInstructionBudget());
+	}
+
+	private static void assertSliced(KahluaThread t, KahluaTable env) throws IOException {
+		LuaClosure f = LuaCompiler.loadstring(WORKER, "worker", env);
+		Object step = t.call(f, null);
+
+		double last = 0;
+		for (int i = 0; i < 3; i++) {
+			t.setInstructionBudget(5000, 500, KahluaThread.BUDGET_YIELD);
+			assertEquals(Boolean.TRUE, t.call(step, null));
+			double count = (Double) env.rawget("count");
+			assertTrue(count > last);
+			last = count;
+		}
+		t.setInstructionBudget(-1, 1, KahluaThread.BUDGET_ERROR);
+	}
+
+	@Test
+	public void testInterpreter() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread t = new KahluaThread(platform, env);
+		assertStopped(t, env);
+		assertSliced(t, env);
+	}
+
+	@Test
+	public void testCompiled() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread2 t = new KahluaThread2(platform, env);
+		assertStopped(t, env);
+
+		ThreadCoroutineLib.register(platform, env, CoroutineTest.DAEMON);
+		assertSliced(t, env);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.KahluaUtil;
+import se.krka.kahlua.vm.Platform;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ClassMetatablesTest {
+
+	@Test
+	public void testRegistryChangesAreSeen() {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread t = new KahluaThread(platform, env);
+		KahluaTable metatables = KahluaUtil.getClassMetatables(platform, env);
+		StringBuilder o = new StringBuilder();
+
+		assertNull(t.getmetatable(o, true));
+
+		KahluaTable mt = platform.newTable();
+		metatables.rawset(StringBuilder.class, mt);
+		assertSame(mt, t.getmetatable(o, true));
+		assertSame(mt, t.getmetatable(o, true));
+
+		KahluaTable mt2 = platform.newTable();
+		metatables.rawset(StringBuilder.class, mt2);
+		assertSame(mt2, t.getmetatable(o, true));
+
+		metatables.rawset(StringBuilder.class, null);
+		assertNull(t.getmetatable(o, true));
+	}
+
+	private static WeakReference<KahluaTable> useStringMetatable(Platform platform) throws IOException {
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread t = new KahluaThread(platform, env);
+		assertEquals(3.0, t.call(LuaCompiler.loadstring("return ('abc'):len()", "len", env), null));
+		return new WeakReference<KahluaTable>(env);
+	}
+
+	@Test
+	public void testEnvironmentIsNotPinned() throws IOException {
+		WeakReference<KahluaTable> env = useStringMetatable(new J2SEPlatform());
+		useStringMetatable(new J2SEPlatform());
+		for (int i = 0; i < 50 && env.get() != null; i++) {
+			System.gc();
+		}
+		assertNull(env.get());
+	}
+}
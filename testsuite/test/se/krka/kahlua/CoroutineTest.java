@@ -6,10 +6,16 @@ import se.krka.kahlua.vm.KahluaTable;
 import se.krka.kahlua.vm.KahluaThread;
 import se.krka.kahlua.vm.LuaClosure;
 import se.krka.kahlua.vm.Platform;
+import se.krka.kahlua.vm2.KahluaThread2;
+import se.krka.kahlua.vm2.ThreadCoroutineLib;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 /*
  Copyright (c) 2010 Kristofer Karlsson <kristofer.karlsson@gmail.com>
 
@@ -83,4 +89,84 @@ public class CoroutineTest {
 		}
 	}
 
+	static final ThreadFactory DAEMON = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "lua-coroutine");
+			t.setDaemon(true);
+			return t;
+		}
+	};
+
+	private static final String THREADED_SCRIPT =
+			"local function deep(n)\n" +
+			"  if n == 0 then return coroutine.yield(n) end\n" +
+			"  return deep(n - 1) + 1\n" +
+			"end\n" +
+			"local c = coroutine.create(function(a)\n" +
+			"  local ok, v = pcall(deep, a)\n" +
+			"  assert(coroutine.status(coroutine.running()) == 'running')\n" +
+			"  return v * 10\n" +
+			"end)\n" +
+			"assert(coroutine.status(c) == 'suspended')\n" +
+			"local ok, v = coroutine.resume(c, 3)\n" +
+			"assert(ok == true and v == 0, 'first resume')\n" +
+			"assert(coroutine.status(c) == 'suspended')\n" +
+			"ok, v = coroutine.resume(c, 5)\n" +
+			"assert(ok == true and v == 80, 'second resume')\n" +
+			"assert(coroutine.status(c) == 'dead')\n" +
+			"assert(coroutine.resume(c) == false)\n" +
+			"local e = coroutine.create(function() error('boom') end)\n" +
+			"ok, v = coroutine.resume(e)\n" +
+			"assert(ok == false and v == 'boom', 'error')\n" +
+			"local w = coroutine.wrap(function(a) local b = coroutine.yield(a + 1) return b * 2 end)\n" +
+			"assert(w(1) == 2 and w(4) == 8, 'wrap')\n" +
+			"return 'ok'";
+
+	private static void runThreaded(KahluaThread t, Platform platform, KahluaTable env) throws IOException {
+		ThreadCoroutineLib.register(platform, env, DAEMON);
+		LuaClosure script = LuaCompiler.loadstring(THREADED_SCRIPT, "threaded", env);
+		assertEquals("ok", t.call(script, null));
+	}
+
+	@org.junit.Test
+	public void testThreadCoroutine() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		runThreaded(new KahluaThread(platform, env), platform, env);
+	}
+
+	@org.junit.Test
+	public void testThreadCoroutineCompiled() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		runThreaded(new KahluaThread2(platform, env), platform, env);
+	}
+
+	@org.junit.Test
+	public void testDroppedThreadCoroutineIsKilled() throws Exception {
+		final List<Thread> bodies = new ArrayList<Thread>();
+		ThreadFactory recording = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = DAEMON.newThread(r);
+				bodies.add(t);
+				return t;
+			}
+		};
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread t = new KahluaThread(platform, env);
+		ThreadCoroutineLib.register(platform, env, recording);
+		LuaClosure script = LuaCompiler.loadstring(
+				"local c = coroutine.create(function() coroutine.yield(1) end)\n" +
+				"return coroutine.resume(c)", "dropped", env);
+		assertEquals(Boolean.TRUE, t.call(script, null));
+		assertEquals(1, bodies.size());
+
+		Thread body = bodies.get(0);
+		for (int i = 0; i < 100 && body.isAlive(); i++) {
+			System.gc();
+			body.join(50);
+		}
+		assertFalse(body.isAlive());
+	}
 }
@@ -0,0 +1,74 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua;
+
+import org.junit.After;
+import org.junit.Test;
+import se.krka.kahlua.vm.DoubleCache;
+import se.krka.kahlua.vm.KahluaUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DoubleCacheTest {
+
+	@After
+	public void restore() {
+		DoubleCache.setRange(DoubleCache.DEFAULT_LOW, DoubleCache.DEFAULT_HIGH);
+		DoubleCache.setCounting(false);
+		DoubleCache.resetCounters();
+	}
+
+	@Test
+	public void testSmallIntegersAreShared() {
+		assertSame(KahluaUtil.toDouble(7), KahluaUtil.toDouble(7.0));
+		assertSame(KahluaUtil.toDouble(-1024), KahluaUtil.toDouble(-1024));
+		assertSame(KahluaUtil.toDouble(65535), KahluaUtil.toDouble(65535));
+		assertNotSame(KahluaUtil.toDouble(65536), KahluaUtil.toDouble(65536));
+		assertNotSame(KahluaUtil.toDouble(0.5), KahluaUtil.toDouble(0.5));
+	}
+
+	@Test
+	public void testNegativeZeroKeepsItsSign() {
+		assertEquals(Double.NEGATIVE_INFINITY, 1 / KahluaUtil.toDouble(-0.0), 0);
+		assertEquals(Double.POSITIVE_INFINITY, 1 / KahluaUtil.toDouble(0.0), 0);
+		assertTrue(KahluaUtil.toDouble(Double.NaN).isNaN());
+	}
+
+	@Test
+	public void testRangeAndCounters() {
+		DoubleCache.setRange(0, 10);
+		DoubleCache.setCounting(true);
+		DoubleCache.resetCounters();
+
+		KahluaUtil.toDouble(3);
+		KahluaUtil.toDouble(3);
+		KahluaUtil.toDouble(11);
+
+		assertEquals(1, DoubleCache.getHits());
+		assertEquals(2, DoubleCache.getMisses());
+		assertEquals(10, DoubleCache.getHigh());
+	}
+}
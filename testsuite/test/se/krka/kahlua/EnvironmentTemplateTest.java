@@ -0,0 +1,159 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.FrozenTable;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.EnvironmentTemplate;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaTableIterator;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.KahluaUtil;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm2.KahluaThread2;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EnvironmentTemplateTest {
+
+	private static final String MOD =
+			"local n = 0\n" +
+			"function counter() n = n + 1 return n end\n" +
+			"function greet(s) return ('hi '):rep(2) .. s:upper() end\n" +
+			"mod = { version = 3 }\n" +
+			"string.shout = function(s) return s:upper() .. '!' end";
+
+	private static Object run(KahluaTable env, String source) throws IOException {
+		LuaClosure f = LuaCompiler.loadstring(source, "test", env);
+		return new KahluaThread(J2SEPlatform.getInstance(), env).call(f, null);
+	}
+
+	@Test
+	public void testClonesAreInitialisedAndIsolated() throws IOException {
+		J2SEPlatform platform = new J2SEPlatform();
+		KahluaTable source = platform.newEnvironment();
+		run(source, MOD);
+		EnvironmentTemplate template = platform.newTemplate(source);
+
+		KahluaTable a = template.newEnvironment();
+		KahluaTable b = template.newEnvironment();
+		assertSame(a, a.rawget("_G"));
+		assertNotSame(source.rawget("string"), a.rawget("string"));
+
+		assertEquals("hi hi BOB", run(a, "return greet('bob')"));
+		assertEquals("X!", run(a, "return ('x'):shout()"));
+		assertEquals(3.0, run(b, "return mod.version"));
+		assertEquals("3", run(a, "local t = {} for _, v in ipairs({1, 2}) do t[#t + 1] = v end " +
+				"return tostring(math.max(unpack(t)) + 1)"));
+
+		assertEquals(1.0, run(a, "return counter()"));
+		assertEquals(2.0, run(a, "return counter()"));
+		assertEquals(1.0, run(b, "return counter()"));
+
+		run(a, "string.shout = nil; mod.version = 4; print = nil; x = 1");
+		assertEquals("Y!", run(b, "return ('y'):shout()"));
+		assertEquals(3.0, run(b, "return mod.version"));
+		assertNull(b.rawget("x"));
+		assertEquals(true, run(b, "return print ~= nil"));
+	}
+
+	@Test
+	public void testSnapshotIsTakenOnCreation() throws IOException {
+		J2SEPlatform platform = new J2SEPlatform();
+		KahluaTable source = platform.newEnvironment();
+		EnvironmentTemplate template = platform.newTemplate(source);
+		run(source, "late = true");
+
+		KahluaTable env = template.newEnvironment();
+		assertNull(env.rawget("late"));
+		assertNotSame(KahluaUtil.getWorkerThread(platform, source),
+				KahluaUtil.getWorkerThread(platform, env));
+		assertSame(env, KahluaUtil.getWorkerThread(platform, env).getEnvironment());
+		assertEquals("string", run(env, "return type(serialize({2}))"));
+	}
+
+	@Test
+	public void testWeakTablesStayWeak() throws IOException, InterruptedException {
+		J2SEPlatform platform = new J2SEPlatform();
+		KahluaTable source = platform.newEnvironment();
+		run(source, "cache = setmetatable({}, {__mode = 'k'})");
+		KahluaTable env = platform.newTemplate(source).newEnvironment();
+
+		KahluaTable cache = (KahluaTable) env.rawget("cache");
+		assertNotSame(source.rawget("cache"), cache);
+		for (int i = 0; i < 100; i++) {
+			cache.rawset(new Object(), "garbage");
+		}
+		int left = 100;
+		for (int i = 0; i < 50 && left > 0; i++) {
+			System.gc();
+			Thread.sleep(10);
+			cache.rawget("poll");
+			left = 0;
+			KahluaTableIterator it = cache.iterator();
+			while (it.advance()) {
+				left++;
+			}
+		}
+		assertTrue(left < 100);
+	}
+
+	@Test
+	public void testCompiledFunctionsAreRefused() throws IOException {
+		J2SEPlatform platform = new J2SEPlatform();
+		KahluaTable source = platform.newEnvironment();
+		LuaClosure f = LuaCompiler.loadstring("function compiled() return 1 end", "vm2", source);
+		new KahluaThread2(platform, source).call(f, null);
+		try {
+			platform.newTemplate(source);
+			fail("a compiled function was shared by the clones");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("compiled"));
+		}
+	}
+
+	@Test
+	public void testFrozenTablesAreShared() throws IOException {
+		J2SEPlatform platform = new J2SEPlatform();
+		KahluaTable source = platform.newEnvironment();
+		run(source, "items = {sword = {damage = 3}}");
+		FrozenTable items = FrozenTable.freeze((KahluaTable) source.rawget("items"));
+		source.rawset("items", items);
+		EnvironmentTemplate template = platform.newTemplate(source);
+
+		KahluaTable a = template.newEnvironment();
+		KahluaTable b = template.newEnvironment();
+		assertSame(items, a.rawget("items"));
+		assertSame(items, b.rawget("items"));
+		assertEquals(3.0, run(a, "return items.sword.damage"));
+		assertEquals(false, run(b, "return pcall(function() items.axe = 1 end)"));
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.FrozenTable;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.j2se.J2SEPlatform2;
+import se.krka.kahlua.j2se.J2SEPlatform3;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.Platform;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrozenTableTest {
+
+	private static KahluaTable items(Platform platform) {
+		KahluaTable items = platform.newTable();
+		for (int i = 1; i <= 100; i++) {
+			KahluaTable item = platform.newTable();
+			item.rawset("id", (double) i);
+			item.rawset("name", "item" + i);
+			items.rawset(i, item);
+		}
+		items.rawset("count", 100.0);
+		items.rawset(0.0, "zero");
+		items.rawset(1000, "far");
+		items.rawset("self", items);
+		return items;
+	}
+
+	private static void checkItems(KahluaTable f) {
+		assertEquals(100, f.len());
+		assertEquals(100.0, f.rawget("count"));
+		assertEquals("zero", f.rawget(-0.0));
+		assertEquals("far", f.rawget(1000));
+		assertEquals("far", f.rawget(1000.0));
+		assertNull(f.rawget(101));
+		assertNull(f.rawget("none"));
+		assertSame(f, f.rawget("self"));
+		KahluaTable item = (KahluaTable) f.rawget(42);
+		assertTrue(item instanceof FrozenTable);
+		assertEquals("item42", item.rawget("name"));
+
+		int n = 0;
+		for (int pos = f.nextEntry(0); pos >= 0; pos = f.nextEntry(pos + 1)) {
+			assertEquals(pos, f.entryOf(f.entryKey(pos)));
+			n++;
+		}
+		assertEquals(104, n);
+	}
+
+	@Test
+	public void testFreeze() {
+		checkItems(FrozenTable.freeze(items(new J2SEPlatform())));
+		checkItems(FrozenTable.freeze(items(new J2SEPlatform2())));
+		checkItems(FrozenTable.freeze(items(new J2SEPlatform3())));
+
+		FrozenTable f = FrozenTable.freeze(new J2SEPlatform3().newTable());
+		assertTrue(f.isEmpty());
+		assertSame(f, FrozenTable.freeze(f));
+	}
+
+	@Test
+	public void testWritesFail() throws IOException {
+		J2SEPlatform3 platform = new J2SEPlatform3();
+		FrozenTable f = FrozenTable.freeze(items(platform));
+		try {
+			f.rawset("count", 1.0);
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("attempt to modify a frozen table", e.getMessage());
+		}
+		try {
+			f.setMetatable(platform.newTable());
+			fail();
+		} catch (RuntimeException e) {
+			// expected
+		}
+
+		KahluaTable env = platform.newEnvironment();
+		KahluaTable withFunction = platform.newTable();
+		withFunction.rawset("f", LuaCompiler.loadstring("return 1", "f", env));
+		try {
+			FrozenTable.freeze(withFunction);
+			fail();
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSharedBetweenStates() throws Exception {
+		final KahluaTable meta = new J2SEPlatform().newTable();
+		final KahluaTable defaults = new J2SEPlatform().newTable();
+		defaults.rawset("weight", 2.0);
+		meta.rawset("__index", defaults);
+		KahluaTable items = items(new J2SEPlatform());
+		for (int i = 1; i <= 100; i++) {
+			((KahluaTable) items.rawget(i)).setMetatable(meta);
+		}
+		final FrozenTable shared = FrozenTable.freeze(items);
+
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						J2SEPlatform3 platform = new J2SEPlatform3();
+						KahluaTable env = platform.newEnvironment();
+						env.rawset("items", shared);
+						LuaClosure f = LuaCompiler.loadstring(
+								"local sum, w = 0, 0"
+								+ " for round = 1, 20 do"
+								+ "  for i, item in ipairs(items) do sum = sum + item.id; w = w + item.weight end"
+								+ "  for k, v in pairs(items) do end"
+								+ " end"
+								+ " local ok = pcall(function() items.count = 1 end)"
+								+ " return sum, w, #items, ok", "shared", env);
+						Object[] r = new KahluaThread(platform, env).pcall(f);
+						assertEquals(Boolean.TRUE, r[0]);
+						assertEquals(20 * 5050.0, r[1]);
+						assertEquals(20 * 200.0, r[2]);
+						assertEquals(100.0, r[3]);
+						assertEquals(Boolean.FALSE, r[4]);
+					} catch (Throwable e) {
+						error.set(e);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		assertNotNull(shared.rawget(1));
+	}
+}
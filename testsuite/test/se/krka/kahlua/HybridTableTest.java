@@ -0,0 +1,224 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.HybridTable;
+import se.krka.kahlua.vm.KahluaTableIterator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HybridTableTest {
+
+	private static Object randomKey(Random r) {
+		switch (r.nextInt(4)) {
+			case 0: return (double) (r.nextInt(200) - 10);
+			case 1: return r.nextInt(50) + 0.5;
+			case 2: return "k" + r.nextInt(100);
+			default: return r.nextBoolean();
+		}
+	}
+
+	private static void assertSameContent(Map<Object, Object> expected, HybridTable t) {
+		for (Map.Entry<Object, Object> e : expected.entrySet()) {
+			assertEquals(e.getValue(), t.rawget(e.getKey()));
+		}
+		int n = 0;
+		KahluaTableIterator it = t.iterator();
+		while (it.advance()) {
+			assertEquals(expected.get(it.getKey()), it.getValue());
+			++n;
+		}
+		assertEquals(expected.size(), n);
+		assertEquals(expected.isEmpty(), t.isEmpty());
+	}
+
+	@Test
+	public void testAgainstMap() {
+		Random r = new Random(42);
+		Map<Object, Object> expected = new HashMap<Object, Object>();
+		HybridTable t = new HybridTable();
+
+		for (int i = 0; i < 20000; i++) {
+			Object key = randomKey(r);
+			Object value = r.nextInt(3) == 0 ? null : "v" + i;
+			if (value == null) {
+				expected.remove(key);
+			} else {
+				expected.put(key, value);
+			}
+			t.rawset(key, value);
+			if (i % 1000 == 0) {
+				assertSameContent(expected, t);
+			}
+		}
+		assertSameContent(expected, t);
+		t.wipe();
+		assertSameContent(new HashMap<Object, Object>(), t);
+	}
+
+	@Test
+	public void testLength() {
+		HybridTable t = new HybridTable();
+		assertEquals(0, t.len());
+		for (int i = 1; i <= 1000; i++) {
+			t.rawset(i, "x");
+			assertEquals(i, t.len());
+		}
+		for (int i = 1000; i > 0; i--) {
+			t.rawset(i, null);
+			assertEquals(i - 1, t.len());
+		}
+
+		t = new HybridTable();
+		for (int i = 1000; i > 0; i--) {
+			t.rawset((double) i, "x");
+		}
+		assertEquals(1000, t.len());
+
+		t.rawset(500, null);
+		int n = t.len();
+		assertTrue(n == 499 || n == 1000);
+		assertTrue(t.rawget(n) != null && t.rawget(n + 1) == null);
+	}
+
+	@Test
+	public void testRemoveWhileIterating() {
+		HybridTable t = new HybridTable();
+		for (int i = 0; i < 100; i++) {
+			t.rawset("k" + i, "v");
+			t.rawset(i + 1, "v");
+		}
+		KahluaTableIterator it = t.iterator();
+		int n = 0;
+		while (it.advance()) {
+			t.rawset(it.getKey(), null);
+			++n;
+		}
+		assertEquals(200, n);
+		assertTrue(t.isEmpty());
+		assertEquals(0, t.len());
+	}
+
+	@Test
+	public void testNumberKeys() {
+		HybridTable t = new HybridTable();
+		t.rawset(-0.0, "zero");
+		assertEquals("zero", t.rawget(0.0));
+		assertEquals("zero", t.rawget(0));
+
+		t.rawset(1e300, "big");
+		assertEquals("big", t.rawget(Double.valueOf(1e300)));
+		assertNull(t.rawget(Double.NaN));
+
+		t.rawset(Double.NaN, null);
+		try {
+			t.rawset(Double.NaN, "x");
+			fail();
+		} catch (RuntimeException e) {
+			assertFalse(t.isEmpty());
+		}
+	}
+
+	@Test
+	public void testFractionalKeys() {
+		HybridTable t = new HybridTable();
+		t.rawset(1.5, "x");
+		assertNull(t.rawget(1));
+		assertEquals("x", t.rawget(1.5));
+		assertEquals(0, t.len());
+
+		t.rawset(1, "a");
+		t.rawset(2, "b");
+		t.rawset(2.5, "y");
+		assertEquals("b", t.rawget(2));
+		assertEquals("y", t.rawget(2.5));
+		assertEquals(2, t.len());
+	}
+
+	@Test
+	public void testNumericArrayPart() {
+		HybridTable t = new HybridTable();
+		for (int i = 1; i <= 100; i++) {
+			t.rawset(i, Double.valueOf(i * 0.5));
+		}
+		t.rawset(50, null);
+		assertNull(t.rawget(50));
+		assertEquals(Double.valueOf(24.5), t.rawget(49));
+		t.rawset(50, (Object) Double.NaN);
+		assertTrue(((Double) t.rawget(50)).isNaN());
+
+		t.rawset(7, "seven");
+		assertEquals("seven", t.rawget(7));
+		assertEquals(Double.valueOf(50.0), t.rawget(100));
+		assertEquals(100, t.len());
+
+		Map<Object, Object> expected = new HashMap<Object, Object>();
+		HybridTable n = new HybridTable(8, 0);
+		for (int i = 8; i > 0; i--) {
+			n.rawset((double) i, Double.valueOf(-i));
+			expected.put((double) i, Double.valueOf(-i));
+		}
+		n.rawset(3, null);
+		expected.remove(3.0);
+		assertSameContent(expected, n);
+		int b = n.len();
+		assertTrue(b == 2 || b == 8);
+	}
+
+	@Test
+	public void testBulkOperations() {
+		for (boolean numeric : new boolean[] {true, false}) {
+			HybridTable t = new HybridTable();
+			for (int i = 1; i <= 100; i++) {
+				t.rawset(i, numeric ? (Object) (double) i : "v" + i);
+			}
+			t.move(2, 1, 99);
+			t.rawset(100, null);
+			assertEquals(99, t.len());
+			assertEquals(numeric ? (Object) 2.0 : "v2", t.rawget(1));
+
+			Object[] out = new Object[4];
+			t.getRange(98, out, 0, 4);
+			assertEquals(numeric ? (Object) 100.0 : "v100", out[1]);
+			assertNull(out[2]);
+			assertNull(out[3]);
+
+			t.fill(10, 5, null);
+			assertNull(t.rawget(12));
+			t.setRange(10, new Object[] {1.0, 2.0, 3.0, 4.0, 5.0}, 0, 5);
+			assertEquals(3.0, t.rawget(12));
+			assertEquals(99, t.len());
+
+			t.setRange(200, new Object[] {"a", "b"}, 0, 2);
+			assertEquals("b", t.rawget(201));
+		}
+	}
+}
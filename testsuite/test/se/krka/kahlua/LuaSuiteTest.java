@@ -0,0 +1,147 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.j2se.J2SEPlatform2;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.stdlib.OsLib;
+import se.krka.kahlua.vm.JavaFunction;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.KahluaUtil;
+import se.krka.kahlua.vm.LuaCallFrame;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.Platform;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the scripts of testsuite/lua with the interpreter on each platform.
+ */
+public class LuaSuiteTest {
+
+	private static final File DIR = new File("testsuite/lua");
+
+
+	private static KahluaThread newThread(Platform platform) throws IOException {
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread thread = new KahluaThread(platform, env);
+		OsLib.register(platform, env);
+		LuaCompiler.register(env);
+		env.rawset("newobject", new JavaFunction() {
+			@Override
+			public int call(LuaCallFrame callFrame, int nArguments) {
+				return callFrame.push(new Object());
+			}
+		});
+		env.rawset("luareturnparam", new JavaFunction() {
+			@Override
+			public int call(LuaCallFrame callFrame, int nArguments) {
+				for (int i = 0; i < nArguments; i++) {
+					callFrame.push(callFrame.get(nArguments - i - 1));
+				}
+				callFrame.push(KahluaUtil.toDouble(nArguments));
+				return nArguments + 1;
+			}
+		});
+		thread.call(load(new File(DIR, "testhelper.lua"), env), null);
+		return thread;
+	}
+
+	private static LuaClosure load(File file, KahluaTable env) throws IOException {
+		Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			return LuaCompiler.loadis(in, file.getName(), env);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The scripts that failed, with the first error of each.
+	 */
+	private static List<String> run(Platform platform, String... skip) throws IOException {
+		List<String> failed = new ArrayList<String>();
+		File[] files = DIR.listFiles();
+		Arrays.sort(files);
+		for (File f : files) {
+			if (!f.getName().endsWith(".lua") || f.getName().equals("testhelper.lua")
+					|| Arrays.asList(skip).contains(f.getName())) {
+				continue;
+			}
+			KahluaThread thread = newThread(platform);
+			Object testCall = thread.getEnvironment().rawget("testCall");
+			Object[] r = thread.pcall(testCall, new Object[] {f.getName(), load(f, thread.getEnvironment())});
+			if (r[0] != Boolean.TRUE) {
+				failed.add(f.getName() + ": " + r[1]);
+			} else if (!(r[1] instanceof KahluaTable)
+					|| !Double.valueOf(0).equals(((KahluaTable) r[1]).rawget("failcount"))) {
+				failed.add(f.getName() + ": " + describe(r[1]));
+			}
+		}
+		return failed;
+	}
+
+	private static String describe(Object testcase) {
+		if (!(testcase instanceof KahluaTable)) {
+			return String.valueOf(testcase);
+		}
+		KahluaTable t = (KahluaTable) testcase;
+		Object fail = t.rawget("fail");
+		if (fail instanceof KahluaTable) {
+			Object first = ((KahluaTable) fail).rawget(1);
+			while (first instanceof KahluaTable && ((KahluaTable) first).rawget("error") == null
+					&& ((KahluaTable) first).rawget("fail") instanceof KahluaTable) {
+				first = ((KahluaTable) ((KahluaTable) first).rawget("fail")).rawget(1);
+			}
+			if (first instanceof KahluaTable) {
+				KahluaTable c = (KahluaTable) first;
+				return c.rawget("name") + " " + c.rawget("error");
+			}
+		}
+		return t.rawget("failcount") + " failed";
+	}
+
+	@Test
+	public void testJ2SEPlatform() throws IOException {
+		List<String> failed = run(new J2SEPlatform());
+		assertTrue(failed.toString(), failed.isEmpty());
+	}
+
+	@Test
+	public void testJ2SEPlatform2() throws IOException {
+		// The # of an ArrayTable counts its values, it is not a border
+		List<String> failed = run(new J2SEPlatform2(), "tablelen.lua");
+		assertTrue(failed.toString(), failed.isEmpty());
+	}
+}
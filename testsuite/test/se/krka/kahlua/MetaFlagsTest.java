@@ -0,0 +1,54 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.MetaFlags;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MetaFlagsTest {
+
+	@Test
+	public void testMissIsCached() {
+		KahluaTable meta = new J2SEPlatform().newTable();
+		assertNull(MetaFlags.get(meta, "__index"));
+		assertEquals(MetaFlags.INDEX, meta.getMetaFlags() & MetaFlags.ALL);
+
+		meta.rawset("__index", meta);
+		assertEquals(meta, MetaFlags.get(meta, "__index"));
+	}
+
+	@Test
+	public void testStaleMissIsRefused() {
+		KahluaTable meta = new J2SEPlatform().newTable();
+		// A lookup that read the flags before a concurrent rawset
+		int seen = meta.getMetaFlags();
+		meta.rawset("__index", meta);
+		meta.setMetaFlags(seen | MetaFlags.INDEX);
+
+		assertEquals(meta, MetaFlags.get(meta, "__index"));
+	}
+}
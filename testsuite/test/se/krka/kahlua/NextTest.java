@@ -0,0 +1,81 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.j2se.J2SEPlatform2;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.Platform;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class NextTest {
+
+	private static final String CLEAR =
+			"local t = {}\n" +
+			"for i = 1, 500 do t['k' .. i] = i end\n" +
+			"for i = 1, 100 do t[i] = i end\n" +
+			"local n = 0\n" +
+			"for k in next, t do t[k] = nil; n = n + 1 end\n" +
+			"local a = {}\n" +
+			"for i = 1, 100 do a[i] = i end\n" +
+			"for k in next, a do a[k] = nil; n = n + 1 end\n" +
+			"assert(next(t) == nil and next(a) == nil)\n" +
+			"return n";
+
+	private static Object run(Platform platform, String source) throws IOException {
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread thread = new KahluaThread(platform, env);
+		LuaClosure f = LuaCompiler.loadstring(source, "next", env);
+		return thread.call(f, null);
+	}
+
+	@Test
+	public void testClearDuringNext() throws IOException {
+		assertEquals(700.0, run(new J2SEPlatform(), CLEAR));
+	}
+
+	@Test
+	public void testClearDuringNextOnPlatform2() throws IOException {
+		assertEquals(700.0, run(new J2SEPlatform2(), CLEAR));
+	}
+
+	@Test
+	public void testNextAfterEveryKey() throws IOException {
+		assertEquals(600.0, run(new J2SEPlatform(),
+				"local t = {}\n" +
+				"for i = 1, 300 do t['k' .. i] = i; t[i] = i end\n" +
+				"local n = 0\n" +
+				"for k in pairs(t) do\n" +
+				"  local k2 = next(t, k)\n" +
+				"  assert(k2 == nil or t[k2] ~= nil)\n" +
+				"  n = n + 1\n" +
+				"end\n" +
+				"return n"));
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.ShapeTable;
+import se.krka.kahlua.vm.KahluaTableIterator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShapeTableTest {
+
+	private static void assertSameContent(Map<Object, Object> expected, ShapeTable t) {
+		for (Map.Entry<Object, Object> e : expected.entrySet()) {
+			assertEquals(e.getValue(), t.rawget(e.getKey()));
+		}
+		int n = 0;
+		KahluaTableIterator it = t.iterator();
+		while (it.advance()) {
+			assertEquals(expected.get(it.getKey()), it.getValue());
+			++n;
+		}
+		assertEquals(expected.size(), n);
+		assertEquals(expected.isEmpty(), t.isEmpty());
+	}
+
+	private static void check(int fieldNames) {
+		Random r = new Random(fieldNames);
+		Map<Object, Object> expected = new HashMap<Object, Object>();
+		ShapeTable t = new ShapeTable();
+
+		for (int i = 0; i < 5000; i++) {
+			Object key = r.nextInt(4) == 0
+					? (Object) (double) r.nextInt(20)
+					: new String("f" + r.nextInt(fieldNames));
+			Object value = r.nextInt(4) == 0 ? null : "v" + i;
+			if (value == null) {
+				expected.remove(key);
+			} else {
+				expected.put(key, value);
+			}
+			t.rawset(key, value);
+			if (i % 500 == 0) {
+				assertSameContent(expected, t);
+			}
+		}
+		assertSameContent(expected, t);
+		t.wipe();
+		assertSameContent(new HashMap<Object, Object>(), t);
+	}
+
+	@Test
+	public void testRecord() {
+		check(8);
+	}
+
+	@Test
+	public void testDictionary() {
+		check(100);
+	}
+
+	@Test
+	public void testSameFieldsInOtherTables() {
+		ShapeTable a = new ShapeTable();
+		ShapeTable b = new ShapeTable(0, 3);
+		for (String k : new String[] {"x", "y", "z"}) {
+			a.rawset(k, k + "a");
+			b.rawset(k, k + "b");
+		}
+		b.rawset("hp", 10.0);
+		assertEquals("ya", a.rawget("y"));
+		assertEquals("yb", b.rawget("y"));
+		assertNull(a.rawget("hp"));
+		assertEquals(10.0, b.rawget("hp"));
+
+		a.rawset("x", null);
+		assertNull(a.rawget("x"));
+		a.rawset("x", "again");
+		assertEquals("again", a.rawget("x"));
+		assertTrue(!a.isEmpty());
+	}
+
+	@Test
+	public void testShapeBudget() {
+		ShapeTable last = null;
+		for (int i = 0; i < 300; i++) {
+			for (int j = 0; j < 80; j++) {
+				last = new ShapeTable();
+				last.rawset("budget" + i, "a");
+				last.rawset("id" + j, "b");
+				last.rawset("x", "c");
+			}
+		}
+		assertTrue(ShapeTable.getShapeCount() <= ShapeTable.getMaxShapeCount());
+		assertEquals("a", last.rawget("budget299"));
+		assertEquals("b", last.rawget("id79"));
+		assertEquals("c", last.rawget("x"));
+		last.rawset("x", null);
+		assertNull(last.rawget("x"));
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.Coroutine;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.Platform;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class StackLimitTest {
+
+	private static final String DEPTH =
+			"local function d(n) if n == 0 then return 0 end return 1 + d(n - 1) end\n" +
+			"local ok, e = pcall(d, ...)\n" +
+			"if ok then return e end\n" +
+			"return string.sub(tostring(e), 1, 14)";
+
+	private Object depth(KahluaThread t, KahluaTable env, int n) throws IOException {
+		LuaClosure f = LuaCompiler.loadstring(DEPTH, "depth", env);
+		return t.call(f, Double.valueOf(n), null, null);
+	}
+
+	@Test
+	public void testDeepRecursion() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread t = new KahluaThread(platform, env);
+
+		assertEquals(5000.0, depth(t, env, 5000));
+		assertEquals("Stack overflow", depth(t, env, 100000));
+	}
+
+	@Test
+	public void testLimits() throws IOException {
+		Platform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread t = new KahluaThread(platform, env);
+		t.currentCoroutine.setLimits(1000, 100);
+
+		assertEquals(50.0, depth(t, env, 50));
+		assertEquals("Stack overflow", depth(t, env, 200));
+
+		LuaClosure f = LuaCompiler.loadstring(
+				"local c = coroutine.create(function() local co = coroutine.running() return co end)\n" +
+				"local ok, co = coroutine.resume(c)\n" +
+				"return co", "inherit", env);
+		Coroutine c = (Coroutine) t.call(f, null);
+		assertEquals(100, c.getMaxCallFrameStackSize());
+	}
+}
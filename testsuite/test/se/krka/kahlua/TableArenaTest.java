@@ -0,0 +1,215 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform2;
+import se.krka.kahlua.j2se.TableArena;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.JavaFunction;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.LuaCallFrame;
+import se.krka.kahlua.vm.LuaClosure;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TableArenaTest {
+
+	@Test
+	public void testScopeTablesAreReused() {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		TableArena arena = platform.arena();
+		// reads the reset tables
+		arena.setPoison(false);
+
+		arena.begin();
+		KahluaTable t = platform.newTable();
+		t.rawset("x", 1.0);
+		arena.end();
+		assertNull(t.rawget("x"));
+
+		arena.begin();
+		assertSame(t, platform.newTable());
+		arena.end();
+		assertEquals(1, arena.getCreated());
+		assertEquals(1, arena.getReused());
+		assertTrue(!arena.isActive());
+	}
+
+	@Test
+	public void testEscapedTablesArePromoted() {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		KahluaTable global = platform.newTable();
+		TableArena arena = platform.arena();
+		// reads the reset tables
+		arena.setPoison(false);
+
+		arena.begin();
+		KahluaTable kept = platform.newTable();
+		KahluaTable inner = platform.newTable();
+		KahluaTable temp = platform.newTable();
+		inner.rawset(1, "deep");
+		kept.rawset("inner", inner);
+		global.rawset("kept", kept);
+		temp.rawset("v", "gone");
+		arena.end();
+
+		assertEquals(2, arena.getPromoted());
+		assertSame(inner, kept.rawget("inner"));
+		assertEquals("deep", inner.rawget(1));
+		assertNull(temp.rawget("v"));
+
+		arena.begin();
+		KahluaTable next = platform.newTable();
+		assertTrue(next != kept && next != inner);
+		arena.end();
+	}
+
+	@Test
+	public void testNestedScope() {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		TableArena arena = platform.arena();
+		// reads the reset tables
+		arena.setPoison(false);
+
+		arena.begin();
+		KahluaTable outer = platform.newTable();
+		arena.begin();
+		KahluaTable inner = platform.newTable();
+		outer.rawset("inner", inner);
+		arena.end();
+		assertSame(inner, outer.rawget("inner"));
+		arena.end();
+
+		assertEquals(1, arena.getPromoted());
+		assertNull(outer.rawget("inner"));
+	}
+
+	@Test
+	public void testTickFromLua() throws IOException {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread thread = new KahluaThread(platform, env);
+		LuaClosure f = LuaCompiler.loadstring(
+				"local s = 0 for i = 1, 100 do local p = {x = i, y = i} s = s + p.x end"
+				+ " saved = {n = s} return s", "tick", env);
+		TableArena arena = platform.arena();
+
+		for (int i = 0; i < 3; ++i) {
+			arena.begin();
+			Object[] r = thread.pcall(f, null);
+			arena.end();
+			assertEquals(Boolean.TRUE, r[0]);
+			assertEquals(5050.0, r[1]);
+		}
+		assertEquals(5050.0, ((KahluaTable) env.rawget("saved")).rawget("n"));
+		assertEquals(3, arena.getPromoted());
+		assertTrue(arena.getReused() >= 200);
+	}
+
+	@Test
+	public void testTablesCapturedByStoredFunctionsArePromoted() throws IOException {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread thread = new KahluaThread(platform, env);
+		thread.call(LuaCompiler.loadstring("handlers = {}", "setup", env), null);
+		LuaClosure tick = LuaCompiler.loadstring(
+				"local v = {x = 1}\n" +
+				"local w = {x = 2}\n" +
+				"handlers[#handlers + 1] = function() return v.x end\n" +
+				"local co = coroutine.create(function(t) coroutine.yield() return t.x end)\n" +
+				"coroutine.resume(co, w)\n" +
+				"handlers[#handlers + 1] = co\n" +
+				"local temp = {x = 3}", "tick", env);
+		TableArena arena = platform.arena();
+
+		arena.begin();
+		thread.call(tick, null);
+		arena.end();
+		assertEquals(2, arena.getPromoted());
+
+		arena.begin();
+		thread.call(LuaCompiler.loadstring("local a, b = {x = 9}, {x = 9}", "next", env), null);
+		arena.end();
+
+		LuaClosure check = LuaCompiler.loadstring(
+				"local ok, x = coroutine.resume(handlers[2])\n" +
+				"return handlers[1]() + x", "check", env);
+		assertEquals(3.0, thread.call(check, null));
+	}
+
+	@Test
+	public void testStoredJavaFunctionPromotesTheScope() {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		KahluaTable global = platform.newTable();
+		TableArena arena = platform.arena();
+
+		arena.begin();
+		final KahluaTable captured = platform.newTable();
+		captured.rawset("x", "kept");
+		global.rawset("f", new JavaFunction() {
+			public int call(LuaCallFrame callFrame, int nArguments) {
+				return callFrame.push(captured.rawget("x"));
+			}
+		});
+		arena.end();
+
+		assertEquals(1, arena.getPromoted());
+		assertEquals("kept", captured.rawget("x"));
+	}
+
+	@Test
+	public void testTableKeptByAnOlderUpvalueIsPoisoned() throws IOException {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread thread = new KahluaThread(platform, env);
+		thread.call(LuaCompiler.loadstring(
+				"local cache\n" +
+				"function keep(t) cache = t end\n" +
+				"function kept() return cache.x end", "setup", env), null);
+		TableArena arena = platform.arena();
+		arena.setPoison(true);
+
+		arena.begin();
+		thread.call(LuaCompiler.loadstring("keep({x = 1})", "tick", env), null);
+		arena.end();
+		try {
+			thread.call(LuaCompiler.loadstring("return kept()", "late", env), null);
+			fail("a reset table was read");
+		} catch (RuntimeException e) {
+			assertTrue(String.valueOf(e.getMessage()), e.getMessage().contains("arena scope"));
+		}
+
+		arena.begin();
+		KahluaTable again = platform.newTable();
+		again.rawset("x", 2.0);
+		assertEquals(2.0, again.rawget("x"));
+		arena.end();
+	}
+}
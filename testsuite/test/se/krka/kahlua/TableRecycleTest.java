@@ -0,0 +1,215 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.HeapPressureReleaseStrategy;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.j2se.J2SEPlatform2;
+import se.krka.kahlua.j2se.RecyclePackage;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.LuaClosure;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TableRecycleTest {
+
+	@Test
+	public void testReleasedTablesAreReused() {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		KahluaTable t = platform.newTable();
+		t.rawset(1, "a");
+		t.setMetatable(platform.newTable());
+		assertEquals(2, platform.getCreatedTables());
+
+		t.release();
+		assertNull(t.rawget(1));
+		assertNull(t.getMetatable());
+		assertTrue(t.isEmpty());
+		t.rawset(1, "still usable");
+		assertEquals("still usable", t.rawget(1));
+
+		KahluaTable u = platform.newTable();
+		assertEquals(1, platform.getReusedTables());
+		assertNull(u.rawget(1));
+		assertNull(u.getMetatable());
+
+		KahluaTable m = platform.newTable();
+		m.rawset("key", "value");
+		m.release();
+		KahluaTable m2 = platform.newTable(0, 4);
+		assertNull(m2.rawget("key"));
+		assertEquals(2, platform.getReusedTables());
+		assertEquals(0, platform.getDroppedTables());
+		assertTrue(platform.getTableHitRate() > 0);
+	}
+
+	@Test
+	public void testReleaseFromLua() throws IOException {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread thread = new KahluaThread(platform, env);
+		LuaClosure f = LuaCompiler.loadstring(
+				"for i = 1, 100 do local t = {i, i + 1} table.release(t) end", "release", env);
+		long before = platform.getReusedTables();
+		thread.call(f, null);
+		assertTrue(platform.getReusedTables() - before >= 99);
+	}
+
+	@Test(timeout = 10000)
+	public void testPairsOnArrayTable() throws IOException {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread thread = new KahluaThread(platform, env);
+		LuaClosure f = LuaCompiler.loadstring(
+				"local n = 0\n" +
+				"for k, v in pairs{1} do n = n + 1 end\n" +
+				"for k, v in pairs{1, 2, nil, 4} do n = n + v end\n" +
+				"return n", "pairs", env);
+		assertEquals(8.0, thread.call(f, null));
+	}
+
+	@Test
+	public void testBigTablesSkipTheThreadPool() {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		KahluaTable t = platform.newTable(5000, 0);
+		t.rawset(1, "x");
+		t.release();
+		assertEquals(1, platform.getPooledTables(RecyclePackage.Type.Array));
+	}
+
+	@Test
+	public void testSharedPoolLimit() {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		KahluaTable[] tables = new KahluaTable[200];
+		for (int i = 0; i < tables.length; ++i) {
+			tables[i] = platform.newTable();
+			tables[i].rawset(1, "x");
+		}
+		for (KahluaTable t : tables) {
+			t.release();
+		}
+		int pooled = platform.getPooledTables(RecyclePackage.Type.Array);
+		assertTrue(pooled > 0);
+
+		platform.setSharedPoolLimit(10);
+		assertEquals(10, platform.getPooledTables(RecyclePackage.Type.Array));
+		assertEquals(pooled - 10, platform.getReleasedTables());
+	}
+
+	@Test
+	public void testHeapPressureShrinksPools() {
+		J2SEPlatform2 platform = new J2SEPlatform2();
+		HeapPressureReleaseStrategy s = new HeapPressureReleaseStrategy(0.9, 60000);
+		platform.setMemoryManager(s);
+		int max = platform.getMaxSharedPoolLimit();
+		assertEquals(max, platform.getSharedPoolLimit());
+
+		s.onPressure(0, false);
+		assertEquals(max * 3 / 4, platform.getSharedPoolLimit());
+		s.onPressure(0.1, true);
+		assertEquals(max * 3 / 4 / 2, platform.getSharedPoolLimit());
+		s.onPressure(1, false);
+		assertEquals(0, platform.getSharedPoolLimit());
+		assertEquals(3, s.getPressureEvents());
+	}
+
+	@Test
+	public void testUnbindRestoresThresholds() {
+		MemoryPoolMXBean pool = null;
+		for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (p.getType() == MemoryType.HEAP && p.isUsageThresholdSupported()
+					&& p.getUsage().getMax() > 0) {
+				pool = p;
+				break;
+			}
+		}
+		if (pool == null) {
+			return;
+		}
+		long before = pool.getUsageThreshold();
+		long mine = pool.getUsage().getMax() - 1;
+		pool.setUsageThreshold(mine);
+		try {
+			J2SEPlatform2 platform = new J2SEPlatform2();
+			HeapPressureReleaseStrategy s = new HeapPressureReleaseStrategy(0.5, 60000);
+			s.bind(platform);
+			assertTrue(pool.getUsageThreshold() != mine);
+			s.unbind(platform);
+			assertEquals(mine, pool.getUsageThreshold());
+		} finally {
+			pool.setUsageThreshold(before);
+		}
+	}
+
+	@Test
+	public void testArrayRangeOps() {
+		Random r = new Random(47);
+		KahluaTable t = new J2SEPlatform2().newTable();
+		KahluaTable expected = new J2SEPlatform().newTable();
+		Object[] buf = new Object[40];
+		for (int step = 0; step < 2000; step++) {
+			int from = 1 + r.nextInt(60);
+			int count = r.nextInt(20);
+			switch (r.nextInt(4)) {
+			case 0:
+				for (int i = 0; i < count; i++) {
+					buf[i] = r.nextInt(3) == 0 ? null : "v" + step + "." + i;
+				}
+				t.setRange(from, buf, 0, count);
+				expected.setRange(from, buf, 0, count);
+				break;
+			case 1:
+				int to = 1 + r.nextInt(60);
+				t.move(from, to, count);
+				expected.move(from, to, count);
+				break;
+			case 2:
+				Object v = r.nextBoolean() ? null : "f" + step;
+				t.fill(from, count, v);
+				expected.fill(from, count, v);
+				break;
+			default:
+				t.getRange(from, buf, 0, count);
+				for (int i = 0; i < count; i++) {
+					assertEquals(expected.rawget(from + i), buf[i]);
+				}
+			}
+			int n = 0;
+			for (int i = 1; i < 100; i++) {
+				assertEquals(expected.rawget(i), t.rawget(i));
+				if (t.rawget(i) != null) n++;
+			}
+			assertEquals(n, t.len());
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.j2se.J2SEPlatform2;
+import se.krka.kahlua.threading.BlockingKahluaThread;
+import se.krka.kahlua.threading.VerifiedSingleKahluaThread;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.KahluaUtil;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThreadConfinedTest {
+
+	@Test
+	public void testProfile() {
+		J2SEPlatform platform = new J2SEPlatform();
+		assertTrue(platform.isConcurrent());
+		KahluaThread worker = KahluaUtil.getWorkerThread(platform, platform.newEnvironment());
+		assertTrue(worker instanceof BlockingKahluaThread);
+
+		platform.useConcurrent(false);
+		assertFalse(platform.isConcurrent());
+		KahluaTable env = platform.newEnvironment();
+		worker = KahluaUtil.getWorkerThread(platform, env);
+		assertFalse(worker instanceof BlockingKahluaThread);
+		assertEquals("confined", worker.call(env.rawget("tostring"), "confined", null, null));
+
+		J2SEPlatform2 platform2 = new J2SEPlatform2();
+		platform2.useConcurrent(false);
+		KahluaTable t = platform2.newTable();
+		for (int i = 0; i < 100; i++) {
+			t.rawset("k" + i, i + 0.0);
+		}
+		assertEquals(42.0, t.rawget("k42"));
+	}
+
+	@Test
+	public void testConfinedThread() throws InterruptedException {
+		J2SEPlatform platform = new J2SEPlatform();
+		platform.useConcurrent(false);
+		KahluaTable env = platform.newEnvironment();
+		final KahluaThread thread = new VerifiedSingleKahluaThread(platform, env, true);
+		final Object tostring = env.rawget("tostring");
+		assertEquals("x", thread.call(tostring, "x", null, null));
+
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread other = new Thread(new Runnable() {
+			public void run() {
+				try {
+					thread.call(tostring, "y", null, null);
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			}
+		});
+		other.start();
+		other.join();
+		assertTrue(error.get() instanceof IllegalStateException);
+		assertEquals("z", thread.call(tostring, "z", null, null));
+	}
+}
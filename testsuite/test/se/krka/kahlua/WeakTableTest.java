@@ -0,0 +1,105 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+package se.krka.kahlua;
+
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.j2se.J2SEPlatform2;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.KahluaTableIterator;
+import se.krka.kahlua.vm.KahluaThread;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.Platform;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WeakTableTest {
+
+	private static int count(KahluaTable t) {
+		int n = 0;
+		KahluaTableIterator it = t.iterator();
+		while (it.advance()) {
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Collects until the table has n entries, or gives up.
+	 */
+	private static int collect(KahluaTable t, int n) throws InterruptedException {
+		for (int i = 0; i < 50 && count(t) > n; i++) {
+			System.gc();
+			Thread.sleep(10);
+			t.rawget("poll");
+		}
+		return count(t);
+	}
+
+	private static void checkWeakKeys(Platform platform) throws InterruptedException {
+		KahluaTable t = platform.newTable();
+		KahluaTable mode = platform.newTable();
+		mode.rawset("__mode", "k");
+		t.setMetatable(mode);
+		t.setWeak(true, false);
+
+		Object kept = new Object();
+		t.rawset(kept, "kept");
+		t.rawset("name", "string keys stay");
+		t.rawset(1, "number keys stay");
+		for (int i = 0; i < 100; i++) {
+			t.rawset(new Object(), "garbage");
+		}
+		assertEquals(3, collect(t, 3));
+		assertEquals("kept", t.rawget(kept));
+	}
+
+	@Test
+	public void testWeakKeys() throws InterruptedException {
+		checkWeakKeys(new J2SEPlatform());
+		checkWeakKeys(new J2SEPlatform2());
+	}
+
+	@Test
+	public void testWeakValuesFromLua() throws IOException, InterruptedException {
+		J2SEPlatform platform = new J2SEPlatform();
+		KahluaTable env = platform.newEnvironment();
+		KahluaThread thread = new KahluaThread(platform, env);
+		LuaClosure f = LuaCompiler.loadstring(
+				"cache = setmetatable({}, {__mode = 'v'})"
+				+ " for i = 1, 100 do cache[i] = {} end"
+				+ " keep = {} cache.keep = keep cache.s = 'strings stay'", "weak", env);
+		thread.call(f, null);
+		KahluaTable cache = (KahluaTable) env.rawget("cache");
+		assertEquals(2, collect(cache, 2));
+		assertTrue(cache.rawget("keep") == env.rawget("keep"));
+
+		cache.setWeak(false, false);
+		cache.rawset("t", platform.newTable());
+		System.gc();
+		assertEquals(3, count(cache));
+	}
+}
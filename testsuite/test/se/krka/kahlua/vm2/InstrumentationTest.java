@@ -0,0 +1,92 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+package se.krka.kahlua.vm2;
+
+import org.junit.After;
+import org.junit.Test;
+import se.krka.kahlua.j2se.J2SEPlatform;
+import se.krka.kahlua.luaj.compiler.LuaCompiler;
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.Platform;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static se.krka.kahlua.vm.KahluaThread.*;
+
+
+public class InstrumentationTest {
+
+  private static final String SCRIPT =
+      "local function f(n) return n + 1 end\n" +
+      "return function() local s = 0 for i = 1, 10 do s = f(s) end return s end";
+
+
+  @After
+  public void off() {
+    Instrumentation.disable();
+    Instrumentation.reset();
+  }
+
+
+  @Test
+  public void testSwitchWithoutRebuild() throws IOException {
+    Platform platform = new J2SEPlatform();
+    KahluaTable env = platform.newEnvironment();
+    KahluaThread2 t = new KahluaThread2(platform, env);
+    LuaClosure script = LuaCompiler.loadstring(SCRIPT, "instrument", env);
+    Object fn = t.call(script, null);
+    Instrumentation.reset();
+
+    assertEquals(10.0, t.call(fn, null));
+    assertEquals(0, Instrumentation.opCount(OP_CALL));
+
+    Instrumentation.enable(true, true);
+    assertEquals(10.0, t.call(fn, null));
+    assertEquals(10, Instrumentation.opCount(OP_CALL));
+    assertEquals(10, Instrumentation.opCount(OP_ADD));
+    assertEquals(11, Instrumentation.opCount(OP_FORLOOP));
+
+    Instrumentation.disable();
+    assertEquals(10.0, t.call(fn, null));
+    assertEquals(10, Instrumentation.opCount(OP_CALL));
+  }
+
+
+  @Test
+  public void testOpCountsEnabledAfterCompilation() throws IOException {
+    Platform platform = new J2SEPlatform();
+    KahluaTable env = platform.newEnvironment();
+    KahluaThread2 t = new KahluaThread2(platform, env);
+    LuaClosure script = LuaCompiler.loadstring(SCRIPT, "lateprobes", env);
+    Object fn = t.call(script, null);
+    assertEquals(10.0, t.call(fn, null));
+    Instrumentation.reset();
+
+    Instrumentation.enable(false, true);
+    assertEquals(10.0, t.call(fn, null));
+    assertEquals(10, Instrumentation.opCount(OP_CALL));
+    assertEquals(11, Instrumentation.opCount(OP_FORLOOP));
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ Copyright (c) 2023 Yanming <yanmingsohu@gmail.com>
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+ */
+
+
+package se.krka.kahlua.vthread;
+
+import se.krka.kahlua.vm.KahluaTable;
+import se.krka.kahlua.vm.Platform;
+import se.krka.kahlua.vm2.ThreadCoroutineLib;
+
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Run the body of every coroutine on a virtual thread (java 21),
+ * a suspended coroutine only keeps its stack chunk on the heap,
+ * so thousands of them are cheap.
+ */
+public class VirtualThreadCoroutines {
+
+  private static final ThreadFactory factory =
+      Thread.ofVirtual().name("lua-coroutine-", 0).factory();
+
+
+  public static ThreadFactory factory() {
+    return factory;
+  }
+
+
+  public static void register(Platform platform, KahluaTable env) {
+    ThreadCoroutineLib.register(platform, env, factory);
+  }
+}